@@ -19,7 +19,10 @@ import org.apache.http.Header;
 import org.apache.http.HttpHost;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.client.CookieStore;
+import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.conn.routing.HttpRoutePlanner;
 import org.apache.http.conn.ssl.DefaultHostnameVerifier;
@@ -30,27 +33,46 @@ import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.DefaultProxyRoutePlanner;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
 import org.apache.http.ssl.PrivateKeyStrategy;
 import org.apache.http.ssl.SSLContextBuilder;
 import org.apache.http.ssl.SSLContexts;
 import org.commonjava.util.jhttpc.INTERNAL.conn.ConnectionManagerCache;
 import org.commonjava.util.jhttpc.INTERNAL.conn.ConnectionManagerTracker;
+import org.commonjava.util.jhttpc.INTERNAL.conn.Http2SiteClient;
+import org.commonjava.util.jhttpc.INTERNAL.conn.SharedAsyncBackend;
 import org.commonjava.util.jhttpc.INTERNAL.conn.SiteConnectionConfig;
+import org.commonjava.util.jhttpc.INTERNAL.conn.TimingRequestExecutor;
+import org.commonjava.util.jhttpc.INTERNAL.conn.TrackedHttpAsyncClient;
 import org.commonjava.util.jhttpc.INTERNAL.conn.TrackedHttpClient;
+import org.commonjava.util.jhttpc.INTERNAL.jfr.JfrEvents;
 import org.commonjava.util.jhttpc.INTERNAL.util.CertEnumerator;
 import org.commonjava.util.jhttpc.INTERNAL.util.MonolithicKeyStrategy;
 import org.commonjava.util.jhttpc.INTERNAL.util.SSLUtils;
+import org.commonjava.util.jhttpc.INTERNAL.util.SharedExecutors;
+import org.commonjava.util.jhttpc.INTERNAL.util.SslContextCache;
+import org.commonjava.util.jhttpc.INTERNAL.util.TlsFingerprint;
 import org.commonjava.util.jhttpc.auth.BasicAuthenticator;
 import org.commonjava.util.jhttpc.auth.ClientAuthenticator;
 import org.commonjava.util.jhttpc.auth.PasswordKey;
 import org.commonjava.util.jhttpc.auth.PasswordManager;
 import org.commonjava.util.jhttpc.auth.PasswordType;
+import org.commonjava.util.jhttpc.metrics.ConnectionLeak;
+import org.commonjava.util.jhttpc.metrics.ConnectionMetricsRegistry;
+import org.commonjava.util.jhttpc.model.HttpFactoryConfig;
+import org.commonjava.util.jhttpc.model.HttpFactoryConfigBuilder;
 import org.commonjava.util.jhttpc.model.SiteConfig;
+import org.commonjava.util.jhttpc.model.SiteConfigBuilder;
+import org.commonjava.util.jhttpc.model.SiteHttpVersion;
 import org.commonjava.util.jhttpc.model.SiteTrustType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.security.KeyManagementException;
@@ -61,12 +83,20 @@ import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.spec.InvalidKeySpecException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
 
 public class HttpFactory
         implements HttpFactoryIfc
 {
     private static final String SSL_FACTORY_ATTRIB = "ssl-factory";
 
+    private static final String SSL_CONTEXT_ATTRIB = "ssl-context";
+
     private static final String COOKIE_STORE = "cookie-store";
 
     private final Logger logger = LoggerFactory.getLogger( getClass() );
@@ -77,18 +107,32 @@ public class HttpFactory
 
     private final ConnectionManagerCache connectionCache;
 
+    private final HttpFactoryConfig factoryConfig;
+
     public HttpFactory( final PasswordManager passwords )
+    {
+        this( passwords, new HttpFactoryConfigBuilder().build() );
+    }
+
+    public HttpFactory( final PasswordManager passwords, final HttpFactoryConfig factoryConfig )
     {
         this.passwords = passwords;
         this.authenticator = new BasicAuthenticator( passwords );
-        this.connectionCache = new ConnectionManagerCache();
+        this.factoryConfig = factoryConfig;
+        this.connectionCache = new ConnectionManagerCache( factoryConfig, this::reloadPemFiles );
     }
 
     public HttpFactory( final ClientAuthenticator authenticator )
+    {
+        this( authenticator, new HttpFactoryConfigBuilder().build() );
+    }
+
+    public HttpFactory( final ClientAuthenticator authenticator, final HttpFactoryConfig factoryConfig )
     {
         this.authenticator = authenticator;
         this.passwords = null;
-        this.connectionCache = new ConnectionManagerCache();
+        this.factoryConfig = factoryConfig;
+        this.connectionCache = new ConnectionManagerCache( factoryConfig, this::reloadPemFiles );
     }
 
     public PasswordManager getPasswordManager()
@@ -96,6 +140,32 @@ public class HttpFactory
         return passwords;
     }
 
+    /**
+     * @return connection-pool metrics (lease waits, hold times, new vs. reused connections, pool gauges) per site id
+     */
+    public ConnectionMetricsRegistry getMetrics()
+    {
+        return connectionCache.getMetrics();
+    }
+
+    /**
+     * @return connections found leased past {@link HttpFactoryConfig#getLeakDetectionSeconds()} by the most recent
+     * leak-detection sweep, with the stack that leased them when it was sampled
+     */
+    public List<ConnectionLeak> getConnectionLeaks()
+    {
+        return connectionCache.getConnectionLeaks();
+    }
+
+    /**
+     * @return a rough estimate of the heap held by the live connection pools, their open connections and cached
+     * clients. Useful for sizing {@link HttpFactoryConfig#getMaxLivePools()}.
+     */
+    public long getEstimatedPoolMemoryBytes()
+    {
+        return connectionCache.estimateMemoryBytes();
+    }
+
     @Override
     public CloseableHttpClient createClient()
             throws JHttpCException
@@ -117,56 +187,449 @@ public class HttpFactory
         CloseableHttpClient client;
         if ( location != null )
         {
-            HttpClientBuilder builder = HttpClients.custom();
+            logger.debug( "Using site config: {} for advanced client options", location );
+            final SSLConnectionSocketFactory sslFac = createSSLSocketFactory( location );
+            SiteConnectionConfig connConfig = createConnectionConfig( location, sslFac );
 
-            if ( authenticator != null )
+            ConnectionManagerTracker managerWrapper = connectionCache.getTrackerFor( connConfig );
+            logger.debug( "Using connection manager tracker: {}", managerWrapper );
+
+            try
+            {
+                boolean shared = factoryConfig.isClientCachingEnabled() && ( defaultHeaders == null
+                        || defaultHeaders.isEmpty() );
+                if ( shared )
+                {
+                    CloseableHttpClient delegate = managerWrapper.getSharedClient( location.getId() );
+                    if ( delegate == null )
+                    {
+                        logger.debug( "Building shared client for: {}", location );
+                        delegate = managerWrapper.setSharedClient( location.getId(),
+                                buildClient( location, sslFac, managerWrapper, null ) );
+                    }
+
+                    client = new TrackedHttpClient( delegate, managerWrapper, true, location,
+                                                    connectionCache.getMetrics().forSite( location.getId() ),
+                                                    connectionCache.getEventExporter( location ) );
+                }
+                else
+                {
+                    client = new TrackedHttpClient( buildClient( location, sslFac, managerWrapper, defaultHeaders ),
+                                                    managerWrapper, false, location,
+                                                    connectionCache.getMetrics().forSite( location.getId() ),
+                                                    connectionCache.getEventExporter( location ) );
+                }
+            }
+            catch ( JHttpCException | RuntimeException e )
             {
-                builder = authenticator.decorateClientBuilder( builder );
+                managerWrapper.release();
+                throw e;
             }
+        }
+        else
+        {
+            client = HttpClients.createDefault();
+        }
 
-            logger.debug( "Using site config: {} for advanced client options", location );
-            SiteConnectionConfig connConfig = new SiteConnectionConfig( location );
+        return client;
+    }
 
-            final SSLConnectionSocketFactory sslFac = createSSLSocketFactory( location );
-            if ( sslFac != null )
+    private SiteConnectionConfig createConnectionConfig( final SiteConfig location,
+                                                        final SSLConnectionSocketFactory sslFac )
+            throws JHttpCException
+    {
+        SiteConnectionConfig connConfig = new SiteConnectionConfig( location );
+        if ( sslFac != null )
+        {
+            connConfig.withSSLConnectionSocketFactory( sslFac );
+        }
+
+        if ( factoryConfig.isPoolSharingEnabled() )
+        {
+            try
             {
-                //                HostnameVerifier verifier = new SSLHostnameVerifierImpl( );
-                //                builder.setSSLHostnameVerifier( verifier );
-                builder.setSSLSocketFactory( sslFac );
-                connConfig.withSSLConnectionSocketFactory( sslFac );
+                connConfig.withSharedPool( TlsFingerprint.of( location, lookupKeyPassword( location ) ) );
             }
+            catch ( MalformedURLException e )
+            {
+                throw new JHttpCException( "Failed to parse site URL for connection-pool sharing: %s (site id: %s). "
+                                                   + "Reason: %s", e, location.getUri(), location.getId(),
+                                           e.getMessage() );
+            }
+        }
 
-            ConnectionManagerTracker managerWrapper = connectionCache.getTrackerFor( connConfig );
-            logger.debug( "Using connection manager tracker: {}", managerWrapper );
-            builder.setConnectionManager( managerWrapper.acquire() );
+        return connConfig;
+    }
+
+    private String lookupKeyPassword( final SiteConfig location )
+    {
+        return passwords == null ? null : passwords.lookup( new PasswordKey( location, PasswordType.KEY ) );
+    }
+
+    private CloseableHttpClient buildClient( final SiteConfig location, final SSLConnectionSocketFactory sslFac,
+                                             final ConnectionManagerTracker managerWrapper,
+                                             final List<Header> defaultHeaders )
+            throws JHttpCException
+    {
+        HttpClientBuilder builder = HttpClients.custom();
+
+        if ( authenticator != null )
+        {
+            builder = authenticator.decorateClientBuilder( builder );
+        }
+
+        if ( sslFac != null )
+        {
+            //                HostnameVerifier verifier = new SSLHostnameVerifierImpl( );
+            //                builder.setSSLHostnameVerifier( verifier );
+            builder.setSSLSocketFactory( sslFac );
+        }
+
+        builder.setConnectionManager( managerWrapper.getConnectionManager( location ) );
+        builder.setRequestExecutor( new TimingRequestExecutor() );
+
+        if ( location.getProxyHost() != null )
+        {
+            final HttpRoutePlanner planner = new DefaultProxyRoutePlanner(
+                    new HttpHost( location.getProxyHost(), getProxyPort( location ) ) );
+            builder.setRoutePlanner( planner );
+        }
+
+        builder.setDefaultRequestConfig( SiteConnectionConfig.defaultRequestConfig( location ) );
+
+        if ( defaultHeaders != null )
+        {
+            builder.setDefaultHeaders( defaultHeaders );
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Open connections to the given site ahead of demand, in the background, so the first requests don't pay for the
+     * TCP connect and TLS handshake. Connections are opened until the site has the given number open (leased or idle),
+     * capped at its maximum per route, and parked in its pool until they're used or evicted as idle. See
+     * {@link SiteConfig#getWarmConnections()} to keep a site warm continuously. Sites reached through a proxy aren't
+     * prewarmed.
+     *
+     * @return a future completed with the number of connections opened
+     */
+    public CompletableFuture<Integer> prewarm( final SiteConfig location, final int connections )
+            throws JHttpCException
+    {
+        final SSLConnectionSocketFactory sslFac = createSSLSocketFactory( location );
+        SiteConnectionConfig connConfig = createConnectionConfig( location, sslFac );
+
+        final ConnectionManagerTracker managerWrapper = connectionCache.getTrackerFor( connConfig );
+        try
+        {
+            return CompletableFuture.supplyAsync( () -> {
+                try
+                {
+                    return managerWrapper.prewarm( location, connections );
+                }
+                finally
+                {
+                    managerWrapper.release();
+                }
+            }, SharedExecutors.getPrewarmExecutor() );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            managerWrapper.release();
+            throw new JHttpCException( "Cannot prewarm connections for: %s. Reason: %s", e, location.getId(),
+                                       e.getMessage() );
+        }
+    }
+
+    /**
+     * Apply new pool sizing ({@link SiteConfig#getMaxConnections()}, {@link SiteConfig#getMaxPerRoute()}), socket and
+     * connection config, and request timeouts to the live connection pool of the site with the same id, without
+     * tearing it down, so its pooled connections stay warm. Blocking clients already created for the site use the new
+     * timeouts from their next request. If the site has no live pool, nothing needs changing: the next
+     * {@link #createClient(SiteConfig)} call builds one from the given config.
+     *
+     * @return true if a live pool was reconfigured
+     */
+    public boolean reconfigure( final SiteConfig location )
+            throws JHttpCException
+    {
+        ConnectionManagerTracker tracker =
+                connectionCache.getLiveTracker( createConnectionConfig( location, null ) );
+        if ( tracker == null )
+        {
+            logger.debug( "No live connection pool to reconfigure for: {}", location );
+            return false;
+        }
+
+        return tracker.reconfigure( location );
+    }
+
+    /**
+     * Rebuild the TLS material (key / certificate PEMs, trust settings) of the given site in the background, and swap it
+     * into the live connection pool of the site with the same id, without tearing the pool down. Requests in flight and
+     * connections already open keep their TLS session; new connections use the new material, so the old connections
+     * drain away as they're closed. This covers the site's blocking, async and HTTP/2 requests: its HTTP/2 backend is
+     * rebuilt, and the old one closed once its requests in flight complete. Sites whose {@link SiteConfigBuilder#withKeyCertPemFile(java.io.File)} or
+     * {@link SiteConfigBuilder#withServerCertPemFile(java.io.File)} files change are reloaded this way automatically,
+     * every {@link HttpFactoryConfig#getPemCheckSeconds()}.
+     * <p>
+     * Pools shared between sites ({@link HttpFactoryConfig#isPoolSharingEnabled()}) aren't swapped: their key includes
+     * the TLS material, so the next {@link #createClient(SiteConfig)} for the updated site simply gets a new pool.
+     *
+     * @return a future completed with true if a live pool was updated
+     */
+    public CompletableFuture<Boolean> reloadTls( final SiteConfig location )
+            throws JHttpCException
+    {
+        // material cached on the config (for instance copied from the previous version of the site) must be rebuilt
+        location.removeAttribute( SSL_FACTORY_ATTRIB );
+        location.removeAttribute( SSL_CONTEXT_ATTRIB );
+
+        try
+        {
+            return CompletableFuture.supplyAsync( () -> {
+                try
+                {
+                    ConnectionManagerTracker tracker =
+                            connectionCache.getLiveTracker( createConnectionConfig( location, null ) );
+                    if ( tracker == null )
+                    {
+                        logger.debug( "No live connection pool to reload TLS material for: {}", location );
+                        return false;
+                    }
+
+                    SSLConnectionSocketFactory sslFac = createSSLSocketFactory( location );
+                    return tracker.swapTls( location, sslFac == null ?
+                                                    SSLConnectionSocketFactory.getSocketFactory() :
+                                                    sslFac, createSSLContext( location ),
+                                            getHostnameVerifier( location ) );
+                }
+                catch ( JHttpCException e )
+                {
+                    throw new CompletionException( e );
+                }
+            }, SharedExecutors.getTlsReloadExecutor() );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            throw new JHttpCException( "Cannot reload TLS material for: %s. Reason: %s", e, location.getId(),
+                                       e.getMessage() );
+        }
+    }
 
-            if ( location.getProxyHost() != null )
+    private void reloadPemFiles( final SiteConfig site )
+    {
+        try
+        {
+            SiteConfigBuilder builder = new SiteConfigBuilder( site );
+            if ( site.getKeyCertPemFile() != null )
             {
-                final HttpRoutePlanner planner = new DefaultProxyRoutePlanner(
-                        new HttpHost( location.getProxyHost(), getProxyPort( location ) ) );
-                builder.setRoutePlanner( planner );
+                builder.withKeyCertPemFile( site.getKeyCertPemFile() );
             }
 
-            final int timeout = 1000 * location.getRequestTimeoutSeconds();
-            builder.setDefaultRequestConfig( RequestConfig.custom()
-//                                                          .setConnectionRequestTimeout( timeout )
-                                                          .setSocketTimeout( timeout )
-                                                          .setConnectTimeout( timeout )
-                                                          .build() );
+            if ( site.getServerCertPemFile() != null )
+            {
+                builder.withServerCertPemFile( site.getServerCertPemFile() );
+            }
 
-            if ( defaultHeaders != null )
+            reloadTls( builder.build() ).whenComplete( ( swapped, error ) -> {
+                if ( error != null )
+                {
+                    logger.warn( "Cannot reload TLS material for: " + site.getId() + ": " + error.getMessage(),
+                                 error );
+                }
+            } );
+        }
+        catch ( IOException | JHttpCException e )
+        {
+            logger.warn( "Cannot reload TLS material for: " + site.getId() + ": " + e.getMessage(), e );
+        }
+    }
+
+    /**
+     * Create a non-blocking client for the given site. Async clients of every site share one NIO client, whose I/O
+     * reactor serves every in-flight request with a handful of threads, and one async connection pool. Each request
+     * uses this site's SSL, proxy and timeout settings, and pooled connections are only reused by sites with the same
+     * TLS material. The returned client is already started; closing it releases the site's connection pool, the same as
+     * closing a blocking client.
+     */
+    @Override
+    public CloseableHttpAsyncClient createAsyncClient( final SiteConfig location )
+            throws JHttpCException
+    {
+        if ( location == null )
+        {
+            CloseableHttpAsyncClient client = HttpAsyncClients.createDefault();
+            client.start();
+            return client;
+        }
+
+        final SSLConnectionSocketFactory sslFac = createSSLSocketFactory( location );
+        SiteConnectionConfig connConfig = createConnectionConfig( location, sslFac );
+
+        ConnectionManagerTracker managerWrapper = connectionCache.getTrackerFor( connConfig );
+        try
+        {
+            SharedAsyncBackend backend = connectionCache.getAsyncBackend();
+            if ( backend == null )
+            {
+                logger.debug( "Building shared async backend." );
+                backend = connectionCache.setAsyncBackend( buildAsyncBackend() );
+            }
+
+            if ( managerWrapper.getAsyncTls() == null )
             {
-                builder.setDefaultHeaders( defaultHeaders );
+                managerWrapper.setAsyncTls(
+                        SharedAsyncBackend.bindTls( createSSLContext( location ), getHostnameVerifier( location ) ) );
             }
 
-            client = new TrackedHttpClient( builder.build(), managerWrapper );
+            backend.registerSite( location );
+            return new TrackedHttpAsyncClient( backend.getClient(), managerWrapper, location );
         }
-        else
+        catch ( JHttpCException | RuntimeException e )
         {
-            client = HttpClients.createDefault();
+            managerWrapper.release();
+            throw e;
         }
+    }
 
-        return client;
+    /**
+     * Execute the request against the given site on that site's bounded request executor (at most
+     * {@link SiteConfig#getMaxConnections()} threads), and complete the returned future with the handler's result. The
+     * client and response are always cleaned up before the future completes. Cancelling the future aborts the request,
+     * and {@link #shutdownNow()} cancels any futures still pending.
+     * <p>
+     * Sites configured for {@link SiteHttpVersion#HTTP_2} are sent through a shared HTTP/2 backend instead, which
+     * multiplexes concurrent requests over a single connection; only the response handler runs on the site's request
+     * executor in that case.
+     */
+    @Override
+    public <T> CompletableFuture<T> execute( final SiteConfig location, final HttpUriRequest request,
+                                             final ResponseHandler<? extends T> handler )
+            throws JHttpCException
+    {
+        final SSLConnectionSocketFactory sslFac = createSSLSocketFactory( location );
+        SiteConnectionConfig connConfig = createConnectionConfig( location, sslFac );
+
+        final ConnectionManagerTracker managerWrapper = connectionCache.getTrackerFor( connConfig );
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        future.whenComplete( ( result, error ) -> managerWrapper.release() );
+        managerWrapper.registerPending( future );
+
+        if ( location.getHttpVersion() == SiteHttpVersion.HTTP_2 )
+        {
+            executeHttp2( location, managerWrapper, request, handler, future );
+            return future;
+        }
+
+        try
+        {
+            final Future<?> task = managerWrapper.getRequestExecutor( location ).submit( () -> {
+                if ( future.isDone() )
+                {
+                    return;
+                }
+
+                CloseableHttpClient client = null;
+                try
+                {
+                    client = createClient( location );
+                    future.complete( client.execute( request, handler, createContext( location ) ) );
+                }
+                catch ( Throwable e )
+                {
+                    future.completeExceptionally( e );
+                }
+                finally
+                {
+                    closeQuietly( client );
+                }
+            } );
+
+            future.whenComplete( ( result, error ) -> {
+                if ( future.isCancelled() )
+                {
+                    logger.debug( "Aborting cancelled request: {}", request );
+                    request.abort();
+                    task.cancel( true );
+                }
+            } );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            future.completeExceptionally(
+                    new JHttpCException( "Too many requests queued for: %s. Reason: %s", e, location.getId(),
+                                         e.getMessage() ) );
+        }
+
+        return future;
+    }
+
+    private <T> void executeHttp2( final SiteConfig location, final ConnectionManagerTracker managerWrapper,
+                                   final HttpUriRequest request, final ResponseHandler<? extends T> handler,
+                                   final CompletableFuture<T> future )
+    {
+        try
+        {
+            // decorate a copy, as HttpClient does for client default headers, leaving the caller's request alone
+            HttpUriRequest decorated = request;
+            if ( authenticator != null )
+            {
+                decorated = HttpRequestWrapper.wrap( request );
+                authenticator.decorateHttp2Request( decorated );
+            }
+
+            Future<?> sent = null;
+            while ( sent == null )
+            {
+                if ( managerWrapper.isClosed() )
+                {
+                    throw new JHttpCException( "Connection pool for: %s has been shut down.", null, location.getId() );
+                }
+
+                Http2SiteClient client = managerWrapper.getSharedHttp2Client( location.getId() );
+                if ( client == null )
+                {
+                    client = managerWrapper.setSharedHttp2Client( location.getId(),
+                            Http2SiteClient.build( location, createSSLContext( location ),
+                                                   getHostnameVerifier( location ) ) );
+                }
+
+                // null if the client was retired or closed since it was looked up: by a TLS reload, which has put its
+                // replacement in place by then, or by forgetting the site, so that a new one is built
+                sent = client.execute( decorated, createContext( location ), handler,
+                                       managerWrapper.getRequestExecutor( location ), future );
+            }
+
+            final Future<?> exchange = sent;
+
+            future.whenComplete( ( result, error ) -> {
+                if ( future.isCancelled() )
+                {
+                    logger.debug( "Aborting cancelled HTTP/2 request: {}", request );
+                    exchange.cancel( true );
+                }
+            } );
+        }
+        catch ( JHttpCException | IOException | RuntimeException e )
+        {
+            future.completeExceptionally( e );
+        }
+    }
+
+    private SharedAsyncBackend buildAsyncBackend()
+            throws JHttpCException
+    {
+        HttpAsyncClientBuilder builder = HttpAsyncClients.custom();
+
+        if ( authenticator != null )
+        {
+            builder = authenticator.decorateAsyncClientBuilder( builder );
+        }
+
+        int globalMax = factoryConfig.getGlobalMaxConnections();
+        return new SharedAsyncBackend( builder, globalMax > 0 ? globalMax : SharedAsyncBackend.DEFAULT_MAX_CONNECTIONS );
     }
 
     private int getProxyPort( final SiteConfig location )
@@ -291,12 +754,74 @@ public class HttpFactory
             return fac;
         }
 
+        Object jfrEvent = location.getAttribute( SSL_CONTEXT_ATTRIB ) == null ? JfrEvents.beginSslContext() : null;
+        try
+        {
+            SSLContext ctx = createSSLContext( location );
+            if ( ctx == null )
+            {
+                return null;
+            }
+
+            fac = new SSLConnectionSocketFactory( ctx, getHostnameVerifier( location ) );
+            location.setAttribute( SSL_FACTORY_ATTRIB, fac );
+            return fac;
+        }
+        finally
+        {
+            JfrEvents.endSslContext( jfrEvent, location );
+        }
+    }
+
+    private boolean isHttps( final SiteConfig location )
+    {
+        String uri = location.getUri();
+        return uri != null && uri.regionMatches( true, 0, "https:", 0, 6 );
+    }
+
+    private HostnameVerifier getHostnameVerifier( final SiteConfig location )
+    {
+        if ( location.isIgnoreHostnameVerification() )
+        {
+            return new NoopHostnameVerifier();
+        }
+
+        return new DefaultHostnameVerifier();
+    }
+
+    private SSLContext createSSLContext( final SiteConfig location )
+            throws JHttpCException
+    {
+        SSLContext ctx = (SSLContext) location.getAttribute( SSL_CONTEXT_ATTRIB );
+        if ( ctx != null )
+        {
+            return ctx;
+        }
+
         KeyStore ks = null;
         KeyStore ts = null;
 
         final String kcPem = location.getKeyCertPem();
 
-        final String kcPass = passwords == null ? null : passwords.lookup( new PasswordKey( location, PasswordType.KEY ) );
+        final String kcPass = lookupKeyPassword( location );
+
+        // plain HTTPS sites go through the cache too, so they share one context (and session cache) instead of each
+        // pool getting a fresh default context
+        String fingerprint = null;
+        if ( kcPem != null || location.getServerCertPem() != null || location.isIgnoreHostnameVerification()
+                || location.getSslSessionCacheSize() != null || location.getSslSessionTimeoutSeconds() != null
+                || isHttps( location ) )
+        {
+            fingerprint = TlsFingerprint.of( location, kcPass );
+            ctx = SslContextCache.get( fingerprint );
+            if ( ctx != null )
+            {
+                logger.debug( "Reusing cached SSL context for: {}", location );
+                location.setAttribute( SSL_CONTEXT_ATTRIB, ctx );
+                return ctx;
+            }
+        }
+
         if ( kcPem != null )
         {
             logger.debug( "Adding client key/certificate from: {}", location );
@@ -404,8 +929,9 @@ public class HttpFactory
             logger.debug( "No server certificates found" );
         }
 
-        // if user set either ks, ts, or want to ignore hostname verification, we know this is a ssl factory and set it accordingly
-        if ( ks != null || ts != null || location.isIgnoreHostnameVerification() )
+        // if user set either ks, ts, session settings, or want to ignore hostname verification (or the site is just
+        // HTTPS), we know this is a ssl factory and set it accordingly
+        if ( fingerprint != null )
         {
             logger.debug( "Setting up SSL context." );
             try
@@ -432,18 +958,23 @@ public class HttpFactory
                     sslBuilder.loadTrustMaterial( ts, trustType.getTrustStrategy() );
                 }
 
-                SSLContext ctx = sslBuilder.build();
-                if ( location.isIgnoreHostnameVerification() )
+                ctx = sslBuilder.build();
+
+                SSLSessionContext sessions = ctx.getClientSessionContext();
+                if ( location.getSslSessionCacheSize() != null )
                 {
-                    fac = new SSLConnectionSocketFactory( ctx, new NoopHostnameVerifier() );
+                    sessions.setSessionCacheSize( location.getSslSessionCacheSize() );
                 }
-                else
+
+                if ( location.getSslSessionTimeoutSeconds() != null )
                 {
-                    fac = new SSLConnectionSocketFactory( ctx, new DefaultHostnameVerifier() );
+                    sessions.setSessionTimeout( location.getSslSessionTimeoutSeconds() );
                 }
 
-                location.setAttribute( SSL_FACTORY_ATTRIB, fac );
-                return fac;
+                ctx = SslContextCache.put( fingerprint, ctx );
+
+                location.setAttribute( SSL_CONTEXT_ATTRIB, ctx );
+                return ctx;
             }
             catch ( final KeyManagementException e )
             {
@@ -495,6 +1026,10 @@ public class HttpFactory
         return connectionCache.isShutdown();
     }
 
+    /**
+     * Shut every connection pool down, aborting connections still leased. This is final: clients can't be created from
+     * this factory afterwards.
+     */
     @Override
     public boolean shutdownNow()
     {
@@ -1,14 +1,18 @@
 package org.commonjava.util.jhttpc;
 
 import org.apache.http.Header;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.commonjava.util.jhttpc.lifecycle.ShutdownEnabled;
 import org.commonjava.util.jhttpc.model.SiteConfig;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Interface extracted from {@link HttpFactory} in order to allow wrappers, such as those that add tracing.
@@ -22,6 +26,37 @@ public interface HttpFactoryIfc
 
     CloseableHttpClient createClient( SiteConfig location, List<Header> defaultHeaders ) throws JHttpCException;
 
+    /**
+     * Create a started, non-blocking client for the given site. Implementations that don't support async clients
+     * inherit this default, which refuses.
+     */
+    default CloseableHttpAsyncClient createAsyncClient( SiteConfig location ) throws JHttpCException
+    {
+        throw new JHttpCException( "Async clients are not supported by: %s", null, getClass().getName() );
+    }
+
+    /**
+     * Execute the request against the given site, and complete the returned future with the handler's result.
+     * Implementations without their own request executors inherit this default, which runs the request on the calling
+     * thread with a client from {@link #createClient(SiteConfig)}, and returns an already completed future.
+     */
+    default <T> CompletableFuture<T> execute( SiteConfig location, HttpUriRequest request,
+                                              ResponseHandler<? extends T> handler )
+            throws JHttpCException
+    {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        try (CloseableHttpClient client = createClient( location ))
+        {
+            future.complete( client.execute( request, handler, createContext( location ) ) );
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            future.completeExceptionally( e );
+        }
+
+        return future;
+    }
+
     HttpClientContext createContext() throws JHttpCException;
 
     HttpClientContext createContext( SiteConfig location ) throws JHttpCException;
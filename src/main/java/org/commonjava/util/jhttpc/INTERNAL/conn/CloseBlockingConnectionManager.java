@@ -16,31 +16,104 @@
 package org.commonjava.util.jhttpc.INTERNAL.conn;
 
 import org.apache.http.HttpClientConnection;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
 import org.apache.http.conn.ConnectionRequest;
 import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.ManagedHttpClientConnection;
 import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.protocol.HttpContext;
+import org.commonjava.util.jhttpc.INTERNAL.jfr.JfrEvents;
+import org.commonjava.util.jhttpc.metrics.ConnectionLeak;
+import org.commonjava.util.jhttpc.metrics.RequestTimings;
+import org.commonjava.util.jhttpc.metrics.SitePoolMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ssl.SSLSession;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 public class CloseBlockingConnectionManager
         implements HttpClientConnectionManager, Closeable
 {
 
+    /**
+     * Lease wait accumulated by the current thread since {@link #resetThreadLeaseWait()}, so a request can report its
+     * own pool wait (including any retries or redirects).
+     */
+    private static final ThreadLocal<long[]> THREAD_LEASE_WAIT = ThreadLocal.withInitial( () -> new long[1] );
+
     private final Logger logger = LoggerFactory.getLogger( getClass() );
 
     private final SiteConnectionConfig config;
 
     private final HttpClientConnectionManager connectionManager;
 
+    private final Semaphore quota;
+
+    private final ConnectionBudget budget;
+
+    private final SitePoolMetrics metrics;
+
+    private final int leakTraceSampleRate;
+
+    private final Map<HttpClientConnection, ConnectionLease> leases =
+            new ConcurrentHashMap<HttpClientConnection, ConnectionLease>();
+
+    /**
+     * Set by {@link #drain(Runnable)}; once set, new leases are refused and this is run after each release.
+     */
+    private volatile Runnable drainListener;
+
     public CloseBlockingConnectionManager( final SiteConnectionConfig config, final HttpClientConnectionManager connectionManager )
+    {
+        this( config, connectionManager, null, null, null, 0 );
+    }
+
+    /**
+     * Create a view of a connection pool shared with other sites, which lets this site lease at most as many
+     * connections as the quota has permits. Requests beyond that wait for one of this site's connections to be
+     * released, within the usual connection-request timeout.
+     */
+    public CloseBlockingConnectionManager( final SiteConnectionConfig config,
+                                           final HttpClientConnectionManager connectionManager, final Semaphore quota )
+    {
+        this( config, connectionManager, quota, null, null, 0 );
+    }
+
+    /**
+     * @param quota per-site limit within a shared pool, or null
+     * @param budget global limit across all site pools, or null
+     * @param metrics where to record lease / hold times for the site, or null to keep them private to this manager
+     * @param leakTraceSampleRate capture the lease stack trace for one in this many leases, for leak reports (less
+     * than one disables it)
+     */
+    public CloseBlockingConnectionManager( final SiteConnectionConfig config,
+                                           final HttpClientConnectionManager connectionManager, final Semaphore quota,
+                                           final ConnectionBudget budget, final SitePoolMetrics metrics,
+                                           final int leakTraceSampleRate )
     {
         this.config = config;
         this.connectionManager = connectionManager;
+        this.quota = quota;
+        this.budget = budget;
+        this.metrics = metrics == null ? new SitePoolMetrics( config.getId() ) : metrics;
+        this.leakTraceSampleRate = leakTraceSampleRate;
+    }
+
+    public SiteConnectionConfig getConfig()
+    {
+        return config;
     }
 
     @Override
@@ -52,7 +125,7 @@ public class CloseBlockingConnectionManager
         logger.trace( "Connection request is: {}",
                       request );
 
-        return request;
+        return new LimitedConnectionRequest( request, route );
     }
 
     @Override
@@ -60,7 +133,70 @@ public class CloseBlockingConnectionManager
                                    final TimeUnit timeUnit )
     {
         logger.trace( "Releasing connection: {} with new state: {}", conn, newState );
-        connectionManager.releaseConnection( conn, newState, validDuration, timeUnit );
+        ConnectionLease lease = leases.remove( conn );
+        if ( lease == null )
+        {
+            // already released, or reclaimed as a leak; the pool ignores connections it no longer has leased
+            logger.trace( "Connection: {} is not leased through this manager; not returning permits.", conn );
+            connectionManager.releaseConnection( conn, newState, validDuration, timeUnit );
+            return;
+        }
+
+        long held = System.nanoTime() - lease.getStartNanos();
+        metrics.recordRelease( held );
+        JfrEvents.connectionReleased( config.getId(), lease.getRoute(), held, conn.isOpen() );
+
+        try
+        {
+            if ( budget != null && conn.isOpen() && budget.hasWaitersOtherThan( config.getId() ) )
+            {
+                // other sites are starved for budget; close rather than pool, so they can open their own
+                logger.trace( "Closing released connection: {} to free global budget", conn );
+                try
+                {
+                    conn.close();
+                }
+                catch ( IOException e )
+                {
+                    logger.debug( "Failed to close released connection: " + conn, e );
+                }
+            }
+
+            connectionManager.releaseConnection( conn, newState, validDuration, timeUnit );
+        }
+        finally
+        {
+            if ( budget != null )
+            {
+                budget.release( config.getId() );
+            }
+
+            if ( quota != null )
+            {
+                quota.release();
+            }
+
+            Runnable listener = drainListener;
+            if ( listener != null )
+            {
+                listener.run();
+            }
+        }
+    }
+
+    /**
+     * Refuse any further leases, failing them with an {@link ExecutionException} (which the client reports as an
+     * aborted request), and run the given listener each time a leased connection is released, so the caller can tell
+     * when the last one is back. Leases already granted are unaffected.
+     */
+    public void drain( final Runnable onRelease )
+    {
+        drainListener = onRelease;
+    }
+
+    public boolean isDraining()
+    {
+        return drainListener != null;
     }
 
     @Override
@@ -69,7 +205,25 @@ public class CloseBlockingConnectionManager
             throws IOException
     {
         logger.trace( "Connecting: {} via route: {}", conn, route );
-        connectionManager.connect( conn, route, connectTimeout, context );
+        RequestTimings timings = RequestTimings.get( context );
+        if ( timings != null )
+        {
+            timings.markNewConnection();
+        }
+
+        long start = System.currentTimeMillis();
+        TimingDnsResolver.bind( timings );
+        try
+        {
+            connectionManager.connect( conn, route, connectTimeout, context );
+        }
+        finally
+        {
+            TimingDnsResolver.unbind();
+        }
+
+        metrics.recordNewConnection();
+        recordHandshake( conn, start );
     }
 
     @Override
@@ -77,7 +231,32 @@ public class CloseBlockingConnectionManager
             throws IOException
     {
         logger.trace( "Upgrading: {} via route: {}", conn, route );
+        long start = System.currentTimeMillis();
         connectionManager.upgrade( conn, route, context );
+        recordHandshake( conn, start );
+    }
+
+    /**
+     * Count a TLS handshake just performed on the connection (if it's secure) as full or resumed. A resumed session was
+     * created by an earlier handshake, so it predates this one. This is a heuristic: comparing session ids against the
+     * client session cache doesn't work, since a full handshake adds its session there too, and TLS 1.3 resumption
+     * hands out a copy with a fresh id. JSSE does carry the original creation time into those copies, so the only
+     * misses are resumptions within the millisecond the session was created, and providers that don't do the same.
+     */
+    private void recordHandshake( final HttpClientConnection conn, final long start )
+    {
+        if ( !( conn instanceof ManagedHttpClientConnection ) )
+        {
+            return;
+        }
+
+        SSLSession session = ( (ManagedHttpClientConnection) conn ).getSSLSession();
+        if ( session != null )
+        {
+            boolean resumed = session.getCreationTime() < start;
+            logger.trace( "TLS handshake for: {} was {}", config.getId(), resumed ? "resumed" : "full" );
+            metrics.recordHandshake( resumed );
+        }
     }
 
     @Override
@@ -102,6 +281,47 @@ public class CloseBlockingConnectionManager
         connectionManager.closeExpiredConnections();
     }
 
+    /**
+     * Close expired connections, plus any that have been idle longer than the given time (if it's greater than zero).
+     *
+     * @return the number of pooled connections closed. This is computed from the pool's available count before and
+     * after eviction, so it's approximate if connections are being leased concurrently.
+     */
+    public int evictConnections( final long idletime, final TimeUnit tunit )
+    {
+        PoolStats before = getTotalStats();
+
+        connectionManager.closeExpiredConnections();
+        if ( idletime > 0 )
+        {
+            connectionManager.closeIdleConnections( idletime, tunit );
+        }
+
+        PoolStats after = getTotalStats();
+        if ( before == null || after == null )
+        {
+            return 0;
+        }
+
+        int closed = before.getAvailable() - after.getAvailable();
+        logger.trace( "Evicted {} pooled connections for: {}", closed, config.getId() );
+
+        return closed < 0 ? 0 : closed;
+    }
+
+    /**
+     * @return the statistics for the underlying connection pool, or null if the wrapped manager doesn't expose them.
+     */
+    public PoolStats getTotalStats()
+    {
+        if ( connectionManager instanceof ConnPoolControl )
+        {
+            return ( (ConnPoolControl<?>) connectionManager ).getTotalStats();
+        }
+
+        return null;
+    }
+
     @Override
     public void shutdown()
     {
@@ -121,6 +341,112 @@ public class CloseBlockingConnectionManager
         reallyShutdown();
     }
 
+    /**
+     * @return the number of connections this site can still lease from a shared pool, or -1 if the pool isn't shared.
+     */
+    public int getAvailableQuota()
+    {
+        return quota == null ? -1 : quota.availablePermits();
+    }
+
+    public static void resetThreadLeaseWait()
+    {
+        THREAD_LEASE_WAIT.get()[0] = 0;
+    }
+
+    /**
+     * @return nanoseconds the current thread has spent waiting for connection leases since the last
+     * {@link #resetThreadLeaseWait()}
+     */
+    public static long getThreadLeaseWaitNanos()
+    {
+        return THREAD_LEASE_WAIT.get()[0];
+    }
+
+    /**
+     * @return lease-wait, hold-time and pool-saturation metrics for this site
+     */
+    public SitePoolMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * @return the number of connections currently leased through this manager
+     */
+    public int getLeasedCount()
+    {
+        return leases.size();
+    }
+
+    /**
+     * Find connections that have been leased for longer than the given threshold. Each one is logged (with its lease
+     * stack trace, if sampled) the first time it's found. If reclaim is set, leaked connections are shut down and
+     * returned to the pool, so they stop counting against the pool, site quota and global budget; whoever holds
+     * the response will get an I/O error on the next read.
+     *
+     * @return the leaked connections
+     */
+    public List<ConnectionLeak> detectLeaks( final long threshold, final TimeUnit unit, final boolean reclaim )
+    {
+        final long now = System.nanoTime();
+        final long thresholdNanos = unit.toNanos( threshold );
+
+        List<ConnectionLeak> leaks = new ArrayList<ConnectionLeak>();
+        for ( ConnectionLease lease : leases.values() )
+        {
+            long held = now - lease.getStartNanos();
+            if ( held < thresholdNanos )
+            {
+                continue;
+            }
+
+            if ( lease.markReported() )
+            {
+                metrics.recordLeak();
+                logger.warn( String.format( "Connection to: %s for site: %s has been leased by thread: %s for %dms "
+                                                    + "without being released. Is a response left unclosed?%s",
+                                            lease.getRoute(), config.getId(), lease.getThreadName(),
+                                            TimeUnit.NANOSECONDS.toMillis( held ), lease.getAllocation() == null ?
+                                                    " (Lease stack trace was not sampled.)" :
+                                                    "" ), lease.getAllocation() );
+            }
+
+            boolean reclaimed = reclaim && reclaim( lease );
+
+            Throwable allocation = lease.getAllocation();
+            leaks.add( new ConnectionLeak( config.getId(), String.valueOf( lease.getRoute() ), lease.getThreadName(),
+                                           held, allocation == null ? null : allocation.getStackTrace(),
+                                           reclaimed ) );
+        }
+
+        return leaks;
+    }
+
+    private boolean reclaim( final ConnectionLease lease )
+    {
+        HttpClientConnection conn = lease.getConnection();
+        if ( !leases.containsKey( conn ) )
+        {
+            return false;
+        }
+
+        logger.warn( "Reclaiming leaked connection to: {} for site: {}", lease.getRoute(), config.getId() );
+        try
+        {
+            conn.shutdown();
+        }
+        catch ( IOException e )
+        {
+            logger.debug( "Failed to shut down leaked connection: " + conn, e );
+        }
+
+        releaseConnection( conn, null, 0, TimeUnit.MILLISECONDS );
+        metrics.recordReclaim();
+
+        return true;
+    }
+
     @Override
     public String toString()
     {
@@ -130,4 +456,150 @@ public class CloseBlockingConnectionManager
                 "\ninstance=" + super.hashCode() +
                 "\n}";
     }
+
+    /**
+     * Applies the site quota and the global budget (when set), in that order, before leasing from the pool, and records
+     * the lease in the site metrics. Permits are given back if the lease fails, or when the connection is released.
+     */
+    private final class LimitedConnectionRequest
+            implements ConnectionRequest
+    {
+        private final ConnectionRequest delegate;
+
+        private final HttpRoute route;
+
+        LimitedConnectionRequest( final ConnectionRequest delegate, final HttpRoute route )
+        {
+            this.delegate = delegate;
+            this.route = route;
+        }
+
+        @Override
+        public HttpClientConnection get( final long timeout, final TimeUnit tunit )
+                throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException
+        {
+            if ( drainListener != null )
+            {
+                throw new ExecutionException( new IllegalStateException(
+                        "Connection pool for site: " + config.getId() + " is shutting down" ) );
+            }
+
+            final long deadline = timeout > 0 ? System.nanoTime() + tunit.toNanos( timeout ) : 0;
+            final Throwable allocation = sampleAllocation();
+
+            boolean quotaHeld = false;
+            boolean budgetHeld = false;
+            boolean leased = false;
+            boolean reused = false;
+            final Object jfrEvent = JfrEvents.beginLease();
+            final long start = System.nanoTime();
+            try
+            {
+                if ( quota != null )
+                {
+                    if ( deadline == 0 )
+                    {
+                        quota.acquire();
+                    }
+                    else if ( !quota.tryAcquire( remainingNanos( deadline ), TimeUnit.NANOSECONDS ) )
+                    {
+                        metrics.recordLeaseTimeout( false );
+                        throw new ConnectionPoolTimeoutException(
+                                "Timeout waiting for a connection within the quota for site: " + config.getId() );
+                    }
+
+                    quotaHeld = true;
+                }
+
+                if ( budget != null )
+                {
+                    long budgetStart = System.nanoTime();
+                    boolean granted = budget.acquire( config.getId(), deadline == 0 ? 0 : remainingNanos( deadline ),
+                                                      TimeUnit.NANOSECONDS );
+                    metrics.recordBudgetWait( System.nanoTime() - budgetStart );
+
+                    if ( !granted )
+                    {
+                        metrics.recordLeaseTimeout( true );
+                        logger.debug( "Timed out waiting for global connection budget for: {}. Budget: {}",
+                                      config.getId(), budget );
+                        throw new ConnectionPoolTimeoutException(
+                                "Timeout waiting for the global connection budget, for site: " + config.getId() );
+                    }
+
+                    budgetHeld = true;
+                }
+
+                long poolTimeout =
+                        deadline == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis( remainingNanos( deadline ) ) + 1;
+
+                HttpClientConnection conn;
+                try
+                {
+                    conn = delegate.get( poolTimeout, TimeUnit.MILLISECONDS );
+                }
+                catch ( ConnectionPoolTimeoutException e )
+                {
+                    metrics.recordLeaseTimeout( false );
+                    throw e;
+                }
+
+                long now = System.nanoTime();
+                THREAD_LEASE_WAIT.get()[0] += now - start;
+
+                // pooled connections come back bound to their socket; fresh ones aren't open until connect()
+                reused = conn.isOpen();
+                if ( !reused && budget != null )
+                {
+                    // a new connection counts against the budget alongside the idle ones pooled elsewhere
+                    budget.trimIdle();
+                }
+
+                metrics.recordLease( now - start, reused );
+                leases.put( conn, new ConnectionLease( conn, route, now, Thread.currentThread().getName(),
+                                                       allocation ) );
+
+                leased = true;
+                return conn;
+            }
+            finally
+            {
+                JfrEvents.endLease( jfrEvent, config.getId(), route, reused, leased );
+                if ( !leased )
+                {
+                    if ( budgetHeld )
+                    {
+                        budget.release( config.getId() );
+                    }
+
+                    if ( quotaHeld )
+                    {
+                        quota.release();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel()
+        {
+            return delegate.cancel();
+        }
+
+        private Throwable sampleAllocation()
+        {
+            if ( leakTraceSampleRate < 1 || ( leakTraceSampleRate > 1
+                    && ThreadLocalRandom.current().nextInt( leakTraceSampleRate ) != 0 ) )
+            {
+                return null;
+            }
+
+            return new Throwable( "Connection leased here" );
+        }
+
+        private long remainingNanos( final long deadline )
+        {
+            return Math.max( 1, deadline - System.nanoTime() );
+        }
+    }
 }
@@ -0,0 +1,389 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.conn;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caps the number of connections leased at once across all site pools of a {@link ConnectionManagerCache}, and keeps
+ * the connections those pools (and the async and HTTP/2 backends) hold idle within the same capacity; see
+ * {@link #trimIdle()}.
+ * <p>
+ * Each active site (one with connections leased or waiting) is guaranteed a fair share of the capacity, i.e. the
+ * capacity divided by the number of active sites. A busy site may borrow beyond its share while capacity is free and no
+ * site below its share is waiting; once one is, released capacity goes to the waiting site first.
+ */
+public final class ConnectionBudget
+{
+    private final int capacity;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition released = lock.newCondition();
+
+    private final Map<String, SiteShare> shares = new HashMap<String, SiteShare>();
+
+    private int leased;
+
+    private int waiting;
+
+    private final LongAdder waitCount = new LongAdder();
+
+    private final LongAdder waitNanos = new LongAdder();
+
+    private final LongAdder timeoutCount = new LongAdder();
+
+    private final LongAdder trimmedCount = new LongAdder();
+
+    private volatile IdleConnections idleConnections;
+
+    public ConnectionBudget( final int capacity )
+    {
+        if ( capacity < 1 )
+        {
+            throw new IllegalArgumentException( "Connection budget must be at least 1, was: " + capacity );
+        }
+
+        this.capacity = capacity;
+    }
+
+    /**
+     * Wait for a lease permit for the given site.
+     *
+     * @param timeout maximum time to wait; values less than one wait indefinitely
+     * @return true if a permit was granted, false if the timeout elapsed first
+     */
+    public boolean acquire( final String siteId, final long timeout, final TimeUnit unit )
+            throws InterruptedException
+    {
+        final long start = System.nanoTime();
+        long nanos = unit.toNanos( timeout );
+        boolean waited = false;
+        boolean granted = false;
+
+        lock.lockInterruptibly();
+        try
+        {
+            SiteShare share = shares.computeIfAbsent( siteId, id -> new SiteShare() );
+            share.waiting++;
+            waiting++;
+            try
+            {
+                while ( !canLease( share ) )
+                {
+                    waited = true;
+                    if ( timeout < 1 )
+                    {
+                        released.await();
+                    }
+                    else if ( nanos <= 0 )
+                    {
+                        timeoutCount.increment();
+                        return false;
+                    }
+                    else
+                    {
+                        nanos = released.awaitNanos( nanos );
+                    }
+                }
+
+                share.leased++;
+                leased++;
+                granted = true;
+                return true;
+            }
+            finally
+            {
+                share.waiting--;
+                waiting--;
+                if ( share.isIdle() )
+                {
+                    shares.remove( siteId );
+                }
+
+                if ( !granted )
+                {
+                    // a site below its fair share giving up may unblock borrowers
+                    released.signalAll();
+                }
+
+                if ( waited )
+                {
+                    waitCount.increment();
+                    waitNanos.add( System.nanoTime() - start );
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return a permit granted by {@link #acquire(String, long, TimeUnit)}.
+     */
+    public void release( final String siteId )
+    {
+        lock.lock();
+        try
+        {
+            SiteShare share = shares.get( siteId );
+            if ( share == null || share.leased < 1 )
+            {
+                return;
+            }
+
+            share.leased--;
+            leased--;
+            if ( share.isIdle() )
+            {
+                shares.remove( siteId );
+            }
+
+            released.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Set the idle connections held open by the pools this budget covers, so they count against the capacity too.
+     */
+    public void setIdleConnections( final IdleConnections idleConnections )
+    {
+        this.idleConnections = idleConnections;
+    }
+
+    /**
+     * Close idle connections while the leased plus idle connections exceed the capacity. Called whenever a lease is
+     * about to open a new connection rather than reuse an idle one, and by the idle sweep for connections opened by
+     * the async and HTTP/2 backends, which don't lease through this budget.
+     *
+     * @return the number of idle connections closed
+     */
+    public int trimIdle()
+    {
+        IdleConnections idle = idleConnections;
+        if ( idle == null )
+        {
+            return 0;
+        }
+
+        // counted outside our lock, since counting takes each pool's own lock
+        int excess = getLeased() + idle.count() - capacity;
+        if ( excess < 1 )
+        {
+            return 0;
+        }
+
+        int closed = idle.close( excess );
+        trimmedCount.add( closed );
+        return closed;
+    }
+
+    /**
+     * @return true if any site other than the given one is waiting for a permit. Connections released while this is
+     * true are better closed than pooled, so the waiting site can open its own.
+     */
+    public boolean hasWaitersOtherThan( final String siteId )
+    {
+        lock.lock();
+        try
+        {
+            for ( Map.Entry<String, SiteShare> entry : shares.entrySet() )
+            {
+                if ( entry.getValue().waiting > 0 && !entry.getKey().equals( siteId ) )
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // called with the lock held
+    private boolean canLease( final SiteShare share )
+    {
+        if ( leased >= capacity )
+        {
+            return false;
+        }
+
+        int fairShare = getFairShareLocked();
+        if ( share.leased < fairShare )
+        {
+            return true;
+        }
+
+        for ( SiteShare other : shares.values() )
+        {
+            if ( other != share && other.waiting > 0 && other.leased < fairShare )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private int getFairShareLocked()
+    {
+        return Math.max( 1, capacity / Math.max( 1, shares.size() ) );
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public int getLeased()
+    {
+        lock.lock();
+        try
+        {
+            return leased;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public int getWaiting()
+    {
+        lock.lock();
+        try
+        {
+            return waiting;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of sites currently holding or waiting for permits
+     */
+    public int getActiveSites()
+    {
+        lock.lock();
+        try
+        {
+            return shares.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the share of the capacity each active site is guaranteed right now
+     */
+    public int getFairShare()
+    {
+        lock.lock();
+        try
+        {
+            return getFairShareLocked();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of lease requests that had to wait for a permit
+     */
+    public long getWaitCount()
+    {
+        return waitCount.sum();
+    }
+
+    /**
+     * @return total time lease requests spent waiting for permits, in milliseconds
+     */
+    public long getWaitMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis( waitNanos.sum() );
+    }
+
+    /**
+     * @return the number of lease requests that timed out waiting for a permit
+     */
+    public long getTimeoutCount()
+    {
+        return timeoutCount.sum();
+    }
+
+    /**
+     * @return the number of idle connections closed to keep open connections within the capacity
+     */
+    public long getTrimmedCount()
+    {
+        return trimmedCount.sum();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ConnectionBudget{capacity=" + capacity + ", leased=" + getLeased() + ", waiting=" + getWaiting()
+                + ", activeSites=" + getActiveSites() + ", waitCount=" + getWaitCount() + ", waitMillis="
+                + getWaitMillis() + ", timeouts=" + getTimeoutCount() + ", trimmed=" + getTrimmedCount() + '}';
+    }
+
+    /**
+     * Idle connections held open by the pools a budget covers.
+     */
+    public interface IdleConnections
+    {
+        int count();
+
+        /**
+         * Close at least the given number of idle connections, if there are that many.
+         *
+         * @return the number actually closed
+         */
+        int close( int connections );
+    }
+
+    private static final class SiteShare
+    {
+        private int leased;
+
+        private int waiting;
+
+        private boolean isIdle()
+        {
+            return leased < 1 && waiting < 1;
+        }
+    }
+}
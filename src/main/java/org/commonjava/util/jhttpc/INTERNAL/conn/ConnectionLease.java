@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.conn;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Book-keeping for one connection leased through a {@link CloseBlockingConnectionManager}.
+ */
+final class ConnectionLease
+{
+    private final HttpClientConnection connection;
+
+    private final HttpRoute route;
+
+    private final long startNanos;
+
+    private final String threadName;
+
+    private final Throwable allocation;
+
+    private final AtomicBoolean reported = new AtomicBoolean( false );
+
+    /**
+     * @param allocation captured where the lease was requested, or null if this lease isn't sampled
+     */
+    ConnectionLease( final HttpClientConnection connection, final HttpRoute route, final long startNanos,
+                     final String threadName, final Throwable allocation )
+    {
+        this.connection = connection;
+        this.route = route;
+        this.startNanos = startNanos;
+        this.threadName = threadName;
+        this.allocation = allocation;
+    }
+
+    HttpClientConnection getConnection()
+    {
+        return connection;
+    }
+
+    HttpRoute getRoute()
+    {
+        return route;
+    }
+
+    long getStartNanos()
+    {
+        return startNanos;
+    }
+
+    String getThreadName()
+    {
+        return threadName;
+    }
+
+    Throwable getAllocation()
+    {
+        return allocation;
+    }
+
+    /**
+     * @return true the first time it's called, so each leak is only logged once
+     */
+    boolean markReported()
+    {
+        return reported.compareAndSet( false, true );
+    }
+}
@@ -15,24 +15,52 @@
  */
 package org.commonjava.util.jhttpc.INTERNAL.conn;
 
+import org.apache.commons.io.FileUtils;
+import org.commonjava.util.jhttpc.INTERNAL.util.SharedExecutors;
 import org.commonjava.util.jhttpc.JHttpCException;
 import org.commonjava.util.jhttpc.lifecycle.ShutdownEnabled;
+import org.commonjava.util.jhttpc.metrics.ConnectionLeak;
+import org.commonjava.util.jhttpc.metrics.ConnectionMetricsRegistry;
+import org.commonjava.util.jhttpc.metrics.EventSink;
+import org.commonjava.util.jhttpc.metrics.HoneycombEventSink;
+import org.commonjava.util.jhttpc.metrics.RequestEventExporter;
+import org.commonjava.util.jhttpc.model.HttpFactoryConfig;
+import org.commonjava.util.jhttpc.model.HttpFactoryConfigBuilder;
+import org.commonjava.util.jhttpc.model.SiteConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Function;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static org.apache.commons.codec.digest.DigestUtils.sha256Hex;
 
 /**
  * Created by jdcasey on 11/3/15.
@@ -40,30 +68,575 @@ import java.util.function.Function;
 public class ConnectionManagerCache
         implements ShutdownEnabled
 {
-    private static final long EXPIRATION_SECONDS = 30;
+    /**
+     * Domain of the MBeans registered when {@link HttpFactoryConfig#isJmxEnabled()} is set.
+     */
+    public static final String JMX_DOMAIN = "org.commonjava.util.jhttpc";
+
+    private final ConcurrentMap<SiteConnectionConfig, ConnectionManagerTracker> cache =
+            new ConcurrentHashMap<SiteConnectionConfig, ConnectionManagerTracker>();
+
+    private final HttpFactoryConfig factoryConfig;
+
+    private final ConnectionBudget budget;
+
+    private final ConnectionMetricsRegistry metrics = new ConnectionMetricsRegistry();
+
+    private final ConcurrentMap<String, RequestEventExporter> eventExporters =
+            new ConcurrentHashMap<String, RequestEventExporter>();
+
+    private final List<ScheduledFuture<?>> housekeeping = new ArrayList<ScheduledFuture<?>>();
+
+    private final AtomicInteger lastReapedConnections = new AtomicInteger( 0 );
+
+    private final AtomicReference<SharedAsyncBackend> asyncBackend = new AtomicReference<SharedAsyncBackend>();
+
+    /**
+     * Held while evicting pools over {@link HttpFactoryConfig#getMaxLivePools()}, so concurrent creations don't each
+     * evict a pool for the same excess.
+     */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final AtomicLong evictedPools = new AtomicLong( 0 );
+
+    private final Consumer<SiteConfig> pemReloader;
+
+    /**
+     * SHA-256 of the PEM file contents last passed to the reloader, per site id, so a reload still pending (or one that
+     * failed) isn't queued again until the files change once more.
+     */
+    private final ConcurrentMap<String, String> attemptedPems = new ConcurrentHashMap<String, String>();
+
+    private volatile List<ConnectionLeak> lastLeaks = Collections.emptyList();
 
-    private static final long EXPIRATION_MILLIS = TimeUnit.MILLISECONDS.convert( EXPIRATION_SECONDS, TimeUnit.SECONDS );
+    private final ReentrantLock shutdownLock = new ReentrantLock();
 
-    private final Map<SiteConnectionConfig, ConnectionManagerTracker> cache =
-            new HashMap<SiteConnectionConfig, ConnectionManagerTracker>();
+    private volatile boolean closed;
 
-    private final Timer timer = new Timer( "jhttpc-connection-manager-cache", true );
+    private static final AtomicInteger JMX_COUNTER = new AtomicInteger( 0 );
+
+    /**
+     * Serializes MBean registration, so a replaced pool's late unregistration can't remove its replacement's MBean.
+     */
+    private final ReentrantLock jmxLock = new ReentrantLock();
+
+    private final Map<ObjectName, ConnectionManagerTracker> registeredPools =
+            new HashMap<ObjectName, ConnectionManagerTracker>();
+
+    private final String jmxName;
+
+    private volatile ObjectName cacheObjectName;
 
     private final Logger logger = LoggerFactory.getLogger( getClass() );
 
     public ConnectionManagerCache()
     {
-        timer.scheduleAtFixedRate( new ExpirationSweeper( this ), EXPIRATION_MILLIS, EXPIRATION_MILLIS );
+        this( new HttpFactoryConfigBuilder().build() );
+    }
+
+    public ConnectionManagerCache( final HttpFactoryConfig factoryConfig )
+    {
+        this( factoryConfig, null );
+    }
+
+    /**
+     * @param pemReloader if not null, called (on a housekeeping thread) with each live site whose key / certificate PEM
+     * files have changed, every {@link HttpFactoryConfig#getPemCheckSeconds()}. See {@link #checkPemFiles()}.
+     */
+    public ConnectionManagerCache( final HttpFactoryConfig factoryConfig, final Consumer<SiteConfig> pemReloader )
+    {
+        this.factoryConfig = factoryConfig;
+        this.pemReloader = pemReloader;
+
+        int globalMax = factoryConfig.getGlobalMaxConnections();
+        this.budget = globalMax > 0 ? new ConnectionBudget( globalMax ) : null;
+        if ( budget != null )
+        {
+            budget.setIdleConnections( new PooledIdleConnections() );
+        }
+
+        if ( factoryConfig.isJmxEnabled() )
+        {
+            String name = factoryConfig.getJmxName();
+            this.jmxName = name == null ? "jhttpc-" + JMX_COUNTER.incrementAndGet() : name;
+            this.cacheObjectName = registerMBean( jmxObjectName( "ConnectionManagerCache", null ),
+                                                  new ManagedConnectionManagerCache( this ) );
+        }
+        else
+        {
+            this.jmxName = null;
+        }
+
+        ScheduledExecutorService executor = factoryConfig.getHousekeepingExecutor();
+        if ( executor == null )
+        {
+            executor = SharedExecutors.getHousekeepingExecutor();
+        }
+
+        schedule( executor, new ExpirationSweeper( this ), factoryConfig.getTrackerExpirationSeconds() );
+        schedule( executor, new IdleConnectionReaper( this ), factoryConfig.getIdleSweepSeconds() );
+        schedule( executor, new WarmConnectionKeeper( this ), factoryConfig.getIdleSweepSeconds() );
+        schedule( executor, new StatsSnapshotter( this ), factoryConfig.getStatsSnapshotSeconds() );
+
+        int leakSeconds = factoryConfig.getLeakDetectionSeconds();
+        if ( leakSeconds > 0 )
+        {
+            schedule( executor, new LeakDetector( this ), Math.max( 1, leakSeconds / 2 ) );
+        }
+
+        if ( pemReloader != null )
+        {
+            schedule( executor, new PemFileWatcher( this ), factoryConfig.getPemCheckSeconds() );
+        }
+    }
+
+    private void schedule( final ScheduledExecutorService executor, final HousekeepingTask task, final long seconds )
+    {
+        if ( seconds > 0 )
+        {
+            housekeeping.add( executor.scheduleWithFixedDelay( task, seconds, seconds, TimeUnit.SECONDS ) );
+        }
+    }
+
+    public HttpFactoryConfig getFactoryConfig()
+    {
+        return factoryConfig;
+    }
+
+    /**
+     * @return the connection budget shared by all site pools, or null if there's no global connection limit
+     */
+    public ConnectionBudget getConnectionBudget()
+    {
+        return budget;
+    }
+
+    /**
+     * @return the live trackers, one per connection pool
+     */
+    public Collection<ConnectionManagerTracker> getTrackers()
+    {
+        return Collections.unmodifiableCollection( cache.values() );
+    }
+
+    /**
+     * @return per-site connection-pool metrics for all sites this cache has managed
+     */
+    public ConnectionMetricsRegistry getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * @return the exporter for the given site's request events, or null if metrics aren't enabled for it or there's
+     * nowhere to send them. Sites that send to the same Honeycomb dataset with the same write key share an exporter.
+     */
+    public RequestEventExporter getEventExporter( final SiteConfig site )
+    {
+        if ( site == null || !site.isMetricEnabled() )
+        {
+            return null;
+        }
+
+        final EventSink customSink = factoryConfig.getEventSink();
+        if ( customSink != null )
+        {
+            return eventExporters.computeIfAbsent( "", ( key ) -> new RequestEventExporter( customSink ) );
+        }
+
+        final String dataset = site.getHoneycombDataset();
+        final String writeKey = site.getHoneycombWriteKey();
+        if ( dataset == null || writeKey == null )
+        {
+            logger.debug( "Metrics are enabled for site: {}, but it has no Honeycomb dataset / write key.",
+                          site.getId() );
+            return null;
+        }
+
+        return eventExporters.computeIfAbsent( dataset + '\n' + writeKey, ( key ) -> {
+            try
+            {
+                return new RequestEventExporter(
+                        new HoneycombEventSink( factoryConfig.getHoneycombUrl(), dataset, writeKey ) );
+            }
+            catch ( IOException e )
+            {
+                logger.warn( "Cannot send request events for site: " + site.getId() + ": " + e.getMessage(), e );
+                return null;
+            }
+        } );
+    }
+
+    /**
+     * @return the started NIO backend shared by the async clients of every site, or null if none has been built yet
+     */
+    public SharedAsyncBackend getAsyncBackend()
+    {
+        return asyncBackend.get();
+    }
+
+    /**
+     * Offer a newly built (not yet started) async backend to be shared by every site. The winning backend is started
+     * and returned; a losing backend is closed.
+     */
+    public SharedAsyncBackend setAsyncBackend( final SharedAsyncBackend backend )
+    {
+        if ( asyncBackend.compareAndSet( null, backend ) )
+        {
+            backend.start();
+            return backend;
+        }
+
+        backend.close();
+        return asyncBackend.get();
+    }
+
+    /**
+     * Record a {@link org.apache.http.pool.PoolStats} snapshot for each live tracker.
+     */
+    public void snapshotStats()
+    {
+        for ( ConnectionManagerTracker tracker : cache.values() )
+        {
+            tracker.snapshotStats();
+        }
+
+        if ( budget != null )
+        {
+            logger.debug( "Global connection budget: {}", budget );
+        }
+    }
+
+    /**
+     * Close expired and idle pooled connections for all live trackers, using each site's idle timeout.
+     *
+     * @return the number of connections closed
+     */
+    public int closeIdleConnections()
+    {
+        int total = 0;
+        for ( ConnectionManagerTracker tracker : cache.values() )
+        {
+            int closed = tracker.closeIdleConnections();
+            if ( closed > 0 )
+            {
+                logger.debug( "Closed {} idle / expired connections for: {}", closed, tracker.getSiteConfig() );
+            }
+
+            total += closed;
+        }
+
+        SharedAsyncBackend backend = asyncBackend.get();
+        if ( backend != null )
+        {
+            backend.closeIdleConnections( SiteConfig.DEFAULT_IDLE_CONNECTION_TIMEOUT_SECONDS, TimeUnit.SECONDS );
+        }
+
+        if ( budget != null )
+        {
+            // the async and HTTP/2 backends open connections without leasing from the budget
+            total += budget.trimIdle();
+        }
+
+        lastReapedConnections.set( total );
+        return total;
+    }
+
+    /**
+     * Idle connections of every live pool and the shared async backend, closed a whole pool at a time, least recently
+     * used pool first, so the busiest pools keep their warm connections longest.
+     */
+    private final class PooledIdleConnections
+            implements ConnectionBudget.IdleConnections
+    {
+        @Override
+        public int count()
+        {
+            int idle = 0;
+            for ( ConnectionManagerTracker tracker : cache.values() )
+            {
+                idle += tracker.getIdleConnectionCount();
+            }
+
+            SharedAsyncBackend backend = asyncBackend.get();
+            return backend == null ? idle : idle + backend.getTotalStats().getAvailable();
+        }
+
+        @Override
+        public int close( final int connections )
+        {
+            List<ConnectionManagerTracker> trackers = new ArrayList<ConnectionManagerTracker>( cache.values() );
+            trackers.sort( Comparator.comparingLong( ConnectionManagerTracker::getLastRetrieval ) );
+
+            int closed = 0;
+            for ( ConnectionManagerTracker tracker : trackers )
+            {
+                if ( closed >= connections )
+                {
+                    return closed;
+                }
+
+                closed += tracker.closeAllIdleConnections();
+            }
+
+            SharedAsyncBackend backend = asyncBackend.get();
+            if ( closed < connections && backend != null )
+            {
+                int before = backend.getTotalStats().getAvailable();
+                backend.closeIdleConnections( 0, TimeUnit.MILLISECONDS );
+                closed += Math.max( 0, before - backend.getTotalStats().getAvailable() );
+            }
+
+            logger.debug( "Closed {} idle connections to stay within the global connection budget", closed );
+            return closed;
+        }
+    }
+
+    /**
+     * Queue a top-up, on the shared prewarm executor, for each live pool with a site that sets
+     * {@link SiteConfig#getWarmConnections()}.
+     *
+     * @return the number of pools queued
+     */
+    public int keepWarm()
+    {
+        int queued = 0;
+        for ( ConnectionManagerTracker tracker : cache.values() )
+        {
+            if ( tracker.isKeptWarm() && !tracker.isClosed() )
+            {
+                try
+                {
+                    SharedExecutors.getPrewarmExecutor().execute( tracker::keepWarm );
+                    queued++;
+                }
+                catch ( RejectedExecutionException e )
+                {
+                    logger.warn( "Cannot queue connection prewarm for: {}. Reason: {}", tracker.getPoolId(),
+                                 e.getMessage() );
+                }
+            }
+        }
+
+        return queued;
+    }
+
+    /**
+     * Compare the key / certificate PEM files of each live, unshared site against the PEMs its pool was built from,
+     * and pass the sites whose files changed to the reloader given at construction. Each version of a site's files is
+     * passed only once: while its reload is pending, or after it failed, the site is skipped until the files change
+     * again. Files that can't be read are skipped (with a warning) until the next check, so a file caught mid-write is
+     * picked up once it's complete.
+     *
+     * @return the number of sites passed to the reloader
+     */
+    public int checkPemFiles()
+    {
+        if ( pemReloader == null )
+        {
+            return 0;
+        }
+
+        int changed = 0;
+        Set<String> checked = new HashSet<String>();
+        for ( ConnectionManagerTracker tracker : cache.values() )
+        {
+            if ( tracker.isClosed() || tracker.getConnectionConfig().isSharedPool() )
+            {
+                continue;
+            }
+
+            SiteConfig site = tracker.getSiteConfig();
+            checked.add( site.getId() );
+
+            String keyCertPem;
+            String serverCertPem;
+            try
+            {
+                keyCertPem = readPem( site.getKeyCertPemFile(), site.getKeyCertPem() );
+                serverCertPem = readPem( site.getServerCertPemFile(), site.getServerCertPem() );
+            }
+            catch ( IOException e )
+            {
+                logger.warn( "Cannot read PEM files of: {}. Reason: {}", site.getId(), e.getMessage() );
+                continue;
+            }
+
+            if ( Objects.equals( keyCertPem, site.getKeyCertPem() ) && Objects.equals( serverCertPem,
+                                                                                      site.getServerCertPem() ) )
+            {
+                // up to date, whether reloaded or never changed
+                attemptedPems.remove( site.getId() );
+                continue;
+            }
+
+            String attempt = sha256Hex( keyCertPem + "\n--\n" + serverCertPem );
+            if ( attempt.equals( attemptedPems.put( site.getId(), attempt ) ) )
+            {
+                logger.trace( "Reload of the current PEM files of: {} is pending or has failed.", site.getId() );
+                continue;
+            }
+
+            logger.info( "PEM files changed for: {}. Reloading TLS material.", site.getId() );
+            pemReloader.accept( site );
+            changed++;
+        }
+
+        attemptedPems.keySet().retainAll( checked );
+        return changed;
+    }
+
+    /**
+     * @return the current contents of the PEM file, or the given PEM if there's no file
+     */
+    private String readPem( final File file, final String pem )
+            throws IOException
+    {
+        return file == null ? pem : FileUtils.readFileToString( file, "UTF-8" );
+    }
+
+    /**
+     * @return the number of connections closed by the most recent idle-connection sweep
+     */
+    public int getLastReapedConnectionCount()
+    {
+        return lastReapedConnections.get();
+    }
+
+    /**
+     * Look for connections leased longer than {@link HttpFactoryConfig#getLeakDetectionSeconds()} in all live
+     * trackers, logging each one the first time it's found, and reclaiming it if
+     * {@link HttpFactoryConfig#isLeakReclaimEnabled()} is set. Does nothing if leak detection is disabled.
+     *
+     * @return the connections currently leaked
+     */
+    public List<ConnectionLeak> detectLeaks()
+    {
+        int threshold = factoryConfig.getLeakDetectionSeconds();
+        if ( threshold < 1 )
+        {
+            return Collections.emptyList();
+        }
+
+        List<ConnectionLeak> leaks = new ArrayList<ConnectionLeak>();
+        for ( ConnectionManagerTracker tracker : cache.values() )
+        {
+            for ( CloseBlockingConnectionManager manager : tracker.getConnectionManagers() )
+            {
+                leaks.addAll( manager.detectLeaks( threshold, TimeUnit.SECONDS,
+                                                   factoryConfig.isLeakReclaimEnabled() ) );
+            }
+        }
+
+        lastLeaks = Collections.unmodifiableList( leaks );
+        return lastLeaks;
     }
 
-    public synchronized void expireTrackersOlderThan( long duration, TimeUnit unit )
+    /**
+     * @return the leaked connections found by the most recent leak-detection sweep
+     */
+    public List<ConnectionLeak> getConnectionLeaks()
+    {
+        return lastLeaks;
+    }
+
+    /**
+     * If there are more live trackers than {@link HttpFactoryConfig#getMaxLivePools()}, shut down the least recently
+     * retrieved ones that have no users until the excess is gone. Trackers in use are skipped, so this may leave the
+     * cache over the limit. Does nothing if there's no limit, or another thread is already evicting.
+     *
+     * @return the number of trackers shut down
+     */
+    public int evictLeastRecentlyUsed()
+    {
+        int max = factoryConfig.getMaxLivePools();
+        if ( max < 1 || cache.size() <= max || !evictionLock.tryLock() )
+        {
+            return 0;
+        }
+
+        try
+        {
+            int excess = cache.size() - max;
+            List<ConnectionManagerTracker> idle = cache.values()
+                                                       .stream()
+                                                       .filter( ( tracker ) -> !tracker.isActive()
+                                                               && !tracker.isClosed() )
+                                                       .sorted( Comparator.comparingLong(
+                                                               ConnectionManagerTracker::getLastRetrieval ) )
+                                                       .collect( Collectors.toList() );
+
+            int evicted = 0;
+            for ( ConnectionManagerTracker tracker : idle )
+            {
+                if ( evicted >= excess )
+                {
+                    break;
+                }
+
+                // fails if a client acquired the tracker since the snapshot; it stays live for the next pass
+                if ( tracker.detach() )
+                {
+                    metrics.remove( tracker.getSiteConfig().getId() );
+                    tracker.getQuotaSiteIds().forEach( metrics::remove );
+
+                    logger.debug( "Evicted least recently used connection pool: {} ({} live pools, limit {}).",
+                                  tracker.getPoolId(), cache.size(), max );
+                    evicted++;
+                }
+            }
+
+            if ( evicted < excess )
+            {
+                logger.debug( "{} live connection pools exceed the limit of {}, but the rest are in use.",
+                              cache.size(), max );
+            }
+
+            evictedPools.addAndGet( evicted );
+            return evicted;
+        }
+        finally
+        {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of trackers shut down so far for exceeding {@link HttpFactoryConfig#getMaxLivePools()}
+     */
+    public long getEvictedPoolCount()
+    {
+        return evictedPools.get();
+    }
+
+    /**
+     * @return the sum of {@link ConnectionManagerTracker#estimateMemoryBytes()} over the live trackers, plus the shared
+     * async backend's connections and the per-site metrics
+     */
+    public long estimateMemoryBytes()
+    {
+        long bytes = 0;
+        for ( ConnectionManagerTracker tracker : cache.values() )
+        {
+            bytes += tracker.estimateMemoryBytes();
+        }
+
+        SharedAsyncBackend backend = asyncBackend.get();
+        if ( backend != null )
+        {
+            bytes += backend.estimateMemoryBytes();
+        }
+
+        return bytes + metrics.estimateMemoryBytes();
+    }
+
+    public void expireTrackersOlderThan( long duration, TimeUnit unit )
     {
         long expiration = System.currentTimeMillis() - TimeUnit.MILLISECONDS.convert( duration, unit );
 
-        for ( SiteConnectionConfig config : new HashSet<SiteConnectionConfig>( cache.keySet() ) )
+        for ( ConnectionManagerTracker tracker : cache.values() )
         {
-            ConnectionManagerTracker tracker = cache.get( config );
-            if ( tracker != null && tracker.getLastRetrieval() < expiration )
+            if ( tracker.getLastRetrieval() < expiration )
             {
                 if ( tracker.detach() )
                 {
@@ -74,20 +647,72 @@ public class ConnectionManagerCache
                     logger.trace( "Detaching did not result in shutdown for: {}. Try shutdownNow() to forcibly shutdown.", tracker );
                 }
             }
+            else
+            {
+                int sites = tracker.expireSitesOlderThan( expiration );
+                if ( sites > 0 )
+                {
+                    logger.trace( "Forgot {} unused sites of: {}", sites, tracker );
+                }
+            }
         }
     }
 
-    public synchronized ConnectionManagerTracker getTrackerFor( SiteConnectionConfig config )
-            throws JHttpCException
+    /**
+     * @return the live tracker for the given config, or null if there is none. Unlike
+     * {@link #getTrackerFor(SiteConnectionConfig)}, this neither creates a tracker nor registers a user of it.
+     */
+    public ConnectionManagerTracker getLiveTracker( final SiteConnectionConfig config )
     {
         ConnectionManagerTracker tracker = cache.get( config );
-        if ( tracker == null )
+        return tracker == null || tracker.isClosed() ? null : tracker;
+    }
+
+    /**
+     * Retrieve the tracker for the given site, creating it if necessary, and register a new user of its connection
+     * manager (see {@link ConnectionManagerTracker#acquire()}). The caller is responsible for calling
+     * {@link ConnectionManagerTracker#release()} when finished.
+     * <p>
+     * Lookups of an existing tracker don't lock anything. If the tracker found has been closed concurrently (by the
+     * expiration sweep or a shutdown), it's replaced atomically and the lookup retried. Creating a tracker may evict
+     * idle ones, if that puts the cache over {@link HttpFactoryConfig#getMaxLivePools()}.
+     *
+     * @throws JHttpCException if this cache has been shut down
+     */
+    public ConnectionManagerTracker getTrackerFor( SiteConnectionConfig config )
+            throws JHttpCException
+    {
+        while ( true )
         {
-            tracker = new ConnectionManagerTracker( config, this );
-            cache.put( config, tracker );
-        }
+            if ( closed )
+            {
+                throw new JHttpCException( "Connection manager cache is shut down. Cannot create a connection pool "
+                                                   + "for: %s", null, config.getId() );
+            }
 
-        return tracker.retrieved();
+            boolean created = false;
+            ConnectionManagerTracker tracker = cache.get( config );
+            if ( tracker == null )
+            {
+                tracker = cache.computeIfAbsent( config,
+                                                 ( c ) -> registerPool( new ConnectionManagerTracker( c, this ) ) );
+                created = true;
+            }
+
+            if ( tracker.acquire() != null )
+            {
+                if ( created )
+                {
+                    // after acquiring, so the new tracker is in use and can't be evicted itself
+                    evictLeastRecentlyUsed();
+                }
+
+                return tracker.retrieved();
+            }
+
+            logger.trace( "Replacing closed connection tracker: {}", tracker );
+            remove( config, tracker );
+        }
     }
 
     @Override
@@ -101,12 +726,18 @@ public class ConnectionManagerCache
         return true;
     }
 
+    /**
+     * Shut every tracker down at once, aborting any connections still leased. Like
+     * {@link #shutdownGracefully(long)}, this is final: housekeeping stops and no trackers are handed out afterwards,
+     * so {@link #getTrackerFor(SiteConnectionConfig)} throws and a new cache (or factory) is needed to start over. Use
+     * {@link ConnectionManagerTracker#shutdownNow()} to reset a single pool instead.
+     */
     @Override
     public boolean shutdownNow()
     {
         try
         {
-            return doShutdown( (tracker) -> tracker.shutdownNow() );
+            return doShutdown( ConnectionManagerTracker::shutdownNow, false );
         }
         catch ( InterruptedException e )
         {
@@ -116,89 +747,376 @@ public class ConnectionManagerCache
         return false;
     }
 
-    private synchronized boolean doShutdown( Function<ConnectionManagerTracker, Boolean> shutdownAction )
+    /**
+     * Stop handing out trackers, drain every live tracker at once, then shut each one down as soon as its last leased
+     * connection is released. Connections still leased are logged per site while waiting. Trackers that haven't
+     * drained when the timeout expires are left draining; {@link #shutdownNow()} aborts them.
+     *
+     * @return false if any tracker timed out
+     */
+    @Override
+    public boolean shutdownGracefully( final long timeoutMillis )
+            throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+        return doShutdown( ( tracker ) -> tracker.shutdownGracefully(
+                Math.max( 0, TimeUnit.NANOSECONDS.toMillis( deadline - System.nanoTime() ) ) ), true );
+    }
+
+    /**
+     * @return true once {@link #shutdownNow()} or {@link #shutdownGracefully(long)} has been called; no new trackers are
+     * handed out after that
+     */
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    private boolean doShutdown( final TrackerShutdown shutdownAction, final boolean drain )
             throws InterruptedException
     {
-        AtomicInteger counter = new AtomicInteger( 0 );
-        ExecutorService exec = Executors.newCachedThreadPool( ( runnable ) -> {
-            Thread t = new Thread( runnable );
-            t.setDaemon( true );
-            t.setName( "jHTTPc shutdown-" + ( counter.getAndIncrement() ) + ":" + Thread.currentThread().getName() );
-            t.setPriority( 9 );
+        shutdownLock.lock();
+        try
+        {
+            closed = true;
+            housekeeping.forEach( ( future ) -> future.cancel( false ) );
 
-            return t;
-        } );
+            return shutdownTrackers( shutdownAction, drain );
+        }
+        finally
+        {
+            closeEventExporters();
+
+            SharedAsyncBackend backend = asyncBackend.getAndSet( null );
+            if ( backend != null )
+            {
+                backend.close();
+            }
 
-        ExecutorCompletionService<Boolean> svc = new ExecutorCompletionService<>( exec );
-        cache.forEach( ( config, tracker ) -> svc.submit( () -> shutdownAction.apply( tracker ) ) );
+            ObjectName name = cacheObjectName;
+            if ( name != null )
+            {
+                cacheObjectName = null;
+                unregisterMBean( name );
+            }
+
+            shutdownLock.unlock();
+        }
+    }
+
+    private void closeEventExporters()
+    {
+        for ( String key : eventExporters.keySet() )
+        {
+            RequestEventExporter exporter = eventExporters.remove( key );
+            if ( exporter != null )
+            {
+                try
+                {
+                    exporter.close();
+                }
+                catch ( IOException e )
+                {
+                    logger.warn( "Failed to close request event exporter: " + exporter, e );
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the shutdown action for each tracker in turn, on the calling thread. When draining, every tracker starts
+     * draining before any is waited on, so their leases are released concurrently and the total wait is bounded by the
+     * slowest tracker rather than the sum.
+     */
+    private boolean shutdownTrackers( final TrackerShutdown shutdownAction, final boolean drain )
+            throws InterruptedException
+    {
+        List<ConnectionManagerTracker> trackers = new ArrayList<ConnectionManagerTracker>( cache.values() );
+        if ( drain )
+        {
+            trackers.forEach( ConnectionManagerTracker::startDrain );
+            logger.info( "Draining {} connection pools. Leased connections: {}", trackers.size(),
+                         trackers.stream().mapToInt( ConnectionManagerTracker::getLeasedCount ).sum() );
+        }
 
         boolean result = true;
-        while ( counter.getAndDecrement() > 0 )
+        for ( ConnectionManagerTracker tracker : trackers )
         {
             try
             {
-                result = result && svc.take().get();
+                result = shutdownAction.shutdown( tracker ) && result;
             }
-            catch ( ExecutionException e )
+            catch ( RuntimeException e )
             {
-                logger.warn( "Error executing shutdown of connection managers." );
+                logger.warn( "Error shutting down connection manager: " + tracker.getPoolId(), e );
                 result = false;
             }
         }
 
-        timer.cancel();
-
         return result;
     }
 
-    @Override
-    public boolean shutdownGracefully( final long timeoutMillis )
-            throws InterruptedException
+    /**
+     * Shutdown step for a single tracker.
+     */
+    @FunctionalInterface
+    private interface TrackerShutdown
     {
-        AtomicBoolean interrupted = new AtomicBoolean( false );
-        boolean result = doShutdown( ( tracker ) -> {
-            try
+        boolean shutdown( ConnectionManagerTracker tracker )
+                throws InterruptedException;
+    }
+
+    void remove( final SiteConnectionConfig config, final ConnectionManagerTracker tracker )
+    {
+        if ( cache.remove( config, tracker ) )
+        {
+            unregisterPool( tracker );
+        }
+    }
+
+    private ConnectionManagerTracker registerPool( final ConnectionManagerTracker tracker )
+    {
+        if ( jmxName == null )
+        {
+            return tracker;
+        }
+
+        ObjectName name = jmxObjectName( "SitePool", tracker.getPoolId() );
+        if ( name == null )
+        {
+            return tracker;
+        }
+
+        jmxLock.lock();
+        try
+        {
+            if ( registeredPools.remove( name ) != null )
             {
-                return tracker.shutdownGracefully( timeoutMillis );
+                unregisterMBean( name );
             }
-            catch ( InterruptedException e )
+
+            if ( registerMBean( name, new ManagedSitePool( tracker ) ) != null )
             {
-                interrupted.set( true );
+                registeredPools.put( name, tracker );
             }
+        }
+        finally
+        {
+            jmxLock.unlock();
+        }
 
-            return false;
-        } );
+        return tracker;
+    }
 
-        if ( interrupted.get() )
+    private void unregisterPool( final ConnectionManagerTracker tracker )
+    {
+        if ( jmxName == null )
         {
-            throw new InterruptedException();
+            return;
         }
 
-        return result;
+        ObjectName name = jmxObjectName( "SitePool", tracker.getPoolId() );
+        jmxLock.lock();
+        try
+        {
+            if ( name != null && registeredPools.remove( name, tracker ) )
+            {
+                unregisterMBean( name );
+            }
+        }
+        finally
+        {
+            jmxLock.unlock();
+        }
     }
 
-    synchronized void remove( final SiteConnectionConfig config )
+    private ObjectName jmxObjectName( final String type, final String poolId )
     {
-        cache.remove( config );
+        String name = JMX_DOMAIN + ":type=" + type + ",name=" + ObjectName.quote( jmxName );
+        if ( poolId != null )
+        {
+            name += ",pool=" + ObjectName.quote( poolId );
+        }
+
+        try
+        {
+            return new ObjectName( name );
+        }
+        catch ( MalformedObjectNameException e )
+        {
+            logger.warn( "Cannot create JMX name: " + name + ": " + e.getMessage(), e );
+            return null;
+        }
     }
 
-    static final class ExpirationSweeper
-            extends TimerTask
+    private ObjectName registerMBean( final ObjectName name, final Object mbean )
     {
+        if ( name == null )
+        {
+            return null;
+        }
 
-        private ConnectionManagerCache cache;
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean( mbean, name );
+            logger.debug( "Registered MBean: {}", name );
+            return name;
+        }
+        catch ( JMException e )
+        {
+            logger.warn( "Failed to register MBean: " + name + ": " + e.getMessage(), e );
+            return null;
+        }
+    }
 
-        public ExpirationSweeper( ConnectionManagerCache cache )
+    private void unregisterMBean( final ObjectName name )
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean( name );
+        }
+        catch ( InstanceNotFoundException e )
+        {
+            logger.trace( "MBean: {} was already unregistered.", name );
+        }
+        catch ( JMException e )
+        {
+            logger.warn( "Failed to unregister MBean: " + name + ": " + e.getMessage(), e );
+        }
+    }
+
+    /**
+     * Base for scheduled housekeeping. Exceptions are logged rather than propagated, since a scheduled executor silently
+     * stops running any task that throws.
+     */
+    abstract static class HousekeepingTask
+            implements Runnable
+    {
+        protected final ConnectionManagerCache cache;
+
+        HousekeepingTask( ConnectionManagerCache cache )
         {
             this.cache = cache;
         }
 
         @Override
-        public void run()
+        public final void run()
+        {
+            try
+            {
+                sweep();
+            }
+            catch ( RuntimeException e )
+            {
+                LoggerFactory.getLogger( getClass() ).error( "Connection housekeeping failed: " + e.getMessage(), e );
+            }
+        }
+
+        protected abstract void sweep();
+    }
+
+    static final class ExpirationSweeper
+            extends HousekeepingTask
+    {
+
+        public ExpirationSweeper( ConnectionManagerCache cache )
+        {
+            super( cache );
+        }
+
+        @Override
+        protected void sweep()
         {
             Logger logger = LoggerFactory.getLogger( getClass() );
             logger.trace( "Sweeping for old connection trackers." );
-            cache.expireTrackersOlderThan( EXPIRATION_SECONDS, TimeUnit.SECONDS );
+            cache.expireTrackersOlderThan( cache.getFactoryConfig().getTrackerExpirationSeconds(), TimeUnit.SECONDS );
+        }
+    }
+
+    static final class IdleConnectionReaper
+            extends HousekeepingTask
+    {
+
+        public IdleConnectionReaper( ConnectionManagerCache cache )
+        {
+            super( cache );
+        }
+
+        @Override
+        protected void sweep()
+        {
+            Logger logger = LoggerFactory.getLogger( getClass() );
+            logger.trace( "Sweeping for idle / expired pooled connections." );
+            int closed = cache.closeIdleConnections();
+            logger.debug( "Idle connection sweep closed {} connections.", closed );
+        }
+    }
+
+    static final class WarmConnectionKeeper
+            extends HousekeepingTask
+    {
+
+        public WarmConnectionKeeper( ConnectionManagerCache cache )
+        {
+            super( cache );
+        }
+
+        @Override
+        protected void sweep()
+        {
+            int queued = cache.keepWarm();
+            LoggerFactory.getLogger( getClass() ).trace( "Queued {} connection pools to be kept warm.", queued );
+        }
+    }
+
+    static final class StatsSnapshotter
+            extends HousekeepingTask
+    {
+
+        public StatsSnapshotter( ConnectionManagerCache cache )
+        {
+            super( cache );
+        }
+
+        @Override
+        protected void sweep()
+        {
+            cache.snapshotStats();
+        }
+    }
+
+    static final class LeakDetector
+            extends HousekeepingTask
+    {
+
+        public LeakDetector( ConnectionManagerCache cache )
+        {
+            super( cache );
+        }
+
+        @Override
+        protected void sweep()
+        {
+            List<ConnectionLeak> leaks = cache.detectLeaks();
+            LoggerFactory.getLogger( getClass() ).trace( "Leak detection found {} leased connections past the threshold.",
+                                                         leaks.size() );
+        }
+    }
+
+    static final class PemFileWatcher
+            extends HousekeepingTask
+    {
+
+        public PemFileWatcher( ConnectionManagerCache cache )
+        {
+            super( cache );
+        }
+
+        @Override
+        protected void sweep()
+        {
+            int changed = cache.checkPemFiles();
+            LoggerFactory.getLogger( getClass() ).trace( "PEM file check found {} sites to reload.", changed );
         }
     }
 }
@@ -19,31 +19,159 @@ import org.apache.http.HttpResponse;
 import org.apache.http.config.ConnectionConfig;
 import org.apache.http.config.MessageConstraints;
 import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.impl.io.DefaultHttpResponseParser;
 import org.apache.http.io.HttpMessageParser;
 import org.apache.http.io.HttpMessageParserFactory;
 import org.apache.http.io.SessionInputBuffer;
+import org.apache.http.pool.PoolStats;
+import org.commonjava.util.jhttpc.INTERNAL.jfr.JfrEvents;
+import org.commonjava.util.jhttpc.INTERNAL.util.VirtualThreadSupport;
 import org.commonjava.util.jhttpc.lifecycle.ShutdownEnabled;
+import org.commonjava.util.jhttpc.metrics.SitePoolMetrics;
+import org.commonjava.util.jhttpc.model.HttpFactoryConfig;
 import org.commonjava.util.jhttpc.model.SiteConfig;
+import org.commonjava.util.jhttpc.model.SiteHttpVersion;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
 /**
  * Created by jdcasey on 11/3/15.
  */
 public class ConnectionManagerTracker
         implements ShutdownEnabled
 {
-    private SiteConnectionConfig config;
+    /**
+     * Marker value for {@link #users} once the tracker has been closed. Any further acquire() attempts will fail, and
+     * the cache will replace this tracker with a fresh one.
+     */
+    private static final int CLOSED = Integer.MIN_VALUE / 2;
+
+    /**
+     * Rough heap cost of a pool with no connections: the pool and its route maps, connection managers, socket factory
+     * registry and request executor.
+     */
+    static final long POOL_OVERHEAD_BYTES = 16 * 1024;
+
+    /**
+     * Rough heap cost of an open connection, beyond its session buffers: the socket, pool entry and connection objects.
+     */
+    static final long CONNECTION_OVERHEAD_BYTES = 2 * 1024;
+
+    /**
+     * Rough heap cost of the TLS record buffers of an open HTTPS connection (one inbound and one outbound packet).
+     */
+    static final long TLS_CONNECTION_BYTES = 2 * 16 * 1024 + 1024;
+
+    /**
+     * Rough heap cost of a cached HttpClient, with its exec chain and handlers.
+     */
+    static final long CLIENT_BYTES = 8 * 1024;
+
+    /**
+     * How often {@link #shutdownGracefully(long)} logs the connections it's still waiting for.
+     */
+    private static final long DRAIN_PROGRESS_MILLIS = 1000;
+
+    /**
+     * Requests waiting for a thread in a site's request executor, per connection the site allows (see
+     * {@link SiteConfig#getMaxConnections()}). Requests beyond that are rejected rather than queued, so overload fails
+     * fast instead of growing the heap.
+     */
+    public static final int QUEUED_REQUESTS_PER_CONNECTION = 64;
+
+    private final SiteConnectionConfig config;
+
+    private final ConnectionManagerCache managerCache;
+
+    /**
+     * Guards lazy creation of the pool and request executor. This is a lock rather than a monitor so virtual threads
+     * creating clients don't pin their carrier threads.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private volatile CloseBlockingConnectionManager manager;
+
+    private final AtomicInteger users = new AtomicInteger( 0 );
+
+    private volatile boolean detached;
+
+    private volatile long lastRetrieval;
+
+    private volatile PoolStats lastStats;
+
+    private volatile PoolingHttpClientConnectionManager pool;
+
+    private volatile Supplier<PoolStats> poolStats;
+
+    private final Map<String, CloseBlockingConnectionManager> siteManagers =
+            new ConcurrentHashMap<String, CloseBlockingConnectionManager>();
+
+    private final Map<String, SiteQuota> siteQuotas = new ConcurrentHashMap<String, SiteQuota>();
+
+    /**
+     * Latest settings for sites reconfigured via {@link #reconfigure(SiteConfig)}, by site id.
+     */
+    private final Map<String, SiteConfig> reconfiguredSites = new ConcurrentHashMap<String, SiteConfig>();
+
+    private final Map<String, CloseableHttpClient> sharedClients = new ConcurrentHashMap<String, CloseableHttpClient>();
+
+    private final AtomicReference<SharedAsyncBackend.TlsBinding> asyncTls =
+            new AtomicReference<SharedAsyncBackend.TlsBinding>();
+
+    private final Map<String, Http2SiteClient> http2Clients = new ConcurrentHashMap<String, Http2SiteClient>();
+
+    private final Map<String, ExecutorService> requestExecutors = new ConcurrentHashMap<String, ExecutorService>();
+
+    /**
+     * When each site leasing through a per-site quota last asked for it, so sites that stop using a shared pool can be
+     * forgotten; see {@link #expireSitesOlderThan(long)}.
+     */
+    private final Map<String, Long> siteRetrievals = new ConcurrentHashMap<String, Long>();
+
+    private final AtomicBoolean warming = new AtomicBoolean( false );
 
-    private ConnectionManagerCache managerCache;
+    private volatile boolean draining;
 
-    private CloseBlockingConnectionManager manager;
-    private int users = 0;
-    private boolean detached;
-    private long lastRetrieval;
+    /**
+     * Signalled as leased connections are released while draining; see {@link #awaitDrain(long)}.
+     */
+    private final ReentrantLock drainLock = new ReentrantLock();
+
+    private final Condition released = drainLock.newCondition();
+
+    private final Set<CompletableFuture<?>> pendingFutures =
+            ConcurrentHashMap.<CompletableFuture<?>>newKeySet();
 
     public ConnectionManagerTracker( SiteConnectionConfig config, ConnectionManagerCache managerCache )
     {
@@ -51,14 +179,57 @@ public class ConnectionManagerTracker
         this.managerCache = managerCache;
     }
 
-    public synchronized CloseBlockingConnectionManager acquire()
+    /**
+     * Register a new user of this tracker's connection manager, creating the manager if necessary.
+     *
+     * @return the connection manager, or null if this tracker has already been closed (or is draining for shutdown) and
+     * must be replaced.
+     */
+    public CloseBlockingConnectionManager acquire()
     {
-        if ( manager == null )
+        if ( draining )
+        {
+            return null;
+        }
+
+        int current;
+        do
+        {
+            current = users.get();
+            if ( current < 0 )
+            {
+                return null;
+            }
+        }
+        while ( !users.compareAndSet( current, current + 1 ) );
+
+        detached = false;
+
+        CloseBlockingConnectionManager result = manager;
+        if ( result == null )
         {
+            result = createManager();
+        }
+
+        return result;
+    }
+
+    private CloseBlockingConnectionManager createManager()
+    {
+        lock.lock();
+        try
+        {
+            if ( manager != null )
+            {
+                return manager;
+            }
+
             Logger logger = LoggerFactory.getLogger( getClass() );
             logger.info( "Creating connection pool for: {} with {} connections.", config.getId(),
                          config.getMaxConnections() );
 
+            Object jfrEvent = JfrEvents.beginPoolCreation();
+
 //            ManagedHttpClientConnectionFactory fac =
 //                    new ManagedHttpClientConnectionFactory( new BestEffortResponseParserFactory() );
 
@@ -66,7 +237,8 @@ public class ConnectionManagerTracker
                     new ManagedHttpClientConnectionFactory( new ResponseParserFactory() );
 
             PoolingHttpClientConnectionManager poolingMgr =
-                    new PoolingHttpClientConnectionManager( config.getSocketFactoryRegistry(), fac );
+                    new PoolingHttpClientConnectionManager( config.getSocketFactoryRegistry(), fac,
+                                                            new TimingDnsResolver() );
 
 //            PoolingHttpClientConnectionManager poolingMgr =
 //                    new PoolingHttpClientConnectionManager( config.getSocketFactoryRegistry() );
@@ -86,47 +258,909 @@ public class ConnectionManagerTracker
                 poolingMgr.setDefaultSocketConfig( socketConfig );
             }
 
-            manager = new CloseBlockingConnectionManager( config, poolingMgr );
+            pool = poolingMgr;
+            poolStats = poolingMgr::getTotalStats;
+            manager = new CloseBlockingConnectionManager( config, poolingMgr, null, managerCache.getConnectionBudget(),
+                                                          bindMetrics( config.getId() ), getLeakTraceSampleRate() );
+            if ( draining )
+            {
+                manager.drain( this::leaseReleased );
+            }
+
+            JfrEvents.endPoolCreation( jfrEvent, config.getId(), config.getMaxConnections(), config.isSharedPool() );
+            return manager;
+        }
+        finally
+        {
+            lock.unlock();
         }
+    }
 
-        detached = false;
-        users++;
+    /**
+     * @return the connection manager handed out by {@link #acquire()}, or null if none has been created yet.
+     */
+    public CloseBlockingConnectionManager getConnectionManager()
+    {
         return manager;
     }
 
-    public synchronized void release()
+    /**
+     * @return the connection manager the given site should lease through. For a pool shared between sites (see
+     * {@link SiteConnectionConfig#withSharedPool(String)}) this is a per-site view that limits the site to
+     * {@link SiteConfig#getMaxConnections()} leased connections, and the shared pool grows to fit the quotas of all its
+     * sites. Otherwise, it's the same as {@link #getConnectionManager()}.
+     */
+    public CloseBlockingConnectionManager getConnectionManager( final SiteConfig site )
+    {
+        CloseBlockingConnectionManager shared = manager;
+        if ( shared == null )
+        {
+            shared = createManager();
+        }
+
+        if ( site == null || !config.isSharedPool() )
+        {
+            return shared;
+        }
+
+        siteRetrievals.put( site.getId(), System.currentTimeMillis() );
+        CloseBlockingConnectionManager view = siteManagers.get( site.getId() );
+        if ( view != null )
+        {
+            return view;
+        }
+
+        lock.lock();
+        try
+        {
+            view = siteManagers.get( site.getId() );
+            if ( view == null )
+            {
+                SiteConfig current = reconfiguredSites.get( site.getId() );
+                SiteConfig viewSite = current == null ? site : current;
+
+                SiteQuota quota = new SiteQuota( viewSite.getMaxConnections() );
+                siteQuotas.put( site.getId(), quota );
+                view = new CloseBlockingConnectionManager( new SiteConnectionConfig( viewSite ), pool, quota,
+                                                           managerCache.getConnectionBudget(),
+                                                           bindMetrics( site.getId() ), getLeakTraceSampleRate() );
+                if ( draining )
+                {
+                    view.drain( this::leaseReleased );
+                }
+                siteManagers.put( site.getId(), view );
+                resizeSharedPool();
+            }
+
+            return view;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the manager and per-site views created so far, for sweeps that look at every lease (e.g. leak detection).
+     */
+    public List<CloseBlockingConnectionManager> getConnectionManagers()
+    {
+        List<CloseBlockingConnectionManager> managers = new ArrayList<CloseBlockingConnectionManager>();
+        CloseBlockingConnectionManager shared = manager;
+        if ( shared != null )
+        {
+            managers.add( shared );
+        }
+
+        managers.addAll( siteManagers.values() );
+        return managers;
+    }
+
+    private int getLeakTraceSampleRate()
+    {
+        HttpFactoryConfig factoryConfig = managerCache.getFactoryConfig();
+        return factoryConfig.getLeakDetectionSeconds() > 0 ? factoryConfig.getLeakTraceSampleRate() : 0;
+    }
+
+    /**
+     * Point the site's metrics gauges at this tracker's pool. For a shared pool, every site reports the whole pool.
+     */
+    private SitePoolMetrics bindMetrics( final String siteId )
+    {
+        return managerCache.getMetrics().bind( siteId, poolStats );
+    }
+
+    private void unbindMetrics( final String siteId )
+    {
+        SitePoolMetrics metrics = managerCache.getMetrics().getSiteMetrics( siteId );
+        if ( metrics != null )
+        {
+            metrics.unbindPoolStats( poolStats );
+        }
+    }
+
+    private void resizeSharedPool()
+    {
+        int maxTotal = 0;
+        int maxPerRoute = 0;
+        for ( CloseBlockingConnectionManager view : siteManagers.values() )
+        {
+            maxTotal += view.getConfig().getMaxConnections();
+            maxPerRoute += view.getConfig().getMaxPerRoute();
+        }
+
+        maxTotal = Math.max( maxTotal, config.getMaxConnections() );
+        maxPerRoute = Math.max( maxPerRoute, config.getMaxPerRoute() );
+
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        logger.info( "Resizing shared connection pool: {} for {} sites to {} connections ({} per route).",
+                     config.getPoolKey(), siteManagers.size(), maxTotal, maxPerRoute );
+
+        pool.setMaxTotal( maxTotal );
+        pool.setDefaultMaxPerRoute( maxPerRoute );
+    }
+
+    /**
+     * Apply the given site's pool sizing, socket config, connection config and timeouts to this tracker, without tearing
+     * down its pool. Connections already pooled stay open; leases beyond a lowered limit wait until enough connections
+     * are released. The site's cached shared client is dropped so the next one is built with the new timeouts, and
+     * clients already handed out pick up the new timeouts from their next request.
+     *
+     * @return false if this tracker has been closed
+     */
+    public boolean reconfigure( final SiteConfig site )
+    {
+        lock.lock();
+        try
+        {
+            if ( isClosed() )
+            {
+                return false;
+            }
+
+            Logger logger = LoggerFactory.getLogger( getClass() );
+            logger.info( "Reconfiguring connection pool for: {} to {} connections ({} per route).", site.getId(),
+                         site.getMaxConnections(), site.getMaxPerRoute() );
+
+            reconfiguredSites.put( site.getId(), site );
+
+            boolean owner = config.getId().equals( site.getId() );
+            if ( owner )
+            {
+                config.update( site );
+            }
+
+            CloseBlockingConnectionManager view = siteManagers.get( site.getId() );
+            if ( view != null )
+            {
+                view.getConfig().update( site );
+                siteQuotas.get( site.getId() ).resize( site.getMaxConnections() );
+            }
+
+            // clients already built on the old delegate may still be executing, and it holds nothing but the pool,
+            // so it's dropped rather than closed.
+            sharedClients.remove( site.getId() );
+
+            PoolingHttpClientConnectionManager p = pool;
+            if ( p != null )
+            {
+                if ( config.isSharedPool() )
+                {
+                    resizeSharedPool();
+                }
+                else
+                {
+                    p.setMaxTotal( site.getMaxConnections() );
+                    p.setDefaultMaxPerRoute( site.getMaxPerRoute() );
+                }
+
+                if ( site.getSocketConfig() != null )
+                {
+                    p.setDefaultSocketConfig( site.getSocketConfig() );
+                }
+
+                if ( site.getConnectionConfig() != null )
+                {
+                    p.setDefaultConnectionConfig( site.getConnectionConfig() );
+                }
+            }
+
+            ExecutorService exec = requestExecutors.get( site.getId() );
+            if ( exec instanceof ThreadPoolExecutor )
+            {
+                resizeRequestExecutor( (ThreadPoolExecutor) exec, site.getMaxConnections() );
+            }
+            else if ( exec instanceof ThreadPerTaskExecutor )
+            {
+                ( (ThreadPerTaskExecutor) exec ).resize( site.getMaxConnections() );
+            }
+
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Switch new connections of this pool to the given TLS material, built from the site's reloaded key / certificate
+     * PEMs, without tearing down the pool. Connections already open keep their TLS session until they're closed as
+     * usual (idle sweep, or the server closing them), so requests in flight are unaffected. Async requests get a new
+     * TLS binding, whose user token keeps them off connections made with the old material; those are left to the idle
+     * sweep. The site's HTTP/2 backend is replaced by one built for the new material, and the old one is closed once
+     * its requests in flight have completed. Shared pools are never swapped, since their TLS material is part of the
+     * pool key.
+     *
+     * @param factory the socket factory for new blocking connections
+     * @param sslContext the context it was built from, or null for the JVM default
+     * @return false if this tracker has been closed, or its pool is shared
+     */
+    public boolean swapTls( final SiteConfig site, final SSLConnectionSocketFactory factory,
+                            final SSLContext sslContext, final HostnameVerifier hostnameVerifier )
+    {
+        lock.lock();
+        try
+        {
+            if ( isClosed() || config.isSharedPool() )
+            {
+                return false;
+            }
+
+            Logger logger = LoggerFactory.getLogger( getClass() );
+            logger.info( "Swapping TLS material of connection pool for: {}", site.getId() );
+
+            config.swapSSLConnectionSocketFactory( factory );
+            config.update( site );
+
+            // the cached delegate holds nothing but the pool, but drop it anyway so the next one is built for the
+            // updated site.
+            sharedClients.remove( site.getId() );
+
+            // bound even if no async client has been created yet, since clients created from the site's old config
+            // would otherwise bind its cached, outdated context
+            asyncTls.set( SharedAsyncBackend.bindTls( sslContext, hostnameVerifier ) );
+
+            if ( site.getHttpVersion() == SiteHttpVersion.HTTP_2 || http2Clients.containsKey( site.getId() ) )
+            {
+                Http2SiteClient replacement = Http2SiteClient.build( site, sslContext, hostnameVerifier );
+                replacement.start();
+
+                Http2SiteClient retired = http2Clients.put( site.getId(), replacement );
+                if ( retired != null )
+                {
+                    retired.retire();
+                }
+            }
+
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void resizeRequestExecutor( final ThreadPoolExecutor exec, final int threads )
+    {
+        // the core size can't exceed the maximum at any point
+        if ( threads > exec.getMaximumPoolSize() )
+        {
+            exec.setMaximumPoolSize( threads );
+            exec.setCorePoolSize( threads );
+        }
+        else
+        {
+            exec.setCorePoolSize( threads );
+            exec.setMaximumPoolSize( threads );
+        }
+    }
+
+    /**
+     * Make sure at least the given number of connections to the site are open (leased or idle in the pool), opening
+     * the shortfall now. This blocks while connecting, so callers run it in the background. Sites reached through a
+     * proxy aren't prewarmed.
+     *
+     * @return the number of connections opened
+     */
+    public int prewarm( final SiteConfig site, final int connections )
+    {
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        if ( site.getProxyHost() != null )
+        {
+            logger.debug( "Not prewarming connections for: {}, which uses a proxy.", site.getId() );
+            return 0;
+        }
+
+        HttpRoute route;
+        try
+        {
+            route = PoolPrewarmer.routeFor( site );
+        }
+        catch ( MalformedURLException e )
+        {
+            logger.warn( "Cannot prewarm connections for: {}. Invalid URL: {}", site.getId(), site.getUri() );
+            return 0;
+        }
+
+        CloseBlockingConnectionManager mgr = getConnectionManager( site );
+        PoolingHttpClientConnectionManager p = pool;
+        if ( isClosed() || p == null )
+        {
+            return 0;
+        }
+
+        int wanted = Math.min( connections, Math.min( site.getMaxConnections(), site.getMaxPerRoute() ) );
+        PoolStats stats = p.getStats( route );
+
+        // leases come from idle connections first, so leasing all but those in use tops the route up to the target
+        int toLease = wanted - stats.getLeased();
+        if ( toLease <= stats.getAvailable() )
+        {
+            return 0;
+        }
+
+        logger.debug( "Prewarming {} connections for: {} ({} leased, {} idle).", wanted, site.getId(),
+                      stats.getLeased(), stats.getAvailable() );
+
+        return PoolPrewarmer.prewarm( mgr, route, site, toLease );
+    }
+
+    /**
+     * Top up the pool to {@link SiteConfig#getWarmConnections()} for each of its sites that sets it, unless a previous
+     * top-up is still running or the pool is detached. Doesn't count as a retrieval, so warm pools still expire when
+     * unused.
+     *
+     * @return the number of connections opened
+     */
+    public int keepWarm()
+    {
+        if ( detached || isClosed() || pool == null || !warming.compareAndSet( false, true ) )
+        {
+            return 0;
+        }
+
+        try
+        {
+            int opened = 0;
+            if ( config.isSharedPool() )
+            {
+                for ( CloseBlockingConnectionManager view : siteManagers.values() )
+                {
+                    SiteConfig site = view.getConfig().getConfig();
+                    if ( site.getWarmConnections() > 0 )
+                    {
+                        opened += prewarm( site, site.getWarmConnections() );
+                    }
+                }
+            }
+            else
+            {
+                SiteConfig site = config.getConfig();
+                if ( site.getWarmConnections() > 0 )
+                {
+                    opened += prewarm( site, site.getWarmConnections() );
+                }
+            }
+
+            return opened;
+        }
+        finally
+        {
+            warming.set( false );
+        }
+    }
+
+    /**
+     * @return true if any site of this pool sets {@link SiteConfig#getWarmConnections()}
+     */
+    public boolean isKeptWarm()
+    {
+        if ( config.isSharedPool() )
+        {
+            return siteManagers.values()
+                               .stream()
+                               .anyMatch( ( view ) -> view.getConfig().getConfig().getWarmConnections() > 0 );
+        }
+
+        return config.getConfig().getWarmConnections() > 0;
+    }
+
+    /**
+     * Estimate the heap held by this tracker: a fixed overhead for the pool, plus the session buffers (see
+     * {@link ConnectionConfig#getBufferSize()}), socket and TLS state of each open connection, plus any cached clients.
+     * This is an approximation for capacity planning, not a measurement.
+     *
+     * @return the estimated size in bytes, or zero if this tracker has been closed
+     */
+    public long estimateMemoryBytes()
+    {
+        if ( isClosed() )
+        {
+            return 0;
+        }
+
+        long bytes = POOL_OVERHEAD_BYTES;
+
+        PoolingHttpClientConnectionManager p = pool;
+        if ( p != null )
+        {
+            PoolStats stats = p.getTotalStats();
+            int open = stats.getLeased() + stats.getAvailable();
+
+            ConnectionConfig connectionConfig = config.getConnectionConfig();
+            int bufferSize = connectionConfig == null ? ConnectionConfig.DEFAULT.getBufferSize()
+                    : connectionConfig.getBufferSize();
+
+            long perConnection = CONNECTION_OVERHEAD_BYTES + 2L * bufferSize;
+            String uri = config.getConfig().getUri();
+            if ( uri != null && uri.startsWith( "https" ) )
+            {
+                perConnection += TLS_CONNECTION_BYTES;
+            }
+
+            bytes += open * perConnection;
+        }
+
+        return bytes + ( sharedClients.size() + http2Clients.size() ) * CLIENT_BYTES;
+    }
+
+    /**
+     * @return the settings given to {@link #reconfigure(SiteConfig)} for the site, or null if it hasn't been
+     * reconfigured
+     */
+    public SiteConfig getReconfiguredSite( final String siteId )
     {
-        users--;
-        tryShutdown();
+        return reconfiguredSites.get( siteId );
+    }
+
+    /**
+     * @return the ids of the sites leasing connections from this tracker's pool through per-site quotas.
+     */
+    public Set<String> getQuotaSiteIds()
+    {
+        return Collections.unmodifiableSet( siteManagers.keySet() );
+    }
+
+    /**
+     * Forget the sites of a shared pool that haven't asked for their per-site quota, HTTP/2 backend or request executor
+     * since the given time, and hold no leased connections or HTTP/2 requests in flight: their quotas, metrics, cached
+     * clients, HTTP/2 backends and request executors are dropped, and the pool shrinks to fit the sites that remain.
+     * A forgotten site's HTTP/2 backend is retired rather than closed, so a request that raced the sweep still
+     * completes, and its executor is shut down once that backend has closed. The site that created the pool is kept
+     * for as long as the pool lives. Clients still holding a forgotten site's quota keep working, but no longer count
+     * towards the pool's size.
+     *
+     * @return the number of sites forgotten
+     */
+    public int expireSitesOlderThan( final long expiration )
+    {
+        if ( !config.isSharedPool() || isClosed() )
+        {
+            return 0;
+        }
+
+        lock.lock();
+        try
+        {
+            // HTTP/2-only sites never get a connection manager, so look at every per-site map
+            Set<String> siteIds = new HashSet<String>( siteManagers.keySet() );
+            siteIds.addAll( http2Clients.keySet() );
+            siteIds.addAll( requestExecutors.keySet() );
+            siteIds.addAll( siteRetrievals.keySet() );
+
+            int expired = 0;
+            for ( String siteId : siteIds )
+            {
+                Long retrieval = siteRetrievals.get( siteId );
+                CloseBlockingConnectionManager mgr = siteManagers.get( siteId );
+                Http2SiteClient http2Client = http2Clients.get( siteId );
+                if ( siteId.equals( config.getId() ) || ( retrieval != null && retrieval >= expiration ) || (
+                        mgr != null && mgr.getLeasedCount() > 0 ) || ( http2Client != null
+                        && http2Client.getInFlightCount() > 0 ) )
+                {
+                    continue;
+                }
+
+                LoggerFactory.getLogger( getClass() )
+                             .debug( "Forgetting site: {} of shared pool: {}", siteId, config.getPoolKey() );
+
+                siteManagers.remove( siteId );
+                siteQuotas.remove( siteId );
+                siteRetrievals.remove( siteId );
+                unbindMetrics( siteId );
+
+                // as on reconfigure, the cached delegate holds nothing but the pool, so it's dropped rather than closed
+                sharedClients.remove( siteId );
+
+                ExecutorService exec = requestExecutors.remove( siteId );
+                http2Clients.remove( siteId );
+                if ( http2Client != null )
+                {
+                    http2Client.retire( exec == null ? null : exec::shutdown );
+                }
+                else if ( exec != null )
+                {
+                    exec.shutdown();
+                }
+
+                expired++;
+            }
+
+            if ( expired > 0 && pool != null )
+            {
+                resizeSharedPool();
+            }
+
+            return expired;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the HttpClient shared by all users of the given site (when client caching is enabled), or null if none
+     * has been built yet.
+     */
+    public CloseableHttpClient getSharedClient( final String siteId )
+    {
+        return sharedClients.get( siteId );
+    }
+
+    /**
+     * Offer a newly built HttpClient to be shared by all users of the given site. If another thread got there first,
+     * its client wins and is returned instead.
+     */
+    public CloseableHttpClient setSharedClient( final String siteId, final CloseableHttpClient client )
+    {
+        CloseableHttpClient existing = sharedClients.putIfAbsent( siteId, client );
+        return existing == null ? client : existing;
+    }
+
+    /**
+     * @return the TLS strategies and user token for this pool's requests through the shared async backend (see
+     * {@link SharedAsyncBackend#bindTls}), or null if none has been bound yet.
+     */
+    public SharedAsyncBackend.TlsBinding getAsyncTls()
+    {
+        return asyncTls.get();
+    }
+
+    /**
+     * Offer a newly built TLS binding for this pool's async requests. If another thread got there first (or the TLS
+     * material has been swapped), its binding wins and is returned instead.
+     */
+    public SharedAsyncBackend.TlsBinding setAsyncTls( final SharedAsyncBackend.TlsBinding binding )
+    {
+        return asyncTls.compareAndSet( null, binding ) ? binding : asyncTls.get();
+    }
+
+    /**
+     * @return the started HTTP/2 backend shared by all users of the given site, or null if none has been built yet.
+     */
+    public Http2SiteClient getSharedHttp2Client( final String siteId )
+    {
+        // HTTP/2 requests don't go through the site's connection manager, so they keep the site alive here
+        siteRetrievals.put( siteId, System.currentTimeMillis() );
+        return http2Clients.get( siteId );
+    }
+
+    /**
+     * Offer a newly built (not yet started) HTTP/2 backend to be shared by all users of the given site. The winning
+     * client is started and returned; a losing client is closed.
+     */
+    public Http2SiteClient setSharedHttp2Client( final String siteId, final Http2SiteClient client )
+    {
+        Http2SiteClient existing = http2Clients.putIfAbsent( siteId, client );
+        if ( existing == null )
+        {
+            client.start();
+            return client;
+        }
+
+        client.close();
+        return existing;
+    }
+
+    /**
+     * @return the executor used to run this site's requests for
+     * {@link org.commonjava.util.jhttpc.HttpFactory#execute(SiteConfig, org.apache.http.client.methods.HttpUriRequest,
+     * org.apache.http.client.ResponseHandler)}, with at most {@link SiteConfig#getMaxConnections()} requests running,
+     * and at most {@link #QUEUED_REQUESTS_PER_CONNECTION} waiting requests per running one. Requests beyond that are
+     * rejected with a {@link java.util.concurrent.RejectedExecutionException}. With virtual threads enabled (and
+     * supported), each request gets its own virtual thread; otherwise they share a pool of platform threads.
+     */
+    public ExecutorService getRequestExecutor( final SiteConfig site )
+    {
+        siteRetrievals.put( site.getId(), System.currentTimeMillis() );
+        ExecutorService result = requestExecutors.get( site.getId() );
+        if ( result == null )
+        {
+            result = createRequestExecutor( site );
+        }
+
+        return result;
+    }
+
+    private ExecutorService createRequestExecutor( final SiteConfig site )
+    {
+        lock.lock();
+        try
+        {
+            ExecutorService existing = requestExecutors.get( site.getId() );
+            if ( existing != null )
+            {
+                return existing;
+            }
+
+            // a shared pool may have been reconfigured for this site before it ever ran a request
+            SiteConfig current = reconfiguredSites.get( site.getId() );
+            SiteConfig execSite = current == null ? site : current;
+
+            final String threadPrefix = "jHTTPc request-" + site.getId() + "-";
+            final int threads = execSite.getMaxConnections();
+            if ( managerCache.getFactoryConfig().isVirtualThreadsEnabled() )
+            {
+                ThreadFactory virtualFactory = VirtualThreadSupport.newThreadFactory( threadPrefix );
+                if ( virtualFactory != null )
+                {
+                    // virtual threads are cheap: one per request, with the site's max connections running at once
+                    ExecutorService exec = new ThreadPerTaskExecutor( virtualFactory, threads );
+                    requestExecutors.put( site.getId(), exec );
+                    return exec;
+                }
+
+                Logger logger = LoggerFactory.getLogger( getClass() );
+                logger.warn( "Virtual threads requested, but not supported by this JVM. "
+                                     + "Using platform threads for: {}", site.getId() );
+            }
+
+            final AtomicInteger counter = new AtomicInteger( 0 );
+            ThreadFactory threadFactory = ( runnable ) -> {
+                Thread t = new Thread( runnable );
+                t.setDaemon( true );
+                t.setName( threadPrefix + counter.getAndIncrement() );
+                return t;
+            };
+
+            ThreadPoolExecutor exec = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS,
+                                                              new LinkedBlockingQueue<Runnable>(
+                                                                      threads * QUEUED_REQUESTS_PER_CONNECTION ),
+                                                              threadFactory );
+
+            exec.allowCoreThreadTimeOut( true );
+            requestExecutors.put( site.getId(), exec );
+            return exec;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Track a future for an in-flight request on this site, so it can be cancelled by {@link #shutdownNow()}. The
+     * future is forgotten again once it completes.
+     */
+    public void registerPending( final CompletableFuture<?> future )
+    {
+        pendingFutures.add( future );
+        future.whenComplete( ( result, error ) -> pendingFutures.remove( future ) );
+    }
+
+    public int getPendingCount()
+    {
+        return pendingFutures.size();
+    }
+
+    public void release()
+    {
+        if ( users.decrementAndGet() < 1 )
+        {
+            tryShutdown();
+        }
     }
 
     private boolean tryShutdown()
     {
-        if ( detached && !isActive() )
+        if ( detached && users.compareAndSet( 0, CLOSED ) )
         {
-            manager.reallyShutdown();
-            managerCache.remove( config );
+            closeManager();
+
+            managerCache.remove( config, this );
             return true;
         }
 
         return false;
     }
 
+    private void closeManager()
+    {
+        for ( String siteId : sharedClients.keySet() )
+        {
+            CloseableHttpClient client = sharedClients.remove( siteId );
+            if ( client != null )
+            {
+                closeQuietly( client );
+            }
+        }
+
+        for ( String siteId : http2Clients.keySet() )
+        {
+            Http2SiteClient http2Client = http2Clients.remove( siteId );
+            if ( http2Client != null )
+            {
+                http2Client.close();
+            }
+        }
+
+        requestExecutors.values().forEach( ExecutorService::shutdown );
+
+        CloseBlockingConnectionManager mgr = manager;
+        if ( mgr != null )
+        {
+            unbindMetrics( config.getId() );
+            for ( String siteId : siteManagers.keySet() )
+            {
+                unbindMetrics( siteId );
+            }
+
+            mgr.reallyShutdown();
+        }
+    }
+
+    /**
+     * Close expired pooled connections, and those idle longer than the site's configured idle timeout.
+     *
+     * @return the number of connections closed
+     * @see SiteConfig#getIdleConnectionTimeoutSeconds()
+     */
+    public int closeIdleConnections()
+    {
+        CloseBlockingConnectionManager mgr = manager;
+        if ( mgr == null || isClosed() )
+        {
+            return 0;
+        }
+
+        return mgr.evictConnections( config.getIdleConnectionTimeoutSeconds(), TimeUnit.SECONDS );
+    }
+
+    /**
+     * @return the connections open but idle in this tracker's pool and its proxied HTTP/2 backends
+     */
+    public int getIdleConnectionCount()
+    {
+        PoolingHttpClientConnectionManager p = pool;
+        if ( p == null || isClosed() )
+        {
+            return 0;
+        }
+
+        int idle = p.getTotalStats().getAvailable();
+        for ( Http2SiteClient http2Client : http2Clients.values() )
+        {
+            idle += http2Client.getIdleConnectionCount();
+        }
+
+        return idle;
+    }
+
+    /**
+     * Close every idle connection of this tracker's pool and its proxied HTTP/2 backends, however recently used, to
+     * bring the open connections back within the global connection budget.
+     *
+     * @return the number of connections closed
+     */
+    public int closeAllIdleConnections()
+    {
+        int before = getIdleConnectionCount();
+        if ( before < 1 )
+        {
+            return 0;
+        }
+
+        PoolingHttpClientConnectionManager p = pool;
+        if ( p != null )
+        {
+            p.closeIdleConnections( 0, TimeUnit.MILLISECONDS );
+        }
+
+        http2Clients.values().forEach( Http2SiteClient::closeIdleConnections );
+        return Math.max( 0, before - getIdleConnectionCount() );
+    }
+
+    /**
+     * Record the current statistics of this tracker's connection pool, for later retrieval via {@link #getLastStats()}.
+     */
+    public void snapshotStats()
+    {
+        CloseBlockingConnectionManager mgr = manager;
+        if ( mgr != null && !isClosed() )
+        {
+            lastStats = mgr.getTotalStats();
+
+            Logger logger = LoggerFactory.getLogger( getClass() );
+            logger.trace( "Connection pool stats for: {} are: {}", config.getId(), lastStats );
+        }
+    }
+
+    /**
+     * @return the pool statistics recorded by the most recent housekeeping snapshot, or null if none has been taken
+     */
+    public PoolStats getLastStats()
+    {
+        return lastStats;
+    }
+
+    /**
+     * @return true if this tracker has been shut down, and cannot hand out its connection manager any more.
+     */
+    public boolean isClosed()
+    {
+        return users.get() < 0;
+    }
+
     public long getLastRetrieval()
     {
         return lastRetrieval;
     }
 
+    /**
+     * @return the site id, or for a pool shared between sites, the key they share it under
+     */
+    public String getPoolId()
+    {
+        return config.isSharedPool() ? config.getPoolKey() : config.getId();
+    }
+
+    /**
+     * @return the number of clients currently using this tracker's connection manager
+     */
+    public int getUserCount()
+    {
+        return Math.max( 0, users.get() );
+    }
+
+    public boolean isDetached()
+    {
+        return detached;
+    }
+
+    /**
+     * @return the underlying pool, or null if no client has needed it yet
+     */
+    PoolingHttpClientConnectionManager getPool()
+    {
+        return pool;
+    }
+
     public ConnectionManagerTracker retrieved()
     {
         lastRetrieval = System.currentTimeMillis();
         return this;
     }
 
+    /**
+     * Shut this tracker down if no client is using it. A tracker still in use is left live rather than flagged for
+     * shutdown on its last release, so a later expiration sweep or eviction can retry once it's idle; use
+     * {@link #shutdownNow()} to close it regardless.
+     *
+     * @return true if the tracker is closed
+     */
     public boolean detach()
     {
         this.detached = true;
-        return tryShutdown();
+        if ( tryShutdown() )
+        {
+            return true;
+        }
+
+        // a release racing this one may still have closed it
+        this.detached = false;
+        return isClosed();
     }
 
     @Override
@@ -174,38 +1208,180 @@ public class ConnectionManagerTracker
     @Override
     public boolean isShutdown()
     {
-        return users < 1;
+        return users.get() < 1;
     }
 
     @Override
-    public synchronized boolean shutdownNow()
+    public boolean shutdownNow()
     {
-        manager.reallyShutdown();
+        users.set( CLOSED );
+
+        for ( CompletableFuture<?> future : pendingFutures )
+        {
+            future.cancel( true );
+        }
+
+        requestExecutors.values().forEach( ExecutorService::shutdownNow );
+
+        closeManager();
+
+        managerCache.remove( config, this );
         return true;
     }
 
+    /**
+     * Stop handing out connections: {@link #acquire()} fails so the cache replaces this tracker, and new leases from
+     * clients already created are refused. Leases already granted are left to finish; use {@link #awaitDrain(long)} to
+     * wait for them.
+     */
+    public void startDrain()
+    {
+        lock.lock();
+        try
+        {
+            if ( draining )
+            {
+                return;
+            }
+
+            // managers are only created under the lock, so none can miss the drain; flag it last, so anyone who sees
+            // the flag also sees leases refused
+            for ( CloseBlockingConnectionManager mgr : getConnectionManagers() )
+            {
+                mgr.drain( this::leaseReleased );
+            }
+            draining = true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public boolean isDraining()
+    {
+        return draining;
+    }
+
+    private void leaseReleased()
+    {
+        drainLock.lock();
+        try
+        {
+            released.signalAll();
+        }
+        finally
+        {
+            drainLock.unlock();
+        }
+    }
+
+    /**
+     * Wait until every connection leased from this tracker's pool has been released, waking on each release rather than
+     * polling. The connections still leased are logged per site every second while waiting.
+     *
+     * @return false if connections are still leased when the timeout expires
+     */
+    public boolean awaitDrain( final long timeoutMillis )
+            throws InterruptedException
+    {
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+        long nextReport = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( DRAIN_PROGRESS_MILLIS );
+
+        drainLock.lock();
+        try
+        {
+            while ( getLeasedCount() > 0 )
+            {
+                long now = System.nanoTime();
+                if ( now >= deadline )
+                {
+                    return false;
+                }
+
+                if ( now >= nextReport )
+                {
+                    logger.info( "Draining connection pool: {}. Waiting for leased connections: {}", getPoolId(),
+                                 getLeasedCounts() );
+                    nextReport = now + TimeUnit.MILLISECONDS.toNanos( DRAIN_PROGRESS_MILLIS );
+                }
+
+                released.awaitNanos( Math.min( deadline, nextReport ) - now );
+            }
+
+            return true;
+        }
+        finally
+        {
+            drainLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of connections currently leased from this tracker's pool
+     */
+    public int getLeasedCount()
+    {
+        int leased = 0;
+        for ( CloseBlockingConnectionManager mgr : getConnectionManagers() )
+        {
+            leased += mgr.getLeasedCount();
+        }
+
+        return leased;
+    }
+
+    /**
+     * @return the number of connections currently leased from this tracker's pool, by site id
+     */
+    public Map<String, Integer> getLeasedCounts()
+    {
+        Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+        for ( CloseBlockingConnectionManager mgr : getConnectionManagers() )
+        {
+            int leased = mgr.getLeasedCount();
+            if ( leased > 0 )
+            {
+                counts.merge( mgr.getConfig().getId(), leased, Integer::sum );
+            }
+        }
+
+        return counts;
+    }
+
+    /**
+     * Drain this tracker (see {@link #startDrain()}), and shut it down as soon as the last leased connection is
+     * released. Clients still holding the tracker can't lease any more connections, so they don't delay the shutdown.
+     *
+     * @return false if connections were still leased when the timeout expired, in which case the tracker keeps
+     * draining and {@link #shutdownNow()} can be used to abort them
+     */
     @Override
-    public synchronized boolean shutdownGracefully( final long timeoutMillis )
+    public boolean shutdownGracefully( final long timeoutMillis )
             throws InterruptedException
     {
-        long expires = System.currentTimeMillis() + timeoutMillis;
-        while ( isActive() && System.currentTimeMillis() < expires )
+        startDrain();
+        if ( !awaitDrain( timeoutMillis ) )
         {
-            Thread.sleep( 100 );
+            Logger logger = LoggerFactory.getLogger( getClass() );
+            logger.warn( "Timed out draining connection pool: {}. Connections still leased: {}", getPoolId(),
+                         getLeasedCounts() );
+            return false;
         }
 
-        if ( !isActive() )
+        if ( users.getAndSet( CLOSED ) >= 0 )
         {
-            manager.reallyShutdown();
-            return true;
+            closeManager();
         }
 
-        return false;
+        managerCache.remove( config, this );
+        return true;
     }
 
     public boolean isActive()
     {
-        return users > 0;
+        return users.get() > 0;
     }
 
     private class ResponseParserFactory
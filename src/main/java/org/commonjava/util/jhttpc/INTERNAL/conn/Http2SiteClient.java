@@ -0,0 +1,496 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.conn;
+
+import org.apache.hc.client5.http.async.methods.SimpleBody;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.auth.AuthScope;
+import org.apache.hc.client5.http.auth.Credentials;
+import org.apache.hc.client5.http.auth.CredentialsProvider;
+import org.apache.hc.client5.http.auth.UsernamePasswordCredentials;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.config.TlsConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.H2AsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.ssl.ClientTlsStrategyBuilder;
+import org.apache.hc.core5.concurrent.DefaultThreadFactory;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.ProtocolVersion;
+import org.apache.hc.core5.http.nio.ssl.TlsStrategy;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.ssl.SSLContexts;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.commonjava.util.jhttpc.INTERNAL.util.SharedExecutors;
+import org.commonjava.util.jhttpc.model.SiteConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP/2 backend for one site, shared by all users of its {@link ConnectionManagerTracker} and used by
+ * {@link org.commonjava.util.jhttpc.HttpFactory#execute} when the site is configured for
+ * {@link org.commonjava.util.jhttpc.model.SiteHttpVersion#HTTP_2}.
+ * <p>
+ * Direct connections multiplex all concurrent requests as streams over a single connection per origin, agreeing on
+ * h2 via ALPN for https (and using prior knowledge for plain http). HTTP/2 cannot be multiplexed through a proxy
+ * tunnel by the underlying client, so proxied sites use a pool of up to {@link SiteConfig#getMaxConnections()}
+ * connections that negotiate h2 via ALPN where the server supports it, and fall back to HTTP/1.1 otherwise.
+ * <p>
+ * Requests and responses are translated to and from the HttpClient 4.x types used by the rest of the API. Bodies are
+ * buffered in memory in both directions.
+ */
+public final class Http2SiteClient
+        implements Closeable
+{
+    // connection-specific headers are illegal in HTTP/2, and the rest are derived from the request itself
+    private static final Set<String> SKIPPED_HEADERS = new HashSet<String>(
+            Arrays.asList( "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "te", "host",
+                           "content-length", "content-type" ) );
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final String siteId;
+
+    private final boolean multiplexed;
+
+    private final RequestConfig requestConfig;
+
+    private final CloseableHttpAsyncClient client;
+
+    private final PoolingAsyncClientConnectionManager connectionManager;
+
+    private final AtomicInteger inFlight = new AtomicInteger( 0 );
+
+    private final AtomicBoolean closed = new AtomicBoolean( false );
+
+    private volatile boolean retired;
+
+    private volatile Runnable afterClose;
+
+    private Http2SiteClient( final String siteId, final boolean multiplexed, final RequestConfig requestConfig,
+                             final CloseableHttpAsyncClient client,
+                             final PoolingAsyncClientConnectionManager connectionManager )
+    {
+        this.siteId = siteId;
+        this.multiplexed = multiplexed;
+        this.requestConfig = requestConfig;
+        this.client = client;
+        this.connectionManager = connectionManager;
+    }
+
+    /**
+     * Build (but don't start) the HTTP/2 client for the given site.
+     *
+     * @param sslContext the site's client key / server trust context, or null to use the system default
+     */
+    public static Http2SiteClient build( final SiteConfig location, final SSLContext sslContext,
+                                         final HostnameVerifier hostnameVerifier )
+    {
+        final TlsStrategy tlsStrategy = ClientTlsStrategyBuilder.create()
+                                                                .setSslContext( sslContext == null ?
+                                                                                        SSLContexts.createSystemDefault() :
+                                                                                        sslContext )
+                                                                .setHostnameVerifier( hostnameVerifier )
+                                                                .build();
+
+        final Timeout timeout = Timeout.ofSeconds( location.getRequestTimeoutSeconds() );
+        final ConnectionConfig connectionConfig =
+                ConnectionConfig.custom().setConnectTimeout( timeout ).setSocketTimeout( timeout ).build();
+
+        final RequestConfig requestConfig = RequestConfig.custom()
+                                                         .setConnectionRequestTimeout( Timeout.ofSeconds(
+                                                                 location.getConnectionPoolTimeoutSeconds() ) )
+                                                         .setResponseTimeout( timeout )
+                                                         .build();
+
+        final boolean multiplexed = location.getProxyHost() == null;
+        final int ioThreads = Math.max( 1, Math.min( multiplexed ? 1 : location.getMaxConnections(),
+                                                     Runtime.getRuntime().availableProcessors() ) );
+
+        final IOReactorConfig reactorConfig =
+                IOReactorConfig.custom().setIoThreadCount( ioThreads ).setSoTimeout( timeout ).build();
+
+        final DefaultThreadFactory threadFactory = new DefaultThreadFactory( "jHTTPc h2-" + location.getId(), true );
+        final int idleSeconds = location.getIdleConnectionTimeoutSeconds();
+
+        final CloseableHttpAsyncClient client;
+        PoolingAsyncClientConnectionManager connectionManager = null;
+        if ( multiplexed )
+        {
+            final H2AsyncClientBuilder builder = H2AsyncClientBuilder.create()
+                                                                     .setTlsStrategy( tlsStrategy )
+                                                                     .setH2Config( H2Config.custom()
+                                                                                           .setPushEnabled( false )
+                                                                                           .build() )
+                                                                     .setIOReactorConfig( reactorConfig )
+                                                                     .setThreadFactory( threadFactory )
+                                                                     .setDefaultConnectionConfig( connectionConfig )
+                                                                     .setDefaultRequestConfig( requestConfig );
+            if ( idleSeconds > 0 )
+            {
+                builder.evictIdleConnections( TimeValue.ofSeconds( idleSeconds ) );
+            }
+
+            client = builder.build();
+        }
+        else
+        {
+            connectionManager =
+                    PoolingAsyncClientConnectionManagerBuilder.create()
+                                                              .setTlsStrategy( tlsStrategy )
+                                                              .setMaxConnTotal( location.getMaxConnections() )
+                                                              .setMaxConnPerRoute( location.getMaxPerRoute() )
+                                                              .setDefaultConnectionConfig( connectionConfig )
+                                                              .setDefaultTlsConfig( TlsConfig.custom()
+                                                                                             .setVersionPolicy(
+                                                                                                     HttpVersionPolicy.NEGOTIATE )
+                                                                                             .build() )
+                                                              .build();
+
+            final int proxyPort = location.getProxyPort();
+            final HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+                                                                   .setConnectionManager( connectionManager )
+                                                                   .setIOReactorConfig( reactorConfig )
+                                                                   .setThreadFactory( threadFactory )
+                                                                   .setDefaultRequestConfig( requestConfig )
+                                                                   .setProxy( new HttpHost( location.getProxyHost(),
+                                                                                            proxyPort < 1 ? -1 : proxyPort ) );
+            if ( idleSeconds > 0 )
+            {
+                builder.evictIdleConnections( TimeValue.ofSeconds( idleSeconds ) );
+            }
+
+            client = builder.build();
+        }
+
+        return new Http2SiteClient( location.getId(), multiplexed, requestConfig, client, connectionManager );
+    }
+
+    public void start()
+    {
+        client.start();
+    }
+
+    /**
+     * @return true if requests share multiplexed HTTP/2 connections, false if they are pooled per connection (proxied
+     * sites)
+     */
+    public boolean isMultiplexed()
+    {
+        return multiplexed;
+    }
+
+    /**
+     * Send the request, then run the response handler on the given executor and complete the future with its result.
+     *
+     * @param requestContext the HttpClient 4.x context built for the site; only its credentials are carried over
+     * @return the in-flight exchange, which can be cancelled to abort the request, or null if this client has been
+     * retired (see {@link #retire()}) or closed; send the request through the site's current client instead
+     */
+    public <T> Future<SimpleHttpResponse> execute( final HttpUriRequest request,
+                                                   final org.apache.http.client.protocol.HttpClientContext requestContext,
+                                                   final ResponseHandler<? extends T> handler,
+                                                   final Executor handlerExecutor, final CompletableFuture<T> future )
+            throws IOException
+    {
+        final org.apache.hc.client5.http.protocol.HttpClientContext context =
+                org.apache.hc.client5.http.protocol.HttpClientContext.create();
+
+        context.setRequestConfig( requestConfig );
+        if ( requestContext != null && requestContext.getCredentialsProvider() != null )
+        {
+            context.setCredentialsProvider( new CredentialsBridge( requestContext.getCredentialsProvider() ) );
+        }
+
+        // counted before checking, so a retirement either sees this exchange or is seen by it
+        inFlight.incrementAndGet();
+        if ( retired || closed.get() )
+        {
+            exchangeDone();
+            return null;
+        }
+
+        logger.debug( "[{}] Sending over HTTP/2 backend: {}", siteId, request.getRequestLine() );
+        try
+        {
+            return client.execute( toSimpleRequest( request ), context, new FutureCallback<SimpleHttpResponse>()
+            {
+                @Override
+                public void completed( final SimpleHttpResponse response )
+                {
+                    try
+                    {
+                        handlerExecutor.execute( () -> {
+                            try
+                            {
+                                future.complete( handler.handleResponse( toHttpResponse( response ) ) );
+                            }
+                            catch ( Throwable e )
+                            {
+                                future.completeExceptionally( e );
+                            }
+                        } );
+                    }
+                    catch ( RejectedExecutionException e )
+                    {
+                        future.completeExceptionally( e );
+                    }
+                    finally
+                    {
+                        // after the handler is queued, so an executor shut down on close still runs it
+                        exchangeDone();
+                    }
+                }
+
+                @Override
+                public void failed( final Exception e )
+                {
+                    exchangeDone();
+                    future.completeExceptionally( e );
+                }
+
+                @Override
+                public void cancelled()
+                {
+                    exchangeDone();
+                    future.cancel( false );
+                }
+            } );
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            exchangeDone();
+            throw e;
+        }
+    }
+
+    /**
+     * Stop taking requests, and close this client as soon as the exchanges already in flight have completed. Used when
+     * the site's TLS material is swapped, so requests in flight finish on their existing connections while new ones go
+     * through a client built for the new material.
+     */
+    public void retire()
+    {
+        retire( null );
+    }
+
+    /**
+     * As {@link #retire()}, then run the given action once the client is closed; for instance to shut down the
+     * executor its response handlers run on, once they've all been queued.
+     */
+    public void retire( final Runnable afterClose )
+    {
+        this.afterClose = afterClose;
+        retired = true;
+        if ( inFlight.get() == 0 )
+        {
+            closeInBackground();
+        }
+    }
+
+    /**
+     * @return the number of requests sent through this client that haven't completed yet
+     */
+    public int getInFlightCount()
+    {
+        return inFlight.get();
+    }
+
+    public boolean isClosed()
+    {
+        return closed.get();
+    }
+
+    private void exchangeDone()
+    {
+        if ( inFlight.decrementAndGet() == 0 && retired )
+        {
+            closeInBackground();
+        }
+    }
+
+    /**
+     * Exchanges complete on the client's own I/O threads, which can't wait for the client to shut down.
+     */
+    private void closeInBackground()
+    {
+        try
+        {
+            SharedExecutors.getTlsReloadExecutor().execute( this::close );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            logger.warn( "[{}] Cannot close retired HTTP/2 backend in the background. Reason: {}", siteId,
+                         e.getMessage() );
+        }
+    }
+
+    /**
+     * @return the pooled connections currently idle, for proxied sites. A multiplexed site holds at most one connection
+     * per origin, which isn't counted.
+     */
+    public int getIdleConnectionCount()
+    {
+        return connectionManager == null ? 0 : connectionManager.getTotalStats().getAvailable();
+    }
+
+    /**
+     * Close every idle pooled connection (for proxied sites).
+     */
+    public void closeIdleConnections()
+    {
+        if ( connectionManager != null )
+        {
+            connectionManager.closeIdle( TimeValue.ZERO_MILLISECONDS );
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        if ( closed.compareAndSet( false, true ) )
+        {
+            client.close( CloseMode.GRACEFUL );
+
+            Runnable action = afterClose;
+            if ( action != null )
+            {
+                action.run();
+            }
+        }
+    }
+
+    private static SimpleHttpRequest toSimpleRequest( final HttpUriRequest request )
+            throws IOException
+    {
+        final URI uri = request.getURI();
+        final SimpleHttpRequest result = SimpleHttpRequest.create( request.getMethod(), uri );
+        for ( org.apache.http.Header header : request.getAllHeaders() )
+        {
+            if ( !SKIPPED_HEADERS.contains( header.getName().toLowerCase() ) )
+            {
+                result.addHeader( header.getName(), header.getValue() );
+            }
+        }
+
+        if ( request instanceof HttpEntityEnclosingRequest )
+        {
+            final HttpEntity entity = ( (HttpEntityEnclosingRequest) request ).getEntity();
+            if ( entity != null )
+            {
+                final org.apache.http.Header contentType = entity.getContentType();
+                result.setBody( EntityUtils.toByteArray( entity ),
+                                contentType == null ? null : ContentType.parse( contentType.getValue() ) );
+            }
+        }
+
+        return result;
+    }
+
+    private static BasicHttpResponse toHttpResponse( final SimpleHttpResponse response )
+    {
+        final ProtocolVersion version = response.getVersion();
+        final BasicHttpResponse result = new BasicHttpResponse(
+                new org.apache.http.ProtocolVersion( "HTTP", version == null ? 2 : version.getMajor(),
+                                                     version == null ? 0 : version.getMinor() ), response.getCode(),
+                response.getReasonPhrase() );
+
+        for ( org.apache.hc.core5.http.Header header : response.getHeaders() )
+        {
+            result.addHeader( header.getName(), header.getValue() );
+        }
+
+        final SimpleBody body = response.getBody();
+        if ( body != null )
+        {
+            final ByteArrayEntity entity = new ByteArrayEntity( body.getBodyBytes() );
+            if ( body.getContentType() != null )
+            {
+                entity.setContentType( body.getContentType().toString() );
+            }
+
+            result.setEntity( entity );
+        }
+
+        return result;
+    }
+
+    /**
+     * Looks up credentials in the site's HttpClient 4.x credentials provider, as populated by the
+     * {@link org.commonjava.util.jhttpc.auth.ClientAuthenticator}.
+     */
+    private static final class CredentialsBridge
+            implements CredentialsProvider
+    {
+        private final org.apache.http.client.CredentialsProvider delegate;
+
+        CredentialsBridge( final org.apache.http.client.CredentialsProvider delegate )
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Credentials getCredentials( final AuthScope authScope, final HttpContext context )
+        {
+            final org.apache.http.auth.Credentials creds = delegate.getCredentials(
+                    new org.apache.http.auth.AuthScope( authScope.getHost(), authScope.getPort(), authScope.getRealm(),
+                                                        authScope.getSchemeName() ) );
+
+            if ( creds == null || creds.getUserPrincipal() == null )
+            {
+                return null;
+            }
+
+            final String password = creds.getPassword();
+            return new UsernamePasswordCredentials( creds.getUserPrincipal().getName(),
+                                                    password == null ? null : password.toCharArray() );
+        }
+    }
+}
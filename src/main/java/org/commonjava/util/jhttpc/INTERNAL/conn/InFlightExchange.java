@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.conn;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.AbstractExecutionAwareRequest;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.util.EntityUtils;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+/**
+ * One request / response exchange in a {@link InFlightRegistry}. It leaves the registry as soon as the response body
+ * is fully read, the response is closed, or the request fails.
+ */
+final class InFlightExchange
+{
+    private final InFlightRegistry registry;
+
+    private final HttpRequest request;
+
+    private final RequestRecorder recorder;
+
+    private final long startNanos = System.nanoTime();
+
+    private final AtomicBoolean complete = new AtomicBoolean( false );
+
+    private volatile CloseableHttpResponse response;
+
+    InFlightExchange( final InFlightRegistry registry, final HttpRequest request, final RequestRecorder recorder )
+    {
+        this.registry = registry;
+        this.request = request;
+        this.recorder = recorder;
+    }
+
+    HttpRequest getRequest()
+    {
+        return request;
+    }
+
+    long getStartNanos()
+    {
+        return startNanos;
+    }
+
+    /**
+     * Attach the response, wrapping it (and its entity) so the exchange completes when either is closed or the body is
+     * exhausted.
+     *
+     * @return the response to hand to the caller
+     */
+    CloseableHttpResponse responseReceived( final CloseableHttpResponse response )
+    {
+        if ( recorder != null )
+        {
+            recorder.responseReceived( response );
+        }
+
+        HttpEntity entity = response.getEntity();
+        if ( entity == null )
+        {
+            complete();
+            return response;
+        }
+
+        response.setEntity( new MeteredEntity( entity, this ) );
+        this.response = new TrackedHttpResponse( response, this::complete );
+
+        return this.response;
+    }
+
+    void failed( final Throwable error )
+    {
+        if ( complete.compareAndSet( false, true ) )
+        {
+            registry.remove( this );
+            if ( recorder != null )
+            {
+                recorder.failed( error );
+            }
+        }
+    }
+
+    void addResponseBytes( final long count )
+    {
+        if ( recorder != null )
+        {
+            recorder.addResponseBytes( count );
+        }
+    }
+
+    void complete()
+    {
+        if ( complete.compareAndSet( false, true ) )
+        {
+            registry.remove( this );
+            if ( recorder != null )
+            {
+                recorder.finish();
+            }
+        }
+    }
+
+    /**
+     * Release whatever this exchange still holds: consume and close the response if there is one, otherwise reset the
+     * request so any in-progress execution is cancelled.
+     */
+    void cleanup()
+    {
+        CloseableHttpResponse resp = response;
+        if ( resp != null )
+        {
+            EntityUtils.consumeQuietly( resp.getEntity() );
+            closeQuietly( resp );
+        }
+        else if ( request instanceof AbstractExecutionAwareRequest )
+        {
+            ( (AbstractExecutionAwareRequest) request ).reset();
+        }
+
+        complete();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "InFlightExchange{request=" + request.getRequestLine() + ", response=" + ( response == null ?
+                null :
+                response.getStatusLine() ) + '}';
+    }
+}
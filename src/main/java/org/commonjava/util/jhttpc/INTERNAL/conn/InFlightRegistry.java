@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.conn;
+
+import org.apache.http.HttpRequest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread-safe set of the exchanges a client has outstanding. Exchanges are removed as soon as they complete, so the
+ * registry only ever holds requests still executing and responses not yet consumed or closed.
+ */
+final class InFlightRegistry
+{
+    private final Set<InFlightExchange> exchanges = ConcurrentHashMap.newKeySet();
+
+    InFlightExchange register( final HttpRequest request, final RequestRecorder recorder )
+    {
+        InFlightExchange exchange = new InFlightExchange( this, request, recorder );
+        exchanges.add( exchange );
+        return exchange;
+    }
+
+    void remove( final InFlightExchange exchange )
+    {
+        exchanges.remove( exchange );
+    }
+
+    int size()
+    {
+        return exchanges.size();
+    }
+
+    Collection<InFlightExchange> snapshot()
+    {
+        return Collections.unmodifiableList( new ArrayList<InFlightExchange>( exchanges ) );
+    }
+
+    /**
+     * Clean up every outstanding exchange. Exchanges registered concurrently may be missed.
+     */
+    void cleanupAll()
+    {
+        for ( InFlightExchange exchange : exchanges )
+        {
+            exchange.cleanup();
+        }
+    }
+}
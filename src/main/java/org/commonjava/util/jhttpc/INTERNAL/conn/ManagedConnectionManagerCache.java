@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.conn;
+
+import org.commonjava.util.jhttpc.jmx.ConnectionManagerCacheMXBean;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * JMX view of a {@link ConnectionManagerCache}.
+ */
+final class ManagedConnectionManagerCache
+        implements ConnectionManagerCacheMXBean
+{
+    private final ConnectionManagerCache cache;
+
+    ManagedConnectionManagerCache( final ConnectionManagerCache cache )
+    {
+        this.cache = cache;
+    }
+
+    @Override
+    public int getTrackerCount()
+    {
+        return cache.getTrackers().size();
+    }
+
+    @Override
+    public List<String> getTrackerIds()
+    {
+        return cache.getTrackers()
+                    .stream()
+                    .map( ConnectionManagerTracker::getPoolId )
+                    .sorted()
+                    .collect( Collectors.toList() );
+    }
+
+    @Override
+    public int getMaxLivePools()
+    {
+        return cache.getFactoryConfig().getMaxLivePools();
+    }
+
+    @Override
+    public long getEvictedPoolCount()
+    {
+        return cache.getEvictedPoolCount();
+    }
+
+    @Override
+    public long getEstimatedMemoryBytes()
+    {
+        return cache.estimateMemoryBytes();
+    }
+
+    @Override
+    public int getGlobalMaxConnections()
+    {
+        ConnectionBudget budget = cache.getConnectionBudget();
+        return budget == null ? 0 : budget.getCapacity();
+    }
+
+    @Override
+    public int getGlobalLeased()
+    {
+        ConnectionBudget budget = cache.getConnectionBudget();
+        return budget == null ? 0 : budget.getLeased();
+    }
+
+    @Override
+    public int getLastReapedConnectionCount()
+    {
+        return cache.getLastReapedConnectionCount();
+    }
+
+    @Override
+    public int getConnectionLeakCount()
+    {
+        return cache.getConnectionLeaks().size();
+    }
+
+    @Override
+    public int closeIdleConnections()
+    {
+        return cache.closeIdleConnections();
+    }
+
+    @Override
+    public void expireTrackersOlderThan( final long seconds )
+    {
+        cache.expireTrackersOlderThan( seconds, TimeUnit.SECONDS );
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.conn;
+
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.commonjava.util.jhttpc.jmx.RouteStats;
+import org.commonjava.util.jhttpc.jmx.SitePoolMXBean;
+import org.commonjava.util.jhttpc.model.SiteConfig;
+import org.commonjava.util.jhttpc.model.SiteConfigBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMX view of one {@link ConnectionManagerTracker} and its pool.
+ */
+final class ManagedSitePool
+        implements SitePoolMXBean
+{
+    private final ConnectionManagerTracker tracker;
+
+    ManagedSitePool( final ConnectionManagerTracker tracker )
+    {
+        this.tracker = tracker;
+    }
+
+    @Override
+    public String getSiteId()
+    {
+        return tracker.getConnectionConfig().getId();
+    }
+
+    @Override
+    public String getSharedPoolKey()
+    {
+        return tracker.getConnectionConfig().getPoolKey();
+    }
+
+    @Override
+    public List<String> getQuotaSiteIds()
+    {
+        return new ArrayList<String>( tracker.getQuotaSiteIds() );
+    }
+
+    @Override
+    public int getUserCount()
+    {
+        return tracker.getUserCount();
+    }
+
+    @Override
+    public boolean isDetached()
+    {
+        return tracker.isDetached();
+    }
+
+    @Override
+    public boolean isClosed()
+    {
+        return tracker.isClosed();
+    }
+
+    @Override
+    public long getLastRetrieval()
+    {
+        return tracker.getLastRetrieval();
+    }
+
+    @Override
+    public long getEstimatedMemoryBytes()
+    {
+        return tracker.estimateMemoryBytes();
+    }
+
+    @Override
+    public boolean isPoolCreated()
+    {
+        return tracker.getPool() != null;
+    }
+
+    @Override
+    public int getLeased()
+    {
+        PoolStats stats = getTotalStats();
+        return stats == null ? 0 : stats.getLeased();
+    }
+
+    @Override
+    public int getAvailable()
+    {
+        PoolStats stats = getTotalStats();
+        return stats == null ? 0 : stats.getAvailable();
+    }
+
+    @Override
+    public int getPending()
+    {
+        PoolStats stats = getTotalStats();
+        return stats == null ? 0 : stats.getPending();
+    }
+
+    @Override
+    public int getMaxTotal()
+    {
+        PoolingHttpClientConnectionManager pool = tracker.getPool();
+        return pool == null ? 0 : pool.getMaxTotal();
+    }
+
+    @Override
+    public int getDefaultMaxPerRoute()
+    {
+        PoolingHttpClientConnectionManager pool = tracker.getPool();
+        return pool == null ? 0 : pool.getDefaultMaxPerRoute();
+    }
+
+    @Override
+    public List<RouteStats> getRouteStats()
+    {
+        PoolingHttpClientConnectionManager pool = tracker.getPool();
+        if ( pool == null )
+        {
+            return Collections.emptyList();
+        }
+
+        List<RouteStats> result = new ArrayList<RouteStats>();
+        for ( HttpRoute route : pool.getRoutes() )
+        {
+            PoolStats stats = pool.getStats( route );
+            result.add( new RouteStats( route.toString(), stats.getLeased(), stats.getAvailable(), stats.getPending(),
+                                        stats.getMax() ) );
+        }
+
+        return result;
+    }
+
+    @Override
+    public boolean resize( final int maxTotal, final int defaultMaxPerRoute )
+    {
+        if ( maxTotal < 1 || defaultMaxPerRoute < 1 )
+        {
+            throw new IllegalArgumentException( "Connection limits must be positive." );
+        }
+
+        PoolingHttpClientConnectionManager pool = tracker.getPool();
+        if ( pool == null )
+        {
+            return false;
+        }
+
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        logger.info( "Resizing connection pool: {} via JMX to {} connections ({} per route).", tracker.getPoolId(),
+                     maxTotal, defaultMaxPerRoute );
+
+        SiteConfig site = new SiteConfigBuilder( tracker.getSiteConfig() ).withMaxConnections( maxTotal )
+                                                                          .withMaxPerRoute( defaultMaxPerRoute )
+                                                                          .build();
+        return tracker.reconfigure( site );
+    }
+
+    @Override
+    public int evictIdleConnections( final int idleSeconds )
+    {
+        CloseBlockingConnectionManager manager = tracker.getConnectionManager();
+        if ( manager == null || tracker.isClosed() )
+        {
+            return 0;
+        }
+
+        if ( idleSeconds < 1 )
+        {
+            // evictConnections() skips the idle check for non-positive times
+            return manager.evictConnections( 1, TimeUnit.MILLISECONDS );
+        }
+
+        return manager.evictConnections( idleSeconds, TimeUnit.SECONDS );
+    }
+
+    @Override
+    public boolean detach()
+    {
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        logger.info( "Detaching connection pool: {} via JMX.", tracker.getPoolId() );
+
+        return tracker.detach();
+    }
+
+    @Override
+    public boolean shutdown()
+    {
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        logger.info( "Shutting down connection pool: {} via JMX.", tracker.getPoolId() );
+
+        return tracker.shutdownNow();
+    }
+
+    private PoolStats getTotalStats()
+    {
+        PoolingHttpClientConnectionManager pool = tracker.getPool();
+        return pool == null ? null : pool.getTotalStats();
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.conn;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Response entity that counts the bytes read from it, and completes its exchange once the content is exhausted or
+ * closed.
+ */
+final class MeteredEntity
+        extends HttpEntityWrapper
+{
+    private final InFlightExchange exchange;
+
+    MeteredEntity( final HttpEntity wrapped, final InFlightExchange exchange )
+    {
+        super( wrapped );
+        this.exchange = exchange;
+    }
+
+    @Override
+    public InputStream getContent()
+            throws IOException
+    {
+        InputStream in = super.getContent();
+        return in == null ? null : new MeteredInputStream( in );
+    }
+
+    @Override
+    public void writeTo( final OutputStream out )
+            throws IOException
+    {
+        try (InputStream in = getContent())
+        {
+            if ( in == null )
+            {
+                return;
+            }
+
+            byte[] buf = new byte[8192];
+            int read;
+            while ( ( read = in.read( buf ) ) > -1 )
+            {
+                out.write( buf, 0, read );
+            }
+        }
+    }
+
+    private final class MeteredInputStream
+            extends FilterInputStream
+    {
+        MeteredInputStream( final InputStream in )
+        {
+            super( in );
+        }
+
+        @Override
+        public int read()
+                throws IOException
+        {
+            int b = super.read();
+            if ( b < 0 )
+            {
+                exchange.complete();
+            }
+            else
+            {
+                exchange.addResponseBytes( 1 );
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read( final byte[] b, final int off, final int len )
+                throws IOException
+        {
+            int read = super.read( b, off, len );
+            if ( read < 0 )
+            {
+                exchange.complete();
+            }
+            else
+            {
+                exchange.addResponseBytes( read );
+            }
+
+            return read;
+        }
+
+        @Override
+        public long skip( final long n )
+                throws IOException
+        {
+            long skipped = super.skip( n );
+            exchange.addResponseBytes( skipped );
+            return skipped;
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            try
+            {
+                super.close();
+            }
+            finally
+            {
+                exchange.complete();
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.conn;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.commonjava.util.jhttpc.model.SiteConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens connections in a site's pool ahead of demand: each is leased, connected (including the TLS handshake, which
+ * validates it) and released back to the pool, just as if a request had used it.
+ */
+final class PoolPrewarmer
+{
+    /**
+     * Prewarming gives up rather than wait long for a busy pool; if it's busy, it's already warm.
+     */
+    private static final long LEASE_TIMEOUT_MILLIS = 100;
+
+    private PoolPrewarmer()
+    {
+    }
+
+    /**
+     * @return the route requests to the site are planned on, so prewarmed connections are the ones requests lease. This
+     * matches {@link org.apache.http.impl.conn.DefaultRoutePlanner} for a site without a proxy.
+     */
+    static HttpRoute routeFor( final SiteConfig site )
+            throws MalformedURLException
+    {
+        URL url = new URL( site.getUri() );
+        String scheme = url.getProtocol().toLowerCase();
+        return new HttpRoute( new HttpHost( url.getHost(), site.getPort(), scheme ), null, "https".equals( scheme ) );
+    }
+
+    /**
+     * Lease the given number of connections on the route at once, opening any that aren't open yet, then release them
+     * all. Leases come from idle pooled connections first, so only the shortfall is opened.
+     *
+     * @return the number of connections opened
+     */
+    static int prewarm( final CloseBlockingConnectionManager manager, final HttpRoute route, final SiteConfig site,
+                        final int connections )
+    {
+        Logger logger = LoggerFactory.getLogger( PoolPrewarmer.class );
+
+        List<HttpClientConnection> leased = new ArrayList<HttpClientConnection>( connections );
+        int opened = 0;
+        try
+        {
+            for ( int i = 0; i < connections; i++ )
+            {
+                HttpClientConnection conn;
+                try
+                {
+                    conn = manager.requestConnection( route, null ).get( LEASE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS );
+                }
+                catch ( ConnectionPoolTimeoutException e )
+                {
+                    logger.debug( "Connection pool for: {} is busy; stopping prewarm after {} connections.",
+                                  site.getId(), i );
+                    break;
+                }
+
+                leased.add( conn );
+                if ( !conn.isOpen() )
+                {
+                    HttpClientContext context = HttpClientContext.create();
+                    manager.connect( conn, route, 1000 * site.getRequestTimeoutSeconds(), context );
+                    manager.routeComplete( conn, route, context );
+                    opened++;
+                }
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch ( IOException | ExecutionException e )
+        {
+            logger.warn( String.format( "Failed to prewarm connection for: %s. Reason: %s", site.getId(),
+                                        e.getMessage() ), e );
+        }
+        finally
+        {
+            for ( HttpClientConnection conn : leased )
+            {
+                release( manager, conn );
+            }
+        }
+
+        logger.debug( "Opened {} connections to: {} for: {}", opened, route, site.getId() );
+        return opened;
+    }
+
+    private static void release( final CloseBlockingConnectionManager manager, final HttpClientConnection conn )
+    {
+        if ( !conn.isOpen() )
+        {
+            try
+            {
+                conn.shutdown();
+            }
+            catch ( IOException e )
+            {
+                LoggerFactory.getLogger( PoolPrewarmer.class ).trace( "Failed to shut down connection: " + conn, e );
+            }
+        }
+
+        // a closed connection is discarded by the pool; an open one is parked until idle eviction
+        manager.releaseConnection( conn, null, 0, TimeUnit.MILLISECONDS );
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.conn;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.commonjava.util.jhttpc.INTERNAL.util.HttpUtils;
+import org.commonjava.util.jhttpc.metrics.RequestEvent;
+import org.commonjava.util.jhttpc.metrics.RequestEventExporter;
+import org.commonjava.util.jhttpc.metrics.RequestPhase;
+import org.commonjava.util.jhttpc.metrics.RequestTimings;
+import org.commonjava.util.jhttpc.metrics.SitePoolMetrics;
+import org.commonjava.util.jhttpc.model.SiteConfig;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Follows one request through {@link TrackedHttpClient}: collects its {@link RequestTimings}, and when the exchange
+ * finishes (the response body is fully read or closed, or the request fails) records them in the site metrics and, if
+ * the request was sampled, exports its {@link RequestEvent}. Finishing happens exactly once.
+ */
+final class RequestRecorder
+{
+    private final SiteConfig site;
+
+    private final SitePoolMetrics metrics;
+
+    private final RequestEventExporter exporter;
+
+    private final int sampleRate;
+
+    private final HttpHost target;
+
+    private final HttpRequest request;
+
+    private final RequestTimings timings = new RequestTimings();
+
+    private final long timestamp = System.currentTimeMillis();
+
+    private final long startNanos = System.nanoTime();
+
+    private final AtomicLong responseBytes = new AtomicLong( 0 );
+
+    private final AtomicBoolean finished = new AtomicBoolean( false );
+
+    private volatile long headersNanos;
+
+    private volatile int status;
+
+    private volatile Throwable error;
+
+    private RequestRecorder( final SiteConfig site, final SitePoolMetrics metrics, final RequestEventExporter exporter,
+                             final int sampleRate, final HttpHost target, final HttpRequest request )
+    {
+        this.site = site;
+        this.metrics = metrics;
+        this.exporter = exporter;
+        this.sampleRate = sampleRate;
+        this.target = target;
+        this.request = request;
+    }
+
+    /**
+     * @param exporter where to send the request's event, or null if there are no events for the site
+     */
+    static RequestRecorder start( final SiteConfig site, final SitePoolMetrics metrics,
+                                  final RequestEventExporter exporter, final HttpHost target,
+                                  final HttpRequest request )
+    {
+        Integer rate = site.getBaseSampleRate();
+        int sampleRate = rate == null || rate < 1 ? 1 : rate;
+        boolean sampled = exporter != null && RequestEventExporter.sample( sampleRate );
+
+        return new RequestRecorder( site, metrics, sampled ? exporter : null, sampleRate, target, request );
+    }
+
+    RequestTimings getTimings()
+    {
+        return timings;
+    }
+
+    void responseReceived( final HttpResponse response )
+    {
+        status = response.getStatusLine().getStatusCode();
+        headersNanos = System.nanoTime();
+        timings.add( RequestPhase.LEASE, CloseBlockingConnectionManager.getThreadLeaseWaitNanos() );
+    }
+
+    void failed( final Throwable error )
+    {
+        this.error = error;
+        timings.add( RequestPhase.LEASE, CloseBlockingConnectionManager.getThreadLeaseWaitNanos() );
+        finish();
+    }
+
+    void addResponseBytes( final long count )
+    {
+        responseBytes.addAndGet( count );
+    }
+
+    void finish()
+    {
+        if ( !finished.compareAndSet( false, true ) )
+        {
+            return;
+        }
+
+        long end = System.nanoTime();
+        if ( headersNanos > 0 )
+        {
+            timings.add( RequestPhase.BODY, end - headersNanos );
+        }
+
+        if ( metrics != null )
+        {
+            metrics.recordTimings( timings );
+        }
+
+        if ( exporter != null )
+        {
+            exporter.offer( new RequestEvent( timestamp, sampleRate, eventFields( end ) ) );
+        }
+    }
+
+    private Map<String, Object> eventFields( final long end )
+    {
+        Map<String, Object> fields = new LinkedHashMap<String, Object>();
+        fields.put( RequestEvent.SITE_ID, site.getId() );
+        fields.put( RequestEvent.METHOD, request.getRequestLine().getMethod() );
+        if ( target != null )
+        {
+            fields.put( RequestEvent.HOST, target.toHostString() );
+        }
+        fields.put( RequestEvent.PATH, HttpUtils.pathOf( request.getRequestLine().getUri() ) );
+
+        if ( error != null )
+        {
+            fields.put( RequestEvent.ERROR, error.getClass().getSimpleName() + ": " + error.getMessage() );
+        }
+        else
+        {
+            fields.put( RequestEvent.STATUS, status );
+        }
+
+        if ( request instanceof HttpEntityEnclosingRequest )
+        {
+            HttpEntity entity = ( (HttpEntityEnclosingRequest) request ).getEntity();
+            if ( entity != null && entity.getContentLength() > -1 )
+            {
+                fields.put( RequestEvent.REQUEST_BYTES, entity.getContentLength() );
+            }
+        }
+
+        fields.put( RequestEvent.RESPONSE_BYTES, responseBytes.get() );
+        fields.put( RequestEvent.NEW_CONNECTION, timings.isNewConnection() );
+
+        long headers = headersNanos > 0 ? headersNanos : end;
+        fields.put( RequestEvent.DURATION_MS, TimeUnit.NANOSECONDS.toMillis( headers - startNanos ) );
+        fields.put( RequestEvent.TOTAL_MS, TimeUnit.NANOSECONDS.toMillis( end - startNanos ) );
+        for ( RequestPhase phase : RequestPhase.values() )
+        {
+            fields.put( phase.getEventField(), timings.getMillis( phase ) );
+        }
+
+        return fields;
+    }
+}
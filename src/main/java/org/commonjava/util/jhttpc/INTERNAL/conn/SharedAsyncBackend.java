@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.conn;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.config.Lookup;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.commonjava.util.jhttpc.JHttpCException;
+import org.commonjava.util.jhttpc.model.SiteConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import java.io.Closeable;
+import java.net.MalformedURLException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+/**
+ * The single NIO client behind every async client of a {@link ConnectionManagerCache}: one I/O reactor, with a handful
+ * of dispatcher threads, and one connection pool, however many sites use it. Per-site settings travel with each request
+ * instead (see {@link TrackedHttpAsyncClient}): the site's TLS strategy and timeouts / proxy go into the request
+ * context, along with a per-pool user token, so pooled connections are only reused by requests with the same TLS
+ * material.
+ */
+public final class SharedAsyncBackend
+        implements Closeable
+{
+    /**
+     * Number of I/O dispatcher threads, shared by all sites.
+     */
+    public static final int IO_THREADS = Math.max( 1, Math.min( 4, Runtime.getRuntime().availableProcessors() ) );
+
+    /**
+     * Cap on open async connections when there's no global connection limit.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 200;
+
+    /**
+     * Context attribute the async pool reads a request's session strategy registry from, in place of its own. Its
+     * constant in {@link PoolingNHttpClientConnectionManager} is package-private.
+     */
+    static final String IOSESSION_FACTORY_REGISTRY = "http.iosession-factory-registry";
+
+    private static final AtomicLong TOKEN_COUNTER = new AtomicLong( 0 );
+
+    private final PoolingNHttpClientConnectionManager pool;
+
+    private final CloseableHttpAsyncClient client;
+
+    /**
+     * @param builder client builder, already decorated by the factory's authenticator. Its connection manager and
+     * thread factory are replaced.
+     * @param maxConnections maximum number of open async connections, across all sites
+     */
+    public SharedAsyncBackend( final HttpAsyncClientBuilder builder, final int maxConnections )
+            throws JHttpCException
+    {
+        IOReactorConfig reactorConfig = IOReactorConfig.custom().setIoThreadCount( IO_THREADS ).build();
+        try
+        {
+            pool = new PoolingNHttpClientConnectionManager(
+                    new DefaultConnectingIOReactor( reactorConfig, daemonThreads( "jHTTPc async-io-" ) ) );
+        }
+        catch ( IOReactorException e )
+        {
+            throw new JHttpCException( "Cannot start async I/O reactor: %s", e, e.getMessage() );
+        }
+
+        pool.setMaxTotal( maxConnections );
+        pool.setDefaultMaxPerRoute( SiteConfig.DEFAULT_MAX_CONNECTIONS );
+
+        client = builder.setConnectionManager( pool )
+                        .setThreadFactory( daemonThreads( "jHTTPc async-reactor-" ) )
+                        .build();
+    }
+
+    private static ThreadFactory daemonThreads( final String prefix )
+    {
+        final AtomicInteger counter = new AtomicInteger( 0 );
+        return ( runnable ) -> {
+            Thread t = new Thread( runnable );
+            t.setDaemon( true );
+            t.setName( prefix + counter.getAndIncrement() );
+            return t;
+        };
+    }
+
+    /**
+     * Start the I/O reactor.
+     */
+    public void start()
+    {
+        client.start();
+    }
+
+    public CloseableHttpAsyncClient getClient()
+    {
+        return client;
+    }
+
+    /**
+     * Build the TLS binding for a pool: the session strategies its async requests connect with, and a user token that
+     * keeps their pooled connections apart from those of other pools (and of earlier TLS material of the same pool).
+     *
+     * @param sslContext the pool's TLS context, or null for the JVM default
+     */
+    public static TlsBinding bindTls( final SSLContext sslContext, final HostnameVerifier verifier )
+    {
+        SchemeIOSessionStrategy https = sslContext == null ?
+                SSLIOSessionStrategy.getDefaultStrategy() :
+                new SSLIOSessionStrategy( sslContext, verifier );
+
+        Lookup<SchemeIOSessionStrategy> strategies = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                                                                    .register( "http", NoopIOSessionStrategy.INSTANCE )
+                                                                    .register( "https", https )
+                                                                    .build();
+
+        return new TlsBinding( strategies, "jhttpc-async-" + TOKEN_COUNTER.incrementAndGet() );
+    }
+
+    /**
+     * Apply the site's per-route connection limit and connection config to its route in the shared pool. Sites on the
+     * same route share the limit, and the last one registered wins. Sites reached through a proxy use the defaults.
+     */
+    public void registerSite( final SiteConfig site )
+    {
+        if ( site.getProxyHost() != null )
+        {
+            return;
+        }
+
+        try
+        {
+            HttpRoute route = PoolPrewarmer.routeFor( site );
+            pool.setMaxPerRoute( route, site.getMaxPerRoute() );
+
+            ConnectionConfig connectionConfig = site.getConnectionConfig();
+            if ( connectionConfig != null )
+            {
+                pool.setConnectionConfig( route.getTargetHost(), connectionConfig );
+            }
+        }
+        catch ( MalformedURLException e )
+        {
+            Logger logger = LoggerFactory.getLogger( getClass() );
+            logger.warn( "Cannot set async connection limits for: {}. Invalid URL: {}", site.getId(), site.getUri() );
+        }
+    }
+
+    /**
+     * @return the request config for the site's async requests: its timeouts, and its proxy if it has one
+     */
+    public static RequestConfig requestConfig( final SiteConfig site )
+    {
+        RequestConfig.Builder builder = RequestConfig.copy( SiteConnectionConfig.defaultRequestConfig( site ) );
+        if ( site.getProxyHost() != null )
+        {
+            int port = site.getProxyPort();
+            builder.setProxy( new HttpHost( site.getProxyHost(), port < 1 ? -1 : port ) );
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Close expired connections, and those idle longer than the given time.
+     */
+    public void closeIdleConnections( final long idleTime, final TimeUnit unit )
+    {
+        pool.closeExpiredConnections();
+        pool.closeIdleConnections( idleTime, unit );
+    }
+
+    /**
+     * Estimate the heap held by the shared client and its open connections, on the same basis as
+     * {@link ConnectionManagerTracker#estimateMemoryBytes()}.
+     */
+    public long estimateMemoryBytes()
+    {
+        PoolStats stats = pool.getTotalStats();
+        long perConnection = ConnectionManagerTracker.CONNECTION_OVERHEAD_BYTES
+                + 2L * ConnectionConfig.DEFAULT.getBufferSize();
+
+        return ConnectionManagerTracker.POOL_OVERHEAD_BYTES + ConnectionManagerTracker.CLIENT_BYTES
+                + ( stats.getLeased() + stats.getAvailable() ) * perConnection;
+    }
+
+    public PoolStats getTotalStats()
+    {
+        return pool.getTotalStats();
+    }
+
+    /**
+     * Stop the I/O reactor and close every async connection.
+     */
+    @Override
+    public void close()
+    {
+        closeQuietly( client );
+    }
+
+    /**
+     * TLS strategies and connection-pool user token for one connection pool's async requests.
+     */
+    public static final class TlsBinding
+    {
+        private final Lookup<SchemeIOSessionStrategy> strategies;
+
+        private final String userToken;
+
+        TlsBinding( final Lookup<SchemeIOSessionStrategy> strategies, final String userToken )
+        {
+            this.strategies = strategies;
+            this.userToken = userToken;
+        }
+
+        public Lookup<SchemeIOSessionStrategy> getStrategies()
+        {
+            return strategies;
+        }
+
+        public String getUserToken()
+        {
+            return userToken;
+        }
+    }
+}
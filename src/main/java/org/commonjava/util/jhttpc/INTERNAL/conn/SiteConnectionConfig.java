@@ -15,6 +15,8 @@
  */
 package org.commonjava.util.jhttpc.INTERNAL.conn;
 
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.config.ConnectionConfig;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
@@ -22,18 +24,31 @@ import org.apache.http.config.SocketConfig;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
 import org.commonjava.util.jhttpc.model.SiteConfig;
 
+import java.net.MalformedURLException;
+import java.net.URL;
+
 /**
  * Created by jdcasey on 11/3/15.
  */
 public class SiteConnectionConfig
 {
-    private final SiteConfig config;
+    /**
+     * Context attribute holding the request config last put there by {@link #applyRequestConfig(HttpContext,
+     * RequestConfig)}, to tell it apart from one set by the caller.
+     */
+    static final String APPLIED_REQUEST_CONFIG = "jhttpc.applied-request-config";
+
+    private volatile SiteConfig config;
 
     private PlainConnectionSocketFactory httpFactory = PlainConnectionSocketFactory.getSocketFactory();
 
-    private SSLConnectionSocketFactory sslFactory = SSLConnectionSocketFactory.getSocketFactory();
+    private final SwappableSslSocketFactory sslFactory =
+            new SwappableSslSocketFactory( SSLConnectionSocketFactory.getSocketFactory() );
+
+    private String poolKey;
 
     public SiteConnectionConfig( SiteConfig config )
     {
@@ -45,17 +60,106 @@ public class SiteConnectionConfig
     {
         if ( factory != null )
         {
-            this.sslFactory = factory;
+            sslFactory.set( factory );
         }
 
         return this;
     }
 
+    /**
+     * Replace the TLS socket factory used for new connections, including in registries already handed to a live pool
+     * by {@link #getSocketFactoryRegistry()}. Connections already open are unaffected.
+     */
+    void swapSSLConnectionSocketFactory( final SSLConnectionSocketFactory factory )
+    {
+        sslFactory.set( factory );
+    }
+
+    public SSLConnectionSocketFactory getSSLConnectionSocketFactory()
+    {
+        return sslFactory.get();
+    }
+
+    /**
+     * Key this config on the site's endpoint (scheme, host, port, proxy and proxy user) plus the given TLS fingerprint,
+     * instead of on the site id, so that sites resolving to the same endpoint share one connection pool. The proxy user
+     * is part of the key because tunnels through the proxy are authenticated as that user.
+     */
+    public SiteConnectionConfig withSharedPool( final String tlsFingerprint )
+            throws MalformedURLException
+    {
+        URL url = new URL( config.getUri() );
+        String proxy = config.getProxyHost() == null ? "" : config.getProxyHost() + ":" + config.getProxyPort();
+        String proxyUser = config.getProxyHost() == null || config.getProxyUser() == null ? "" : config.getProxyUser();
+
+        this.poolKey = url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":" + config.getPort()
+                + ";proxy=" + proxy.toLowerCase() + ";proxyUser=" + proxyUser + ";tls=" + tlsFingerprint;
+
+        return this;
+    }
+
+    /**
+     * Replace the site settings (limits, timeouts, socket config) behind this config, as part of reconfiguring a live
+     * pool. The site id can't change, since it's part of this config's identity.
+     */
+    void update( final SiteConfig config )
+    {
+        if ( !this.config.getId().equals( config.getId() ) )
+        {
+            throw new IllegalArgumentException(
+                    "Cannot change site id from: " + this.config.getId() + " to: " + config.getId() );
+        }
+
+        this.config = config;
+    }
+
+    /**
+     * @return the default request config for clients of the given site, which applies its request timeout to both
+     * connecting and reading
+     */
+    public static RequestConfig defaultRequestConfig( final SiteConfig config )
+    {
+        final int timeout = 1000 * config.getRequestTimeoutSeconds();
+        return RequestConfig.custom()
+                            .setSocketTimeout( timeout )
+                            .setConnectTimeout( timeout )
+                            .build();
+    }
+
+    /**
+     * Put the given request config in the context, unless the caller put one of their own there. A config left in the
+     * context by an earlier request through this method (e.g. when a context is reused across requests) is replaced, so
+     * reused contexts pick up reconfigured settings.
+     */
+    public static void applyRequestConfig( final HttpContext context, final RequestConfig requestConfig )
+    {
+        Object current = context.getAttribute( HttpClientContext.REQUEST_CONFIG );
+        if ( current == null || current == context.getAttribute( APPLIED_REQUEST_CONFIG ) )
+        {
+            context.setAttribute( HttpClientContext.REQUEST_CONFIG, requestConfig );
+            context.setAttribute( APPLIED_REQUEST_CONFIG, requestConfig );
+        }
+    }
+
+    public boolean isSharedPool()
+    {
+        return poolKey != null;
+    }
+
+    public String getPoolKey()
+    {
+        return poolKey;
+    }
+
+    /**
+     * @return the socket factories for this site, wrapped to record connect and TLS handshake times in each request's
+     * {@link org.commonjava.util.jhttpc.metrics.RequestTimings}
+     */
     public Registry<ConnectionSocketFactory> getSocketFactoryRegistry()
     {
         return RegistryBuilder.<ConnectionSocketFactory>create()
-                              .register( "http", httpFactory )
-                              .register( "https", sslFactory )
+                              .register( "http", new TimingConnectionSocketFactory( httpFactory ) )
+                              .register( "https", new TimingLayeredSocketFactory( sslFactory ) )
                               .build();
     }
 
@@ -73,6 +177,11 @@ public class SiteConnectionConfig
 
         SiteConnectionConfig that = (SiteConnectionConfig) o;
 
+        if ( poolKey != null || that.poolKey != null )
+        {
+            return poolKey != null && poolKey.equals( that.poolKey );
+        }
+
         return config.equals( that.config );
 
     }
@@ -80,7 +189,7 @@ public class SiteConnectionConfig
     @Override
     public int hashCode()
     {
-        return config.hashCode();
+        return poolKey == null ? config.hashCode() : poolKey.hashCode();
     }
 
     @Override
@@ -89,6 +198,7 @@ public class SiteConnectionConfig
         return "SiteConnectionConfig{" +
                 "config=" + config +
                 ", sslFactory=" + sslFactory +
+                ", poolKey=" + poolKey +
                 '}';
     }
 
@@ -112,6 +222,11 @@ public class SiteConnectionConfig
         return config.getConnectionPoolTimeoutSeconds();
     }
 
+    public int getIdleConnectionTimeoutSeconds()
+    {
+        return config.getIdleConnectionTimeoutSeconds();
+    }
+
     public ConnectionConfig getConnectionConfig()
     {
         return config.getConnectionConfig();
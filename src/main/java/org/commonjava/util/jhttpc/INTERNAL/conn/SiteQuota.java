@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.conn;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A site's quota of connections from a shared pool, which can be resized while connections are leased against it.
+ * Shrinking it below the number of leases outstanding blocks new leases until enough are released.
+ */
+final class SiteQuota
+        extends Semaphore
+{
+    private static final long serialVersionUID = 1L;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private int max;
+
+    SiteQuota( final int max )
+    {
+        super( max, true );
+        this.max = max;
+    }
+
+    void resize( final int newMax )
+    {
+        lock.lock();
+        try
+        {
+            int delta = newMax - max;
+            if ( delta > 0 )
+            {
+                release( delta );
+            }
+            else if ( delta < 0 )
+            {
+                reducePermits( -delta );
+            }
+
+            max = newMax;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    int getMax()
+    {
+        lock.lock();
+        try
+        {
+            return max;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
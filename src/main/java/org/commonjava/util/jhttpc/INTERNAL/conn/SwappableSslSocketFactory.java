@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.conn;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * TLS socket factory registered in a pool's socket factory registry, which delegates to a factory that can be replaced
+ * while the pool is live (see {@link SiteConnectionConfig#swapSSLConnectionSocketFactory(SSLConnectionSocketFactory)}).
+ * Each new connection uses whichever factory is current when it's opened; connections already open keep the TLS
+ * session they were created with.
+ */
+final class SwappableSslSocketFactory
+        implements LayeredConnectionSocketFactory
+{
+    private volatile SSLConnectionSocketFactory delegate;
+
+    SwappableSslSocketFactory( final SSLConnectionSocketFactory delegate )
+    {
+        this.delegate = delegate;
+    }
+
+    SSLConnectionSocketFactory get()
+    {
+        return delegate;
+    }
+
+    void set( final SSLConnectionSocketFactory delegate )
+    {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Socket createSocket( final HttpContext context )
+            throws IOException
+    {
+        return delegate.createSocket( context );
+    }
+
+    @Override
+    public Socket connectSocket( final int connectTimeout, final Socket sock, final HttpHost host,
+                                 final InetSocketAddress remoteAddress, final InetSocketAddress localAddress,
+                                 final HttpContext context )
+            throws IOException
+    {
+        return delegate.connectSocket( connectTimeout, sock, host, remoteAddress, localAddress, context );
+    }
+
+    @Override
+    public Socket createLayeredSocket( final Socket socket, final String target, final int port,
+                                       final HttpContext context )
+            throws IOException
+    {
+        return delegate.createLayeredSocket( socket, target, port, context );
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SwappableSslSocketFactory{delegate=" + delegate + '}';
+    }
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.conn;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Request executor for virtual threads: a new thread per task, rather than a fixed pool of them, with at most a site's
+ * {@link org.commonjava.util.jhttpc.model.SiteConfig#getMaxConnections()} tasks running at once. Tasks waiting for
+ * their turn park their own (cheap) thread on a semaphore, and at most
+ * {@link ConnectionManagerTracker#QUEUED_REQUESTS_PER_CONNECTION} per running slot may wait; beyond that, tasks are
+ * rejected.
+ */
+public final class ThreadPerTaskExecutor
+        extends AbstractExecutorService
+{
+    private final ThreadFactory threadFactory;
+
+    private final SiteQuota running;
+
+    private final SiteQuota admitted;
+
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition terminated = lock.newCondition();
+
+    private volatile boolean shutdown;
+
+    public ThreadPerTaskExecutor( final ThreadFactory threadFactory, final int maxRunning )
+    {
+        this.threadFactory = threadFactory;
+        this.running = new SiteQuota( maxRunning );
+        this.admitted = new SiteQuota( admissions( maxRunning ) );
+    }
+
+    private static int admissions( final int maxRunning )
+    {
+        return maxRunning * ( 1 + ConnectionManagerTracker.QUEUED_REQUESTS_PER_CONNECTION );
+    }
+
+    /**
+     * Change the number of tasks allowed to run at once (and to wait), without interrupting those already admitted.
+     */
+    public void resize( final int maxRunning )
+    {
+        running.resize( maxRunning );
+        admitted.resize( admissions( maxRunning ) );
+    }
+
+    public int getMaxRunning()
+    {
+        return running.getMax();
+    }
+
+    @Override
+    public void execute( final Runnable task )
+    {
+        if ( shutdown )
+        {
+            throw new RejectedExecutionException( "Executor has been shut down" );
+        }
+
+        if ( !admitted.tryAcquire() )
+        {
+            throw new RejectedExecutionException(
+                    "Too many tasks waiting; at most " + admissions( running.getMax() ) + " are admitted" );
+        }
+
+        Thread thread = null;
+        try
+        {
+            thread = threadFactory.newThread( () -> run( task ) );
+            threads.add( thread );
+            thread.start();
+        }
+        catch ( RuntimeException | Error e )
+        {
+            admitted.release();
+            if ( thread != null )
+            {
+                threads.remove( thread );
+                if ( shutdown && threads.isEmpty() )
+                {
+                    signalTerminated();
+                }
+            }
+
+            throw e;
+        }
+    }
+
+    private void run( final Runnable task )
+    {
+        try
+        {
+            running.acquire();
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                running.release();
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            // shut down before it got its turn
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            admitted.release();
+            threads.remove( Thread.currentThread() );
+            if ( shutdown && threads.isEmpty() )
+            {
+                signalTerminated();
+            }
+        }
+    }
+
+    private void signalTerminated()
+    {
+        lock.lock();
+        try
+        {
+            terminated.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void shutdown()
+    {
+        shutdown = true;
+        if ( threads.isEmpty() )
+        {
+            signalTerminated();
+        }
+    }
+
+    /**
+     * Interrupts running and waiting tasks. Tasks are handed straight to their threads, so none are ever returned.
+     */
+    @Override
+    public List<Runnable> shutdownNow()
+    {
+        shutdown();
+        threads.forEach( Thread::interrupt );
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isShutdown()
+    {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated()
+    {
+        return shutdown && threads.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination( final long timeout, final TimeUnit unit )
+            throws InterruptedException
+    {
+        long nanos = unit.toNanos( timeout );
+        lock.lock();
+        try
+        {
+            while ( !isTerminated() )
+            {
+                if ( nanos <= 0 )
+                {
+                    return false;
+                }
+
+                nanos = terminated.awaitNanos( nanos );
+            }
+
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.conn;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+import org.commonjava.util.jhttpc.metrics.RequestPhase;
+import org.commonjava.util.jhttpc.metrics.RequestTimings;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Records the time spent connecting sockets in the request's {@link RequestTimings}, if it has any.
+ */
+class TimingConnectionSocketFactory
+        implements ConnectionSocketFactory
+{
+    protected final ConnectionSocketFactory delegate;
+
+    TimingConnectionSocketFactory( final ConnectionSocketFactory delegate )
+    {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Socket createSocket( final HttpContext context )
+            throws IOException
+    {
+        return delegate.createSocket( context );
+    }
+
+    @Override
+    public Socket connectSocket( final int connectTimeout, final Socket socket, final HttpHost host,
+                                 final InetSocketAddress remoteAddress, final InetSocketAddress localAddress,
+                                 final HttpContext context )
+            throws IOException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return delegate.connectSocket( connectTimeout, socket, host, remoteAddress, localAddress, context );
+        }
+        finally
+        {
+            record( context, RequestPhase.CONNECT, start );
+        }
+    }
+
+    static void record( final HttpContext context, final RequestPhase phase, final long start )
+    {
+        RequestTimings timings = RequestTimings.get( context );
+        if ( timings != null )
+        {
+            timings.add( phase, System.nanoTime() - start );
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName() + "{" + delegate + "}";
+    }
+}
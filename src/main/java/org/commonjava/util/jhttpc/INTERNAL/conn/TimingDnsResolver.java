@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.conn;
+
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.commonjava.util.jhttpc.metrics.RequestPhase;
+import org.commonjava.util.jhttpc.metrics.RequestTimings;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Times host name lookups. {@link DnsResolver} has no access to the request context, so the connection manager binds
+ * the connecting request's {@link RequestTimings} to the thread for the duration of the connect.
+ */
+final class TimingDnsResolver
+        implements DnsResolver
+{
+    private static final ThreadLocal<RequestTimings> CURRENT = new ThreadLocal<RequestTimings>();
+
+    private final DnsResolver delegate;
+
+    TimingDnsResolver()
+    {
+        this( SystemDefaultDnsResolver.INSTANCE );
+    }
+
+    TimingDnsResolver( final DnsResolver delegate )
+    {
+        this.delegate = delegate;
+    }
+
+    static void bind( final RequestTimings timings )
+    {
+        CURRENT.set( timings );
+    }
+
+    static void unbind()
+    {
+        CURRENT.remove();
+    }
+
+    @Override
+    public InetAddress[] resolve( final String host )
+            throws UnknownHostException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return delegate.resolve( host );
+        }
+        finally
+        {
+            RequestTimings timings = CURRENT.get();
+            if ( timings != null )
+            {
+                timings.add( RequestPhase.DNS, System.nanoTime() - start );
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.conn;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+import org.commonjava.util.jhttpc.metrics.RequestPhase;
+
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Splits the connect step of a TLS socket factory into the TCP connect and the TLS handshake, and records each in the
+ * request's {@link org.commonjava.util.jhttpc.metrics.RequestTimings}. The TCP connect mirrors what
+ * {@link org.apache.http.conn.ssl.SSLConnectionSocketFactory#connectSocket} does before layering TLS on top.
+ */
+final class TimingLayeredSocketFactory
+        extends TimingConnectionSocketFactory
+        implements LayeredConnectionSocketFactory
+{
+    private final LayeredConnectionSocketFactory layered;
+
+    TimingLayeredSocketFactory( final LayeredConnectionSocketFactory delegate )
+    {
+        super( delegate );
+        this.layered = delegate;
+    }
+
+    @Override
+    public Socket connectSocket( final int connectTimeout, final Socket socket, final HttpHost host,
+                                 final InetSocketAddress remoteAddress, final InetSocketAddress localAddress,
+                                 final HttpContext context )
+            throws IOException
+    {
+        final Socket sock = socket != null ? socket : delegate.createSocket( context );
+        if ( sock instanceof SSLSocket )
+        {
+            // already secure; we can't separate the handshake from the connect
+            return super.connectSocket( connectTimeout, sock, host, remoteAddress, localAddress, context );
+        }
+
+        if ( localAddress != null )
+        {
+            sock.bind( localAddress );
+        }
+
+        if ( connectTimeout > 0 && sock.getSoTimeout() == 0 )
+        {
+            sock.setSoTimeout( connectTimeout );
+        }
+
+        long start = System.nanoTime();
+        try
+        {
+            sock.connect( remoteAddress, connectTimeout );
+        }
+        catch ( final IOException e )
+        {
+            try
+            {
+                sock.close();
+            }
+            catch ( final IOException ignore )
+            {
+            }
+
+            throw e;
+        }
+        finally
+        {
+            record( context, RequestPhase.CONNECT, start );
+        }
+
+        return createLayeredSocket( sock, host.getHostName(), remoteAddress.getPort(), context );
+    }
+
+    @Override
+    public Socket createLayeredSocket( final Socket socket, final String target, final int port,
+                                       final HttpContext context )
+            throws IOException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return layered.createLayeredSocket( socket, target, port, context );
+        }
+        finally
+        {
+            record( context, RequestPhase.TLS, start );
+        }
+    }
+}
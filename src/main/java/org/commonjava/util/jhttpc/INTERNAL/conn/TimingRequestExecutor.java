@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.conn;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.commonjava.util.jhttpc.metrics.RequestPhase;
+import org.commonjava.util.jhttpc.metrics.RequestTimings;
+
+import java.io.IOException;
+
+/**
+ * Records the time spent sending each request, and waiting for its response headers (time to first byte), in the
+ * request's {@link RequestTimings}.
+ */
+public final class TimingRequestExecutor
+        extends HttpRequestExecutor
+{
+    @Override
+    protected HttpResponse doSendRequest( final HttpRequest request, final HttpClientConnection conn,
+                                          final HttpContext context )
+            throws IOException, HttpException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return super.doSendRequest( request, conn, context );
+        }
+        finally
+        {
+            record( context, RequestPhase.REQUEST, start );
+        }
+    }
+
+    @Override
+    protected HttpResponse doReceiveResponse( final HttpRequest request, final HttpClientConnection conn,
+                                              final HttpContext context )
+            throws HttpException, IOException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return super.doReceiveResponse( request, conn, context );
+        }
+        finally
+        {
+            record( context, RequestPhase.TIME_TO_FIRST_BYTE, start );
+        }
+    }
+
+    private static void record( final HttpContext context, final RequestPhase phase, final long start )
+    {
+        RequestTimings timings = RequestTimings.get( context );
+        if ( timings != null )
+        {
+            timings.add( phase, System.nanoTime() - start );
+        }
+    }
+}
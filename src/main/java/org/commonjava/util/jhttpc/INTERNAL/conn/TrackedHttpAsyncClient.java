@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.conn;
+
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.commonjava.util.jhttpc.model.SiteConfig;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Async counterpart of {@link TrackedHttpClient}. Delegates to the NIO client shared by every site (see
+ * {@link SharedAsyncBackend}), putting this site's TLS strategy, pool user token and request config (timeouts, proxy)
+ * into each request's context, and releases the tracker when closed. Closing this client does NOT stop the shared I/O
+ * reactor; that happens when the factory shuts down.
+ */
+public class TrackedHttpAsyncClient
+        extends CloseableHttpAsyncClient
+{
+    private final CloseableHttpAsyncClient delegate;
+
+    private final ConnectionManagerTracker managerWrapper;
+
+    private final SiteConfig site;
+
+    private final AtomicBoolean closed = new AtomicBoolean( false );
+
+    public TrackedHttpAsyncClient( final CloseableHttpAsyncClient delegate,
+                                   final ConnectionManagerTracker managerWrapper, final SiteConfig site )
+    {
+        this.delegate = delegate;
+        this.managerWrapper = managerWrapper;
+        this.site = site;
+    }
+
+    @Override
+    public boolean isRunning()
+    {
+        return !closed.get() && delegate.isRunning();
+    }
+
+    /**
+     * No-op; the shared client is started when it's built.
+     */
+    @Override
+    public void start()
+    {
+    }
+
+    @Override
+    public <T> Future<T> execute( final HttpAsyncRequestProducer requestProducer,
+                                  final HttpAsyncResponseConsumer<T> responseConsumer, final HttpContext context,
+                                  final FutureCallback<T> callback )
+    {
+        if ( closed.get() )
+        {
+            throw new IllegalStateException( "Client has been closed" );
+        }
+
+        HttpClientContext ctx = HttpClientContext.adapt( context == null ? new BasicHttpContext() : context );
+
+        // read per request, so TLS material swapped into the pool applies from the next request
+        SharedAsyncBackend.TlsBinding tls = managerWrapper.getAsyncTls();
+        ctx.setAttribute( SharedAsyncBackend.IOSESSION_FACTORY_REGISTRY, tls.getStrategies() );
+        ctx.setUserToken( tls.getUserToken() );
+
+        SiteConfig current = managerWrapper.getReconfiguredSite( site.getId() );
+        SiteConnectionConfig.applyRequestConfig( ctx, SharedAsyncBackend.requestConfig(
+                current == null ? site : current ) );
+
+        return delegate.execute( requestProducer, responseConsumer, ctx, callback );
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        if ( closed.compareAndSet( false, true ) && managerWrapper != null )
+        {
+            managerWrapper.release();
+        }
+    }
+}
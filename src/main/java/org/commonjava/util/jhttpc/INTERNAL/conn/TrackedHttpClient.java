@@ -19,20 +19,24 @@ import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.HttpContext;
-import org.commonjava.util.jhttpc.INTERNAL.util.HttpUtils;
+import org.commonjava.util.jhttpc.INTERNAL.jfr.JfrEvents;
+import org.commonjava.util.jhttpc.metrics.RequestEventExporter;
+import org.commonjava.util.jhttpc.metrics.RequestTimings;
+import org.commonjava.util.jhttpc.metrics.SitePoolMetrics;
+import org.commonjava.util.jhttpc.model.SiteConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.lang.ref.WeakReference;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by jdcasey on 10/28/15.
@@ -44,14 +48,59 @@ public class TrackedHttpClient
 
     private final ConnectionManagerTracker managerWrapper;
 
-    private Set<WeakReference<HttpRequest>> requests = new HashSet<WeakReference<HttpRequest>>();
+    private final boolean sharedDelegate;
 
-    private Set<WeakReference<CloseableHttpResponse>> responses = new HashSet<WeakReference<CloseableHttpResponse>>();
+    private final SiteConfig site;
+
+    /**
+     * The request config this client's delegate was built with (see
+     * {@link SiteConnectionConfig#defaultRequestConfig(SiteConfig)}), or null without a site.
+     */
+    private final RequestConfig siteRequestConfig;
+
+    private final SitePoolMetrics metrics;
+
+    private final RequestEventExporter events;
+
+    private final AtomicBoolean closed = new AtomicBoolean( false );
+
+    private final InFlightRegistry inFlight = new InFlightRegistry();
 
     public TrackedHttpClient( CloseableHttpClient delegate, ConnectionManagerTracker managerWrapper )
+    {
+        this( delegate, managerWrapper, false );
+    }
+
+    /**
+     * @param sharedDelegate if true, the delegate is shared with other clients (see
+     * {@link ConnectionManagerTracker#getSharedClient(String)}), and won't be closed when this client is closed.
+     */
+    public TrackedHttpClient( CloseableHttpClient delegate, ConnectionManagerTracker managerWrapper,
+                              boolean sharedDelegate )
+    {
+        this( delegate, managerWrapper, sharedDelegate, null, null, null );
+    }
+
+    /**
+     * When a site is given, each request gets {@link RequestTimings} in its context (under
+     * {@link RequestTimings#CONTEXT_ATTRIBUTE}), which are added to the site's metrics once the response is consumed
+     * or closed.
+     *
+     * @param metrics where to record request phase timings, or null
+     * @param events if not null, one {@link org.commonjava.util.jhttpc.metrics.RequestEvent} is exported for each
+     * sampled request (see {@link SiteConfig#getBaseSampleRate()}), once its response is consumed or closed.
+     */
+    public TrackedHttpClient( CloseableHttpClient delegate, ConnectionManagerTracker managerWrapper,
+                              boolean sharedDelegate, SiteConfig site, SitePoolMetrics metrics,
+                              RequestEventExporter events )
     {
         this.delegate = delegate;
         this.managerWrapper = managerWrapper;
+        this.sharedDelegate = sharedDelegate;
+        this.site = site;
+        this.siteRequestConfig = site == null ? null : SiteConnectionConfig.defaultRequestConfig( site );
+        this.metrics = metrics;
+        this.events = events;
     }
 
     @Override
@@ -60,12 +109,57 @@ public class TrackedHttpClient
     {
         Logger logger = LoggerFactory.getLogger( getClass() );
         logger.trace( "Tracking request/response" );
-        requests.add( new WeakReference<HttpRequest>( request ) );
 
-        CloseableHttpResponse response = delegate.execute( target, request, context );
-        responses.add( new WeakReference<CloseableHttpResponse>( response ) );
+        RequestRecorder recorder = null;
+        HttpContext ctx = context;
+        if ( site != null )
+        {
+            recorder = RequestRecorder.start( site, metrics, events, target, request );
+
+            ctx = context == null ? HttpClientContext.create() : context;
+            ctx.setAttribute( RequestTimings.CONTEXT_ATTRIBUTE, recorder.getTimings() );
+
+            // always put the site's config in the context ourselves: otherwise the delegate copies in the one it was
+            // built with, which a reused context would then keep across a reconfigure. A config set by the caller wins.
+            SiteConfig current = managerWrapper == null ? null : managerWrapper.getReconfiguredSite( site.getId() );
+            SiteConnectionConfig.applyRequestConfig( ctx, current == null ? siteRequestConfig :
+                    SiteConnectionConfig.defaultRequestConfig( current ) );
+
+            CloseBlockingConnectionManager.resetThreadLeaseWait();
+        }
+
+        InFlightExchange exchange = inFlight.register( request, recorder );
+        Object jfrEvent = JfrEvents.beginRequest();
 
-        return response;
+        CloseableHttpResponse response;
+        try
+        {
+            response = delegate.execute( target, request, ctx );
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            JfrEvents.endRequest( jfrEvent, site, target, request, 0, e, leaseWaitNanos() );
+            exchange.failed( e );
+            throw e;
+        }
+
+        JfrEvents.endRequest( jfrEvent, site, target, request, response.getStatusLine().getStatusCode(), null,
+                              leaseWaitNanos() );
+        return exchange.responseReceived( response );
+    }
+
+    private long leaseWaitNanos()
+    {
+        // only reset per request when there's a site to record timings for
+        return site == null ? 0 : CloseBlockingConnectionManager.getThreadLeaseWaitNanos();
+    }
+
+    /**
+     * @return the number of requests still executing, plus responses not yet consumed or closed
+     */
+    public int getInFlightCount()
+    {
+        return inFlight.size();
     }
 
 //    @Override
@@ -131,12 +225,21 @@ public class TrackedHttpClient
     public void close()
             throws IOException
     {
-        HttpUtils.cleanupResources( delegate, requests, responses );
+        if ( !closed.compareAndSet( false, true ) )
+        {
+            return;
+        }
+
+        inFlight.cleanupAll();
         if ( managerWrapper != null )
         {
             managerWrapper.release();
         }
-        delegate.close();
+
+        if ( !sharedDelegate )
+        {
+            delegate.close();
+        }
     }
 
     @Override
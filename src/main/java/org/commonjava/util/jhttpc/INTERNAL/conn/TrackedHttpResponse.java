@@ -0,0 +1,237 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.conn;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.params.HttpParams;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Response handed back by {@link TrackedHttpClient}, which runs a callback (once) after the underlying response is
+ * closed.
+ */
+final class TrackedHttpResponse
+        implements CloseableHttpResponse
+{
+    private final CloseableHttpResponse delegate;
+
+    private final Runnable onClose;
+
+    private final AtomicBoolean closed = new AtomicBoolean( false );
+
+    TrackedHttpResponse( final CloseableHttpResponse delegate, final Runnable onClose )
+    {
+        this.delegate = delegate;
+        this.onClose = onClose;
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        try
+        {
+            delegate.close();
+        }
+        finally
+        {
+            if ( closed.compareAndSet( false, true ) )
+            {
+                onClose.run();
+            }
+        }
+    }
+
+    @Override
+    public StatusLine getStatusLine()
+    {
+        return delegate.getStatusLine();
+    }
+
+    @Override
+    public void setStatusLine( final StatusLine statusline )
+    {
+        delegate.setStatusLine( statusline );
+    }
+
+    @Override
+    public void setStatusLine( final ProtocolVersion ver, final int code )
+    {
+        delegate.setStatusLine( ver, code );
+    }
+
+    @Override
+    public void setStatusLine( final ProtocolVersion ver, final int code, final String reason )
+    {
+        delegate.setStatusLine( ver, code, reason );
+    }
+
+    @Override
+    public void setStatusCode( final int code )
+            throws IllegalStateException
+    {
+        delegate.setStatusCode( code );
+    }
+
+    @Override
+    public void setReasonPhrase( final String reason )
+            throws IllegalStateException
+    {
+        delegate.setReasonPhrase( reason );
+    }
+
+    @Override
+    public HttpEntity getEntity()
+    {
+        return delegate.getEntity();
+    }
+
+    @Override
+    public void setEntity( final HttpEntity entity )
+    {
+        delegate.setEntity( entity );
+    }
+
+    @Override
+    public Locale getLocale()
+    {
+        return delegate.getLocale();
+    }
+
+    @Override
+    public void setLocale( final Locale loc )
+    {
+        delegate.setLocale( loc );
+    }
+
+    @Override
+    public ProtocolVersion getProtocolVersion()
+    {
+        return delegate.getProtocolVersion();
+    }
+
+    @Override
+    public boolean containsHeader( final String name )
+    {
+        return delegate.containsHeader( name );
+    }
+
+    @Override
+    public Header[] getHeaders( final String name )
+    {
+        return delegate.getHeaders( name );
+    }
+
+    @Override
+    public Header getFirstHeader( final String name )
+    {
+        return delegate.getFirstHeader( name );
+    }
+
+    @Override
+    public Header getLastHeader( final String name )
+    {
+        return delegate.getLastHeader( name );
+    }
+
+    @Override
+    public Header[] getAllHeaders()
+    {
+        return delegate.getAllHeaders();
+    }
+
+    @Override
+    public void addHeader( final Header header )
+    {
+        delegate.addHeader( header );
+    }
+
+    @Override
+    public void addHeader( final String name, final String value )
+    {
+        delegate.addHeader( name, value );
+    }
+
+    @Override
+    public void setHeader( final Header header )
+    {
+        delegate.setHeader( header );
+    }
+
+    @Override
+    public void setHeader( final String name, final String value )
+    {
+        delegate.setHeader( name, value );
+    }
+
+    @Override
+    public void setHeaders( final Header[] headers )
+    {
+        delegate.setHeaders( headers );
+    }
+
+    @Override
+    public void removeHeader( final Header header )
+    {
+        delegate.removeHeader( header );
+    }
+
+    @Override
+    public void removeHeaders( final String name )
+    {
+        delegate.removeHeaders( name );
+    }
+
+    @Override
+    public HeaderIterator headerIterator()
+    {
+        return delegate.headerIterator();
+    }
+
+    @Override
+    public HeaderIterator headerIterator( final String name )
+    {
+        return delegate.headerIterator( name );
+    }
+
+    @Override
+    @Deprecated
+    public HttpParams getParams()
+    {
+        return delegate.getParams();
+    }
+
+    @Override
+    @Deprecated
+    public void setParams( final HttpParams params )
+    {
+        delegate.setParams( params );
+    }
+
+    @Override
+    public String toString()
+    {
+        return delegate.toString();
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Return of a leased connection to its pool.
+ */
+@Name( "org.commonjava.jhttpc.ConnectionRelease" )
+@Label( "Connection Release" )
+@Category( "jHTTPc" )
+@StackTrace( false )
+final class ConnectionReleaseEvent
+        extends Event
+{
+    @Label( "Site Id" )
+    String siteId;
+
+    @Label( "Route" )
+    String route;
+
+    @Label( "Hold Time" )
+    @Timespan( Timespan.NANOSECONDS )
+    long holdTime;
+
+    @Label( "Reusable" )
+    boolean reusable;
+}
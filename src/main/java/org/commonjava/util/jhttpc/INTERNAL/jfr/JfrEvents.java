@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.jfr;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.commonjava.util.jhttpc.model.SiteConfig;
+
+/**
+ * Java Flight Recorder events for jHTTPc activity: request execution, connection leases and releases, pool creation
+ * and SSLContext construction. Events show up in recordings under the "jHTTPc" category.
+ * <p>
+ * The event classes need the jdk.jfr API (JDK 8u262 or later, or JDK 11+). Where it's missing, every method here is a
+ * no-op and the event classes are never loaded. The begin* methods return an opaque handle to pass to the matching
+ * end* method; it's null when JFR is unavailable or the event isn't enabled in any recording, so disabled events cost
+ * a null check.
+ */
+public final class JfrEvents
+{
+    private static final boolean AVAILABLE = detect();
+
+    private JfrEvents()
+    {
+    }
+
+    private static boolean detect()
+    {
+        try
+        {
+            Class.forName( "jdk.jfr.Event" );
+            return true;
+        }
+        catch ( ClassNotFoundException | LinkageError e )
+        {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the runtime supports JFR events
+     */
+    public static boolean isAvailable()
+    {
+        return AVAILABLE;
+    }
+
+    public static Object beginRequest()
+    {
+        return AVAILABLE ? JfrRecorder.beginRequest() : null;
+    }
+
+    public static void endRequest( final Object handle, final SiteConfig site, final HttpHost target,
+                                   final HttpRequest request, final int status, final Throwable error,
+                                   final long poolWaitNanos )
+    {
+        if ( handle != null )
+        {
+            JfrRecorder.endRequest( handle, site, target, request, status, error, poolWaitNanos );
+        }
+    }
+
+    public static Object beginLease()
+    {
+        return AVAILABLE ? JfrRecorder.beginLease() : null;
+    }
+
+    public static void endLease( final Object handle, final String siteId, final HttpRoute route,
+                                 final boolean reused, final boolean acquired )
+    {
+        if ( handle != null )
+        {
+            JfrRecorder.endLease( handle, siteId, route, reused, acquired );
+        }
+    }
+
+    public static void connectionReleased( final String siteId, final HttpRoute route, final long holdNanos,
+                                           final boolean reusable )
+    {
+        if ( AVAILABLE )
+        {
+            JfrRecorder.connectionReleased( siteId, route, holdNanos, reusable );
+        }
+    }
+
+    public static Object beginPoolCreation()
+    {
+        return AVAILABLE ? JfrRecorder.beginPoolCreation() : null;
+    }
+
+    public static void endPoolCreation( final Object handle, final String siteId, final int maxConnections,
+                                        final boolean shared )
+    {
+        if ( handle != null )
+        {
+            JfrRecorder.endPoolCreation( handle, siteId, maxConnections, shared );
+        }
+    }
+
+    public static Object beginSslContext()
+    {
+        return AVAILABLE ? JfrRecorder.beginSslContext() : null;
+    }
+
+    public static void endSslContext( final Object handle, final SiteConfig site )
+    {
+        if ( handle != null )
+        {
+            JfrRecorder.endSslContext( handle, site );
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.jfr;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.commonjava.util.jhttpc.INTERNAL.util.HttpUtils;
+import org.commonjava.util.jhttpc.model.SiteConfig;
+
+/**
+ * The only code that touches the event classes, so they're loaded only once {@link JfrEvents} has found the jdk.jfr
+ * API.
+ */
+final class JfrRecorder
+{
+    private JfrRecorder()
+    {
+    }
+
+    static Object beginRequest()
+    {
+        RequestExecutionEvent event = new RequestExecutionEvent();
+        if ( !event.isEnabled() )
+        {
+            return null;
+        }
+
+        event.begin();
+        return event;
+    }
+
+    static void endRequest( final Object handle, final SiteConfig site, final HttpHost target,
+                            final HttpRequest request, final int status, final Throwable error,
+                            final long poolWaitNanos )
+    {
+        RequestExecutionEvent event = (RequestExecutionEvent) handle;
+        event.end();
+        if ( !event.shouldCommit() )
+        {
+            return;
+        }
+
+        event.siteId = site == null ? null : site.getId();
+        event.method = request.getRequestLine().getMethod();
+        event.host = target == null ? null : target.toHostString();
+        event.path = HttpUtils.pathOf( request.getRequestLine().getUri() );
+        event.status = status;
+        event.error = error == null ? null : error.getClass().getName();
+        event.poolWait = poolWaitNanos;
+        event.commit();
+    }
+
+    static Object beginLease()
+    {
+        ConnectionLeaseEvent event = new ConnectionLeaseEvent();
+        if ( !event.isEnabled() )
+        {
+            return null;
+        }
+
+        event.begin();
+        return event;
+    }
+
+    static void endLease( final Object handle, final String siteId, final HttpRoute route, final boolean reused,
+                          final boolean acquired )
+    {
+        ConnectionLeaseEvent event = (ConnectionLeaseEvent) handle;
+        event.end();
+        if ( !event.shouldCommit() )
+        {
+            return;
+        }
+
+        event.siteId = siteId;
+        event.route = String.valueOf( route );
+        event.reused = reused;
+        event.acquired = acquired;
+        event.commit();
+    }
+
+    static void connectionReleased( final String siteId, final HttpRoute route, final long holdNanos,
+                                    final boolean reusable )
+    {
+        ConnectionReleaseEvent event = new ConnectionReleaseEvent();
+        if ( !event.shouldCommit() )
+        {
+            return;
+        }
+
+        event.siteId = siteId;
+        event.route = String.valueOf( route );
+        event.holdTime = holdNanos;
+        event.reusable = reusable;
+        event.commit();
+    }
+
+    static Object beginPoolCreation()
+    {
+        PoolCreationEvent event = new PoolCreationEvent();
+        if ( !event.isEnabled() )
+        {
+            return null;
+        }
+
+        event.begin();
+        return event;
+    }
+
+    static void endPoolCreation( final Object handle, final String siteId, final int maxConnections,
+                                 final boolean shared )
+    {
+        PoolCreationEvent event = (PoolCreationEvent) handle;
+        event.end();
+        if ( !event.shouldCommit() )
+        {
+            return;
+        }
+
+        event.siteId = siteId;
+        event.maxConnections = maxConnections;
+        event.shared = shared;
+        event.commit();
+    }
+
+    static Object beginSslContext()
+    {
+        SslContextEvent event = new SslContextEvent();
+        if ( !event.isEnabled() )
+        {
+            return null;
+        }
+
+        event.begin();
+        return event;
+    }
+
+    static void endSslContext( final Object handle, final SiteConfig site )
+    {
+        SslContextEvent event = (SslContextEvent) handle;
+        event.end();
+        if ( !event.shouldCommit() )
+        {
+            return;
+        }
+
+        event.siteId = site.getId();
+        event.clientCertificate = site.getKeyCertPem() != null;
+        event.serverCertificate = site.getServerCertPem() != null;
+        event.trustType = String.valueOf( site.getTrustType() );
+        event.commit();
+    }
+}
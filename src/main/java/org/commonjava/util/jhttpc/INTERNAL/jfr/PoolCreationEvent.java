@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Creation of a site's blocking connection pool.
+ */
+@Name( "org.commonjava.jhttpc.PoolCreation" )
+@Label( "Connection Pool Creation" )
+@Category( "jHTTPc" )
+final class PoolCreationEvent
+        extends Event
+{
+    @Label( "Site Id" )
+    String siteId;
+
+    @Label( "Max Connections" )
+    int maxConnections;
+
+    @Label( "Shared" )
+    boolean shared;
+}
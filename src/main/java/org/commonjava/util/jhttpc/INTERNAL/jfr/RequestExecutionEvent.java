@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Execution of one request by a blocking client, up to the response headers (or failure).
+ */
+@Name( "org.commonjava.jhttpc.Request" )
+@Label( "HTTP Request" )
+@Category( "jHTTPc" )
+@StackTrace( false )
+final class RequestExecutionEvent
+        extends Event
+{
+    @Label( "Site Id" )
+    String siteId;
+
+    @Label( "Method" )
+    String method;
+
+    @Label( "Host" )
+    String host;
+
+    @Label( "Path" )
+    String path;
+
+    @Label( "Status" )
+    int status;
+
+    @Label( "Error" )
+    String error;
+
+    @Label( "Pool Wait" )
+    @Description( "Time spent waiting to lease connections during the request" )
+    @Timespan( Timespan.NANOSECONDS )
+    long poolWait;
+}
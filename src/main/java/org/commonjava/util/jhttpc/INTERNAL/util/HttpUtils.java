@@ -15,16 +15,12 @@
  */
 package org.commonjava.util.jhttpc.INTERNAL.util;
 
-import org.apache.http.HttpRequest;
 import org.apache.http.client.methods.AbstractExecutionAwareRequest;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.util.EntityUtils;
 
-import java.lang.ref.WeakReference;
-import java.util.Set;
-
 import static org.apache.commons.io.IOUtils.closeQuietly;
 
 public final class HttpUtils
@@ -57,57 +53,20 @@ public final class HttpUtils
         }
     }
 
-    public static void cleanupResources( CloseableHttpClient client, Set<WeakReference<HttpRequest>> requests,
-                                         Set<WeakReference<CloseableHttpResponse>> responses )
+    /**
+     * @return the path of a request URI (absolute or origin-form), without the query string
+     */
+    public static String pathOf( final String uri )
     {
-        if ( responses != null )
-        {
-            for ( WeakReference<CloseableHttpResponse> ref : responses )
-            {
-                if ( ref == null )
-                {
-                    continue;
-                }
-
-                CloseableHttpResponse response = ref.get();
-                if ( response == null )
-                {
-                    continue;
-                }
-
-                if ( response.getEntity() != null )
-                {
-                    EntityUtils.consumeQuietly( response.getEntity() );
-                    closeQuietly( response );
-                }
-            }
-        }
-
-        if ( requests != null )
+        String path = uri;
+        int idx = path.indexOf( "://" );
+        if ( idx > -1 )
         {
-            for ( WeakReference<HttpRequest> ref : requests )
-            {
-                if ( ref == null )
-                {
-                    continue;
-                }
-
-                HttpRequest request = ref.get();
-                if ( request == null )
-                {
-                    continue;
-                }
-
-                if ( request instanceof AbstractExecutionAwareRequest )
-                {
-                    ( (AbstractExecutionAwareRequest) request ).reset();
-                }
-            }
+            int slash = path.indexOf( '/', idx + 3 );
+            path = slash < 0 ? "/" : path.substring( slash );
         }
 
-        if ( client != null )
-        {
-            closeQuietly( client );
-        }
+        idx = path.indexOf( '?' );
+        return idx < 0 ? path : path.substring( 0, idx );
     }
 }
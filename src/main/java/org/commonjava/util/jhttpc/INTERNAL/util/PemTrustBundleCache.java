@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.util;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.apache.commons.codec.digest.DigestUtils.sha256Hex;
+
+/**
+ * Process-wide cache of the certificates decoded from PEM trust bundles, keyed by the SHA-256 of the bundle content.
+ * Sites (and reloads) that use the same CA bundle get its certificates and their aliases from here, instead of
+ * decoding and inspecting every certificate again; see {@link SSLUtils#decodePEMTrustStore(String, String)}. The least
+ * recently used bundles are dropped beyond {@link #MAX_ENTRIES}.
+ */
+public final class PemTrustBundleCache
+{
+
+    public static final int MAX_ENTRIES = 64;
+
+    private static final ReentrantLock lock = new ReentrantLock();
+
+    private static final Map<String, List<SSLUtils.TrustedCert>> bundles =
+            new LinkedHashMap<String, List<SSLUtils.TrustedCert>>( 16, 0.75f, true )
+            {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry( final Map.Entry<String, List<SSLUtils.TrustedCert>> eldest )
+                {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private static final AtomicLong hits = new AtomicLong( 0 );
+
+    private static final AtomicLong misses = new AtomicLong( 0 );
+
+    private PemTrustBundleCache()
+    {
+    }
+
+    /**
+     * @return the hex-encoded SHA-256 of the bundle content, used as its cache key
+     */
+    public static String keyOf( final String pemContent )
+    {
+        return sha256Hex( pemContent );
+    }
+
+    /**
+     * @return the certificates cached for the bundle key, or null if there are none
+     */
+    static List<SSLUtils.TrustedCert> get( final String key )
+    {
+        List<SSLUtils.TrustedCert> certs;
+        lock.lock();
+        try
+        {
+            // access-ordered, so even a lookup updates the map
+            certs = bundles.get( key );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        ( certs == null ? misses : hits ).incrementAndGet();
+        return certs;
+    }
+
+    /**
+     * Cache newly decoded certificates, unless another thread cached the same bundle first.
+     *
+     * @return the cached certificates, which callers should use instead of the ones passed in
+     */
+    static List<SSLUtils.TrustedCert> put( final String key, final List<SSLUtils.TrustedCert> certs )
+    {
+        lock.lock();
+        try
+        {
+            List<SSLUtils.TrustedCert> existing = bundles.putIfAbsent( key, certs );
+            return existing == null ? certs : existing;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public static int size()
+    {
+        lock.lock();
+        try
+        {
+            return bundles.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public static long getHitCount()
+    {
+        return hits.get();
+    }
+
+    public static long getMissCount()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Drop all cached bundles, so the next trust store built from each one decodes it again.
+     */
+    public static void clear()
+    {
+        lock.lock();
+        try
+        {
+            bundles.clear();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
@@ -29,6 +29,7 @@ import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.nio.charset.Charset;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -41,6 +42,7 @@ import java.security.cert.X509Certificate;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
@@ -101,78 +103,89 @@ public final class SSLUtils
         return ks;
     }
 
+    /**
+     * Build a trust store from the certificates in a PEM bundle. The first certificate is stored under the alias
+     * prefix, the rest under the prefix plus their index, and each one also under its subject CN and DNS subject
+     * alternative names. The decoded certificates are cached by bundle content (see {@link PemTrustBundleCache}), so a
+     * bundle shared by many sites is only parsed once; each call still gets its own KeyStore.
+     */
     public static KeyStore decodePEMTrustStore( final String pemContent, final String aliasPrefix )
             throws IOException, CertificateException, KeyStoreException, NoSuchAlgorithmException
     {
         Logger logger = LoggerFactory.getLogger( SSLUtils.class );
 
+        final String key = PemTrustBundleCache.keyOf( pemContent );
+        List<TrustedCert> certs = PemTrustBundleCache.get( key );
+        if ( certs == null )
+        {
+            certs = PemTrustBundleCache.put( key, readPEMCertificates( pemContent ) );
+        }
+        else
+        {
+            logger.trace( "Using {} cached certificates for PEM bundle: {}", certs.size(), key );
+        }
+
         final KeyStore ks = KeyStore.getInstance( KeyStore.getDefaultType() );
         ks.load( null );
 
-        final CertificateFactory certFactory = CertificateFactory.getInstance( "X.509" );
-
-        final List<String> lines = readLines( pemContent );
-
-        final StringBuilder current = new StringBuilder();
-        final List<String> entries = new ArrayList<String>();
-        for ( String line : lines )
+        int i = 0;
+        for ( final TrustedCert trusted : certs )
         {
-            if ( line == null )
+            KeyStore.TrustedCertificateEntry ksEntry = new KeyStore.TrustedCertificateEntry( trusted.cert );
+            ks.setEntry( i < 1 ? aliasPrefix : aliasPrefix + i, ksEntry, null );
+            for ( String alias : trusted.aliases )
             {
-                continue;
+                ks.setEntry( alias, ksEntry, null );
             }
 
-            if ( line.startsWith( "-----BEGIN" ) )
-            {
-                current.setLength( 0 );
-            }
-            else if ( line.startsWith( "-----END" ) )
-            {
-                entries.add( current.toString() );
-            }
-            else
-            {
-                current.append( line );
-            }
+            logger.trace( "Stored trusted cert with DN: {}\n  under aliases: {}", trusted.cert.getSubjectDN().getName(),
+                          trusted.aliases );
+            i++;
         }
 
-        logger.trace( "Found {} entries to decode.", entries.size() );
+        return ks;
+    }
 
-        int i = 0;
-        for ( final String entry : entries )
-        {
-            logger.trace( "Decoding certificate info from:\n\n{}\n\n", entry );
-            final byte[] data = decodeBase64( entry );
+    /**
+     * Decode the certificates of a PEM bundle as the blocks are read, rather than collecting all lines and entries
+     * first, reusing one buffer for the base64 of each block.
+     */
+    private static List<TrustedCert> readPEMCertificates( final String pemContent )
+            throws IOException, CertificateException
+    {
+        Logger logger = LoggerFactory.getLogger( SSLUtils.class );
 
-            final Certificate c = certFactory.generateCertificate( new ByteArrayInputStream( data ) );
-            X509Certificate cert = (X509Certificate) c;
+        final CertificateFactory certFactory = CertificateFactory.getInstance( "X.509" );
+        final List<TrustedCert> certs = new ArrayList<TrustedCert>();
+        final StringBuilder current = new StringBuilder( 2048 );
 
-            Set<String> aliases = new HashSet<String>();
-            if ( i < 1 )
+        BufferedReader reader = new BufferedReader( new StringReader( pemContent ) );
+        String line;
+        while ( ( line = reader.readLine() ) != null )
+        {
+            line = line.trim();
+            if ( line.startsWith( "-----BEGIN" ) )
             {
-                aliases.add( aliasPrefix );
+                current.setLength( 0 );
             }
-            else
+            else if ( line.startsWith( "-----END" ) )
             {
-                aliases.add( aliasPrefix + i );
-            }
+                final byte[] data = decodeBase64( current.toString() );
+                X509Certificate cert =
+                        (X509Certificate) certFactory.generateCertificate( new ByteArrayInputStream( data ) );
 
-            extractAliases( cert, aliases );
-
-            KeyStore.TrustedCertificateEntry ksEntry = new KeyStore.TrustedCertificateEntry( cert );
-            for ( String alias : aliases )
+                Set<String> aliases = new HashSet<String>();
+                extractAliases( cert, aliases );
+                certs.add( new TrustedCert( cert, Collections.unmodifiableSet( aliases ) ) );
+            }
+            else
             {
-                ks.setEntry( alias, ksEntry, null );
-                logger.trace( "Storing trusted cert under alias: {}\n  with DN: {}", alias,
-                              cert.getSubjectDN().getName() );
+                current.append( line );
             }
-
-            logger.trace( "Certificate added." );
-
-            i++;
         }
 
-        return ks;
+        logger.trace( "Decoded {} certificates from PEM bundle.", certs.size() );
+        return Collections.unmodifiableList( certs );
     }
 
     public static void extractAliases( Certificate certificate, Set<String> aliases )
@@ -219,6 +232,23 @@ public final class SSLUtils
         }
     }
 
+    /**
+     * A certificate decoded from a PEM trust bundle, with the aliases found in its subject CN and DNS subject
+     * alternative names.
+     */
+    static final class TrustedCert
+    {
+        final X509Certificate cert;
+
+        final Set<String> aliases;
+
+        TrustedCert( final X509Certificate cert, final Set<String> aliases )
+        {
+            this.cert = cert;
+            this.aliases = aliases;
+        }
+    }
+
     public static List<String> readLines( final String content )
             throws IOException
     {
@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.util;
+
+import org.commonjava.util.jhttpc.model.HttpFactoryConfig;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holder for the process-wide executors used for connection-pool housekeeping, prewarming and TLS reloads, so factories
+ * that aren't given their own executor don't each start background threads.
+ */
+public final class SharedExecutors
+{
+
+    private static final int PREWARM_THREADS = 4;
+
+    private static volatile ScheduledExecutorService housekeeping;
+
+    private static volatile ExecutorService prewarm;
+
+    private static volatile ExecutorService tlsReload;
+
+    private SharedExecutors()
+    {
+    }
+
+    public static ScheduledExecutorService getHousekeepingExecutor()
+    {
+        ScheduledExecutorService result = housekeeping;
+        if ( result == null )
+        {
+            synchronized ( SharedExecutors.class )
+            {
+                result = housekeeping;
+                if ( result == null )
+                {
+                    final AtomicInteger counter = new AtomicInteger( 0 );
+                    ScheduledThreadPoolExecutor exec =
+                            new ScheduledThreadPoolExecutor( HttpFactoryConfig.DEFAULT_HOUSEKEEPING_THREADS,
+                                                             ( runnable ) -> {
+                                                                 Thread t = new Thread( runnable );
+                                                                 t.setDaemon( true );
+                                                                 t.setName( "jHTTPc housekeeping-"
+                                                                                    + counter.getAndIncrement() );
+                                                                 return t;
+                                                             } );
+
+                    exec.setRemoveOnCancelPolicy( true );
+                    housekeeping = result = exec;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the executor that opens connections ahead of demand. Its threads are created on demand and time out when
+     * idle, since prewarming is occasional.
+     */
+    public static ExecutorService getPrewarmExecutor()
+    {
+        ExecutorService result = prewarm;
+        if ( result == null )
+        {
+            synchronized ( SharedExecutors.class )
+            {
+                result = prewarm;
+                if ( result == null )
+                {
+                    final AtomicInteger counter = new AtomicInteger( 0 );
+                    ThreadPoolExecutor exec =
+                            new ThreadPoolExecutor( PREWARM_THREADS, PREWARM_THREADS, 30, TimeUnit.SECONDS,
+                                                    new LinkedBlockingQueue<Runnable>(), ( runnable ) -> {
+                                Thread t = new Thread( runnable );
+                                t.setDaemon( true );
+                                t.setName( "jHTTPc prewarm-" + counter.getAndIncrement() );
+                                return t;
+                            } );
+
+                    exec.allowCoreThreadTimeOut( true );
+                    prewarm = result = exec;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the executor that rebuilds SSL contexts when a site's TLS material changes, off the request path. It has a
+     * single thread, created on demand, so reloads run in order.
+     */
+    public static ExecutorService getTlsReloadExecutor()
+    {
+        ExecutorService result = tlsReload;
+        if ( result == null )
+        {
+            synchronized ( SharedExecutors.class )
+            {
+                result = tlsReload;
+                if ( result == null )
+                {
+                    ThreadPoolExecutor exec =
+                            new ThreadPoolExecutor( 1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                                                    ( runnable ) -> {
+                                                        Thread t = new Thread( runnable );
+                                                        t.setDaemon( true );
+                                                        t.setName( "jHTTPc tls-reload" );
+                                                        return t;
+                                                    } );
+
+                    exec.allowCoreThreadTimeOut( true );
+                    tlsReload = result = exec;
+                }
+            }
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.util;
+
+import javax.net.ssl.SSLContext;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Process-wide cache of the SSLContexts built from site TLS material, keyed by {@link TlsFingerprint}. Sites with the
+ * same PEMs, trust type and hostname-verification mode get the same SSLContext, so new {@link
+ * org.commonjava.util.jhttpc.model.SiteConfig} instances skip parsing certificates and share one TLS session cache.
+ * The least recently used contexts are dropped beyond {@link #MAX_ENTRIES}.
+ */
+public final class SslContextCache
+{
+
+    public static final int MAX_ENTRIES = 256;
+
+    private static final ReentrantLock lock = new ReentrantLock();
+
+    private static final Map<String, SSLContext> contexts = new LinkedHashMap<String, SSLContext>( 16, 0.75f, true )
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry( final Map.Entry<String, SSLContext> eldest )
+        {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private static final AtomicLong hits = new AtomicLong( 0 );
+
+    private static final AtomicLong misses = new AtomicLong( 0 );
+
+    private SslContextCache()
+    {
+    }
+
+    /**
+     * @return the context cached for the fingerprint, or null if there is none
+     */
+    public static SSLContext get( final String fingerprint )
+    {
+        SSLContext ctx;
+        lock.lock();
+        try
+        {
+            // access-ordered, so even a lookup updates the map
+            ctx = contexts.get( fingerprint );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        ( ctx == null ? misses : hits ).incrementAndGet();
+        return ctx;
+    }
+
+    /**
+     * Cache a newly built context, unless another thread cached one for the same fingerprint first.
+     *
+     * @return the cached context, which callers should use instead of the one passed in
+     */
+    public static SSLContext put( final String fingerprint, final SSLContext ctx )
+    {
+        lock.lock();
+        try
+        {
+            SSLContext existing = contexts.putIfAbsent( fingerprint, ctx );
+            return existing == null ? ctx : existing;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public static int size()
+    {
+        lock.lock();
+        try
+        {
+            return contexts.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public static long getHitCount()
+    {
+        return hits.get();
+    }
+
+    public static long getMissCount()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Drop all cached contexts, so the next site to need one rebuilds it from its PEMs.
+     */
+    public static void clear()
+    {
+        lock.lock();
+        try
+        {
+            contexts.clear();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
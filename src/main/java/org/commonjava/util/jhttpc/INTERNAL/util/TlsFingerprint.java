@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.util;
+
+import org.commonjava.util.jhttpc.model.SiteConfig;
+
+import static org.apache.commons.codec.digest.DigestUtils.sha256Hex;
+
+/**
+ * Digest of the TLS material and settings that determine a site's SSLContext (including its session cache settings)
+ * and hostname verification. Sites with the same fingerprint can safely share TLS state and pooled connections.
+ */
+public final class TlsFingerprint
+{
+
+    private TlsFingerprint()
+    {
+    }
+
+    /**
+     * @param keyPassword password for the site's client key, if any. Only its hash goes into the fingerprint.
+     * @return hex-encoded SHA-256 fingerprint
+     */
+    public static String of( final SiteConfig location, final String keyPassword )
+    {
+        StringBuilder sb = new StringBuilder();
+        append( sb, location.getKeyCertPem() );
+        append( sb, location.getServerCertPem() );
+        append( sb, location.getTrustType().name() );
+        append( sb, Boolean.toString( location.isIgnoreHostnameVerification() ) );
+        append( sb, keyPassword == null ? null : sha256Hex( keyPassword ) );
+        append( sb, location.getSslSessionCacheSize() == null ? null : location.getSslSessionCacheSize().toString() );
+        append( sb, location.getSslSessionTimeoutSeconds() == null ?
+                null :
+                location.getSslSessionTimeoutSeconds().toString() );
+
+        return sha256Hex( sb.toString() );
+    }
+
+    // length-prefix each value so adjacent fields can't run together
+    private static void append( final StringBuilder sb, final String value )
+    {
+        if ( value == null )
+        {
+            sb.append( "-1:" );
+        }
+        else
+        {
+            sb.append( value.length() ).append( ':' ).append( value );
+        }
+
+        sb.append( '|' );
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.util;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads where the runtime supports them. This is the Java 8 baseline, which never does; the
+ * multi-release jar carries a Java 21 replacement under META-INF/versions/21 (see src/main/java21).
+ */
+public final class VirtualThreadSupport
+{
+
+    private VirtualThreadSupport()
+    {
+    }
+
+    public static boolean isAvailable()
+    {
+        return false;
+    }
+
+    /**
+     * @return a factory for virtual threads named with the given prefix, or null if virtual threads aren't supported
+     */
+    public static ThreadFactory newThreadFactory( final String namePrefix )
+    {
+        return null;
+    }
+}
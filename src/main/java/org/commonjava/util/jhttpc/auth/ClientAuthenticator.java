@@ -15,12 +15,15 @@
  */
 package org.commonjava.util.jhttpc.auth;
 
+import org.apache.http.HttpRequest;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
 import org.commonjava.util.jhttpc.JHttpCException;
 import org.commonjava.util.jhttpc.model.SiteConfig;
 
+import java.lang.reflect.Method;
 import java.net.URL;
 
 public abstract class ClientAuthenticator
@@ -39,4 +42,40 @@ public abstract class ClientAuthenticator
         return builder;
     }
 
+    public HttpAsyncClientBuilder decorateAsyncClientBuilder( final HttpAsyncClientBuilder builder )
+            throws JHttpCException
+    {
+        return builder;
+    }
+
+    /**
+     * Decorate a request sent over the {@link org.commonjava.util.jhttpc.model.SiteHttpVersion#HTTP_2} backend, which
+     * isn't built from an {@link HttpClientBuilder}. Credentials from {@link #decoratePrototypeContext} are carried over
+     * as they are, but nothing added by {@link #decorateClientBuilder} is, so by default authenticators that override
+     * that method are refused here; override this one as well to support HTTP/2.
+     */
+    public void decorateHttp2Request( final HttpRequest request )
+            throws JHttpCException
+    {
+        if ( decoratesClientBuilder() )
+        {
+            throw new JHttpCException( "%s decorates the client builder, which is not used for HTTP/2 requests. "
+                                               + "It must override decorateHttp2Request() to support them.", null,
+                                       getClass().getName() );
+        }
+    }
+
+    private boolean decoratesClientBuilder()
+    {
+        try
+        {
+            Method method = getClass().getMethod( "decorateClientBuilder", HttpClientBuilder.class );
+            return method.getDeclaringClass() != ClientAuthenticator.class;
+        }
+        catch ( NoSuchMethodException e )
+        {
+            return false;
+        }
+    }
+
 }
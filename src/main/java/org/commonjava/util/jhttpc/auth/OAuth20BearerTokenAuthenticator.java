@@ -16,7 +16,9 @@
 package org.commonjava.util.jhttpc.auth;
 
 import org.apache.http.Header;
+import org.apache.http.HttpRequest;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
 import org.apache.http.message.BasicHeader;
 import org.commonjava.util.jhttpc.JHttpCException;
 
@@ -46,4 +48,23 @@ public class OAuth20BearerTokenAuthenticator
         return builder.setDefaultHeaders( Collections.<Header> singleton( header ) );
     }
 
+    @Override
+    public HttpAsyncClientBuilder decorateAsyncClientBuilder( final HttpAsyncClientBuilder builder )
+            throws JHttpCException
+    {
+        final Header header = new BasicHeader( AUTHORIZATION_HEADER, String.format( BEARER_FORMAT, token ) );
+        return builder.setDefaultHeaders( Collections.<Header> singleton( header ) );
+    }
+
+    @Override
+    public void decorateHttp2Request( final HttpRequest request )
+            throws JHttpCException
+    {
+        // like a client default header, don't override one set on the request itself
+        if ( !request.containsHeader( AUTHORIZATION_HEADER ) )
+        {
+            request.addHeader( AUTHORIZATION_HEADER, String.format( BEARER_FORMAT, token ) );
+        }
+    }
+
 }
@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.jmx;
+
+import java.util.List;
+
+/**
+ * Management interface for the connection-pool cache of one {@link org.commonjava.util.jhttpc.HttpFactory}, registered
+ * when {@link org.commonjava.util.jhttpc.model.HttpFactoryConfig#isJmxEnabled()} is set. Each live pool has its own
+ * {@link SitePoolMXBean}.
+ */
+public interface ConnectionManagerCacheMXBean
+{
+    /**
+     * @return the number of live connection pools (trackers)
+     */
+    int getTrackerCount();
+
+    /**
+     * @return the ids of the live connection pools: the site id, or the shared-pool key for pools shared between sites
+     */
+    List<String> getTrackerIds();
+
+    /**
+     * @return the maximum number of live pools, or zero if there is no limit
+     */
+    int getMaxLivePools();
+
+    /**
+     * @return the number of idle pools shut down so far to stay within {@link #getMaxLivePools()}
+     */
+    long getEvictedPoolCount();
+
+    /**
+     * @return a rough estimate of the heap held by all live pools, their open connections and cached clients
+     */
+    long getEstimatedMemoryBytes();
+
+    /**
+     * @return the global connection limit across all pools, or zero if there is none
+     */
+    int getGlobalMaxConnections();
+
+    /**
+     * @return the number of connections leased against the global limit, or zero if there is none
+     */
+    int getGlobalLeased();
+
+    int getLastReapedConnectionCount();
+
+    /**
+     * @return the number of leaked connections found by the most recent leak-detection sweep
+     */
+    int getConnectionLeakCount();
+
+    /**
+     * Close expired pooled connections in every pool, and those idle longer than each site's idle timeout.
+     *
+     * @return the number of connections closed
+     */
+    int closeIdleConnections();
+
+    /**
+     * Detach every pool that hasn't been retrieved for the given number of seconds; each is shut down once its last
+     * client is closed.
+     */
+    void expireTrackersOlderThan( long seconds );
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.jmx;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Connection-pool statistics for a single route, as reported by {@link SitePoolMXBean#getRouteStats()}.
+ */
+public final class RouteStats
+{
+    private final String route;
+
+    private final int leased;
+
+    private final int available;
+
+    private final int pending;
+
+    private final int max;
+
+    @ConstructorProperties( { "route", "leased", "available", "pending", "max" } )
+    public RouteStats( final String route, final int leased, final int available, final int pending, final int max )
+    {
+        this.route = route;
+        this.leased = leased;
+        this.available = available;
+        this.pending = pending;
+        this.max = max;
+    }
+
+    public String getRoute()
+    {
+        return route;
+    }
+
+    public int getLeased()
+    {
+        return leased;
+    }
+
+    public int getAvailable()
+    {
+        return available;
+    }
+
+    public int getPending()
+    {
+        return pending;
+    }
+
+    public int getMax()
+    {
+        return max;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RouteStats{" + "route='" + route + '\'' + ", leased=" + leased + ", available=" + available
+                + ", pending=" + pending + ", max=" + max + '}';
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.jmx;
+
+import java.util.List;
+
+/**
+ * Management interface for one connection pool, which belongs to a single site unless pool sharing is enabled (see
+ * {@link org.commonjava.util.jhttpc.model.HttpFactoryConfig#isPoolSharingEnabled()}).
+ */
+public interface SitePoolMXBean
+{
+    String getSiteId();
+
+    /**
+     * @return the key sites share this pool under, or null if the pool belongs to a single site
+     */
+    String getSharedPoolKey();
+
+    /**
+     * @return the ids of the sites leasing from this pool through per-site quotas (shared pools only)
+     */
+    List<String> getQuotaSiteIds();
+
+    /**
+     * @return the number of clients currently using this pool
+     */
+    int getUserCount();
+
+    boolean isDetached();
+
+    boolean isClosed();
+
+    /**
+     * @return when the pool was last retrieved for a new client, in milliseconds since the epoch
+     */
+    long getLastRetrieval();
+
+    /**
+     * @return a rough estimate of the heap held by the pool, its open connections and cached clients
+     */
+    long getEstimatedMemoryBytes();
+
+    /**
+     * @return false if no client has needed the pool yet, in which case the statistics below are all zero
+     */
+    boolean isPoolCreated();
+
+    int getLeased();
+
+    int getAvailable();
+
+    int getPending();
+
+    int getMaxTotal();
+
+    int getDefaultMaxPerRoute();
+
+    /**
+     * @return statistics for each route the pool has connections (or waiting leases) for
+     */
+    List<RouteStats> getRouteStats();
+
+    /**
+     * Change the pool's connection limits in place, as {@link org.commonjava.util.jhttpc.HttpFactory#reconfigure} would
+     * for the site that owns it, so the new limits also apply to its quota and request executor and survive later
+     * reconfiguration of other sites. A shared pool still grows to fit the quotas of all its sites. Leases already
+     * granted are unaffected, and extra connections are closed as they're released.
+     *
+     * @return false if the pool hasn't been created yet, or has been closed
+     */
+    boolean resize( int maxTotal, int defaultMaxPerRoute );
+
+    /**
+     * Close expired pooled connections, and those idle for at least the given number of seconds (or all idle
+     * connections, if zero).
+     *
+     * @return the number of connections closed
+     */
+    int evictIdleConnections( int idleSeconds );
+
+    /**
+     * Shut the pool down and remove it from the cache so new clients get a fresh one, if no client is using it. A pool
+     * still in use is left as it is; use {@link #shutdown()} to close it regardless.
+     *
+     * @return true if the pool was shut down
+     */
+    boolean detach();
+
+    /**
+     * Shut the pool down immediately, aborting any requests still using it.
+     */
+    boolean shutdown();
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pooled connection that has been leased for longer than the leak-detection threshold, usually because a response
+ * was never closed or fully read. The allocation trace is only available for sampled leases.
+ */
+public final class ConnectionLeak
+{
+    private final String siteId;
+
+    private final String route;
+
+    private final String threadName;
+
+    private final long heldNanos;
+
+    private final StackTraceElement[] allocationTrace;
+
+    private final boolean reclaimed;
+
+    public ConnectionLeak( final String siteId, final String route, final String threadName, final long heldNanos,
+                           final StackTraceElement[] allocationTrace, final boolean reclaimed )
+    {
+        this.siteId = siteId;
+        this.route = route;
+        this.threadName = threadName;
+        this.heldNanos = heldNanos;
+        this.allocationTrace = allocationTrace;
+        this.reclaimed = reclaimed;
+    }
+
+    public String getSiteId()
+    {
+        return siteId;
+    }
+
+    public String getRoute()
+    {
+        return route;
+    }
+
+    /**
+     * @return the name of the thread that leased the connection
+     */
+    public String getThreadName()
+    {
+        return threadName;
+    }
+
+    public long getHeldMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis( heldNanos );
+    }
+
+    /**
+     * @return where the connection was leased, or null if this lease wasn't sampled for stack traces
+     */
+    public StackTraceElement[] getAllocationTrace()
+    {
+        return allocationTrace == null ? null : allocationTrace.clone();
+    }
+
+    /**
+     * @return true if the connection was shut down and returned to the pool when the leak was detected
+     */
+    public boolean isReclaimed()
+    {
+        return reclaimed;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ConnectionLeak{siteId='" + siteId + "', route=" + route + ", thread='" + threadName + "', held="
+                + getHeldMillis() + "ms, reclaimed=" + reclaimed + ", traced=" + ( allocationTrace != null ) + '}';
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.metrics;
+
+import org.apache.http.pool.PoolStats;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Per-site connection-pool metrics for one {@link org.commonjava.util.jhttpc.HttpFactory}, keyed by site id. Metrics
+ * for a site survive its pool being expired and recreated, but are dropped when the pool is evicted to stay within
+ * {@link org.commonjava.util.jhttpc.HttpFactoryConfig#getMaxLivePools()}.
+ */
+public final class ConnectionMetricsRegistry
+{
+    /**
+     * Rough heap cost of one site's metrics: a dozen histograms of striped counters, plus the counters themselves.
+     */
+    static final long SITE_METRICS_BYTES = 6 * 1024;
+
+    private final ConcurrentMap<String, SitePoolMetrics> sites = new ConcurrentHashMap<String, SitePoolMetrics>();
+
+    /**
+     * @return the metrics for the given site, creating them if necessary
+     */
+    public SitePoolMetrics forSite( final String siteId )
+    {
+        return sites.computeIfAbsent( siteId, SitePoolMetrics::new );
+    }
+
+    /**
+     * Point the given site's pool gauges at a live pool, creating its metrics if necessary. Done atomically with
+     * respect to {@link #remove(String)}, so a newly bound pool never reports into dropped metrics.
+     *
+     * @return the site's metrics
+     */
+    public SitePoolMetrics bind( final String siteId, final Supplier<PoolStats> poolStats )
+    {
+        return sites.compute( siteId, ( id, metrics ) -> {
+            SitePoolMetrics bound = metrics == null ? new SitePoolMetrics( id ) : metrics;
+            bound.bindPoolStats( poolStats );
+            return bound;
+        } );
+    }
+
+    /**
+     * Drop the given site's metrics, unless a live pool has been bound to them since its last one was shut down.
+     *
+     * @return true if the metrics were dropped
+     */
+    public boolean remove( final String siteId )
+    {
+        boolean[] removed = new boolean[1];
+        sites.computeIfPresent( siteId, ( id, metrics ) -> {
+            removed[0] = !metrics.isBound();
+            return removed[0] ? null : metrics;
+        } );
+
+        return removed[0];
+    }
+
+    /**
+     * @return the approximate heap held by the metrics of all sites
+     */
+    public long estimateMemoryBytes()
+    {
+        return sites.size() * SITE_METRICS_BYTES;
+    }
+
+    /**
+     * @return the metrics for the given site, or null if it hasn't leased any connections yet
+     */
+    public SitePoolMetrics getSiteMetrics( final String siteId )
+    {
+        return sites.get( siteId );
+    }
+
+    public Map<String, SitePoolMetrics> getAllSiteMetrics()
+    {
+        return Collections.unmodifiableMap( sites );
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Destination for batches of {@link RequestEvent}s. Batches are sent from the exporter's own thread, one at a time, so
+ * implementations don't need to be thread-safe.
+ */
+public interface EventSink
+        extends Closeable
+{
+    /**
+     * @throws IOException if the batch couldn't be delivered. The exporter logs and drops failed batches.
+     */
+    void send( List<RequestEvent> events )
+            throws IOException;
+}
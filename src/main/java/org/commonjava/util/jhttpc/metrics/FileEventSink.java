@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.metrics;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Appends events to a local file as JSON lines, one event per line in the same envelope the Honeycomb batch API uses:
+ * {@code {"time":..., "samplerate":..., "data":{...}}}. Useful for testing and for shipping events with a log agent.
+ */
+public final class FileEventSink
+        implements EventSink
+{
+    private final File file;
+
+    private Writer writer;
+
+    public FileEventSink( final File file )
+    {
+        this.file = file;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    @Override
+    public void send( final List<RequestEvent> events )
+            throws IOException
+    {
+        if ( writer == null )
+        {
+            File dir = file.getAbsoluteFile().getParentFile();
+            if ( dir != null && !dir.isDirectory() && !dir.mkdirs() )
+            {
+                throw new IOException( "Cannot create directory for event file: " + file );
+            }
+
+            writer = new BufferedWriter(
+                    new OutputStreamWriter( new FileOutputStream( file, true ), StandardCharsets.UTF_8 ) );
+        }
+
+        for ( RequestEvent event : events )
+        {
+            writer.write( HoneycombEventSink.toEnvelope( event ) );
+            writer.write( '\n' );
+        }
+
+        writer.flush();
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        if ( writer != null )
+        {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FileEventSink{file=" + file + '}';
+    }
+}
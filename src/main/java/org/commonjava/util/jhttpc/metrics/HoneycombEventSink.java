@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.metrics;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Sends events to the Honeycomb batch API ({@code POST <baseUrl>/1/batch/<dataset>}). The base URL can point at any
+ * service that speaks the same API, such as a local stand-in for testing.
+ */
+public final class HoneycombEventSink
+        implements EventSink
+{
+    public static final String DEFAULT_BASE_URL = "https://api.honeycomb.io";
+
+    static final String WRITE_KEY_HEADER = "X-Honeycomb-Team";
+
+    private final String batchUrl;
+
+    private final String dataset;
+
+    private final String writeKey;
+
+    private final CloseableHttpClient client;
+
+    public HoneycombEventSink( final String baseUrl, final String dataset, final String writeKey )
+            throws IOException
+    {
+        String base = baseUrl == null ? DEFAULT_BASE_URL : baseUrl;
+        while ( base.endsWith( "/" ) )
+        {
+            base = base.substring( 0, base.length() - 1 );
+        }
+
+        this.batchUrl = base + "/1/batch/" + URLEncoder.encode( dataset, "UTF-8" ).replace( "+", "%20" );
+        this.dataset = dataset;
+        this.writeKey = writeKey;
+        this.client = HttpClients.custom().disableCookieManagement().useSystemProperties().build();
+    }
+
+    public String getDataset()
+    {
+        return dataset;
+    }
+
+    @Override
+    public void send( final List<RequestEvent> events )
+            throws IOException
+    {
+        StringBuilder body = new StringBuilder( "[" );
+        for ( RequestEvent event : events )
+        {
+            if ( body.length() > 1 )
+            {
+                body.append( ',' );
+            }
+
+            body.append( toEnvelope( event ) );
+        }
+        body.append( ']' );
+
+        HttpPost post = new HttpPost( batchUrl );
+        post.setHeader( WRITE_KEY_HEADER, writeKey );
+        post.setEntity( new StringEntity( body.toString(), ContentType.APPLICATION_JSON ) );
+
+        try (CloseableHttpResponse response = client.execute( post ))
+        {
+            int status = response.getStatusLine().getStatusCode();
+            EntityUtils.consume( response.getEntity() );
+            if ( status < 200 || status > 299 )
+            {
+                throw new IOException( "Event batch of " + events.size() + " rejected by " + batchUrl + ": "
+                                               + response.getStatusLine() );
+            }
+        }
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        client.close();
+    }
+
+    static String toEnvelope( final RequestEvent event )
+    {
+        SimpleDateFormat format = new SimpleDateFormat( "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'" );
+        format.setTimeZone( TimeZone.getTimeZone( "UTC" ) );
+
+        StringBuilder sb = new StringBuilder( "{\"time\":" );
+        RequestEvent.appendString( sb, format.format( new Date( event.getTimestamp() ) ) );
+
+        return sb.append( ",\"samplerate\":" )
+                 .append( event.getSampleRate() )
+                 .append( ",\"data\":" )
+                 .append( event.toJson() )
+                 .append( '}' )
+                 .toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "HoneycombEventSink{batchUrl='" + batchUrl + "'}";
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with fixed, roughly logarithmic millisecond buckets. Percentiles are reported as the
+ * upper bound of the bucket they fall in (or the maximum observed value, for the overflow bucket).
+ */
+public final class LatencyHistogram
+{
+    private static final long[] BUCKET_BOUNDS_MILLIS =
+            { 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000 };
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS_MILLIS.length + 1];
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder totalNanos = new LongAdder();
+
+    private final LongAccumulator maxNanos = new LongAccumulator( Long::max, 0 );
+
+    public LatencyHistogram()
+    {
+        for ( int i = 0; i < buckets.length; i++ )
+        {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record( final long nanos )
+    {
+        long value = Math.max( 0, nanos );
+        long millis = TimeUnit.NANOSECONDS.toMillis( value );
+
+        int idx = Arrays.binarySearch( BUCKET_BOUNDS_MILLIS, millis );
+        if ( idx < 0 )
+        {
+            idx = -idx - 1;
+        }
+
+        buckets[idx].increment();
+        count.increment();
+        totalNanos.add( value );
+        maxNanos.accumulate( value );
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    public long getTotalMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis( totalNanos.sum() );
+    }
+
+    public long getMaxMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis( maxNanos.get() );
+    }
+
+    public double getMeanMillis()
+    {
+        long n = count.sum();
+        return n == 0 ? 0 : totalNanos.sum() / 1000000.0 / n;
+    }
+
+    /**
+     * @return the inclusive upper bound of each bucket, in milliseconds. {@link #getBucketCounts()} has one more entry,
+     * for values above the last bound.
+     */
+    public long[] getBucketBoundsMillis()
+    {
+        return BUCKET_BOUNDS_MILLIS.clone();
+    }
+
+    public long[] getBucketCounts()
+    {
+        long[] counts = new long[buckets.length];
+        for ( int i = 0; i < buckets.length; i++ )
+        {
+            counts[i] = buckets[i].sum();
+        }
+
+        return counts;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the approximate value at the given percentile, in milliseconds
+     */
+    public long getPercentileMillis( final double percentile )
+    {
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for ( long c : counts )
+        {
+            total += c;
+        }
+
+        if ( total == 0 )
+        {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil( total * Math.min( 100, Math.max( 0, percentile ) ) / 100.0 );
+        long seen = 0;
+        for ( int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++ )
+        {
+            seen += counts[i];
+            if ( seen >= rank )
+            {
+                return Math.min( BUCKET_BOUNDS_MILLIS[i], getMaxMillis() );
+            }
+        }
+
+        return getMaxMillis();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LatencyHistogram{count=" + getCount() + ", mean=" + String.format( "%.2f", getMeanMillis() ) + "ms, p50="
+                + getPercentileMillis( 50 ) + "ms, p99=" + getPercentileMillis( 99 ) + "ms, max=" + getMaxMillis()
+                + "ms}";
+    }
+}
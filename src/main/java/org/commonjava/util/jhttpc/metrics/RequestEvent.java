@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.metrics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One structured event describing a single request, as sent to an {@link EventSink}. Field names follow the
+ * snake_case convention of most event stores; the constants below are the fields jHTTPc fills in.
+ */
+public final class RequestEvent
+{
+    public static final String SITE_ID = "site_id";
+
+    public static final String METHOD = "method";
+
+    public static final String HOST = "host";
+
+    public static final String PATH = "path";
+
+    public static final String STATUS = "status";
+
+    public static final String ERROR = "error";
+
+    public static final String REQUEST_BYTES = "request_bytes";
+
+    public static final String RESPONSE_BYTES = "response_bytes";
+
+    /**
+     * Time until the response headers were received.
+     */
+    public static final String DURATION_MS = "duration_ms";
+
+    /**
+     * Time until the response body was consumed or the response was closed.
+     */
+    public static final String TOTAL_MS = "total_ms";
+
+    public static final String POOL_WAIT_MS = "pool_wait_ms";
+
+    /**
+     * Whether the request opened a new connection rather than reusing a pooled one. Per-phase durations are reported
+     * in the fields named by {@link RequestPhase#getEventField()}.
+     */
+    public static final String NEW_CONNECTION = "new_connection";
+
+    private final long timestamp;
+
+    private final int sampleRate;
+
+    private final Map<String, Object> fields;
+
+    /**
+     * @param timestamp start of the request, in epoch milliseconds
+     * @param sampleRate this event stands for this many requests (1 when every request is sent)
+     */
+    public RequestEvent( final long timestamp, final int sampleRate, final Map<String, Object> fields )
+    {
+        this.timestamp = timestamp;
+        this.sampleRate = Math.max( 1, sampleRate );
+        this.fields = Collections.unmodifiableMap( new LinkedHashMap<String, Object>( fields ) );
+    }
+
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    public int getSampleRate()
+    {
+        return sampleRate;
+    }
+
+    public Map<String, Object> getFields()
+    {
+        return fields;
+    }
+
+    public Object getField( final String name )
+    {
+        return fields.get( name );
+    }
+
+    /**
+     * @return the event fields as a flat JSON object. Numbers and booleans are written as-is, anything else as a string.
+     */
+    public String toJson()
+    {
+        StringBuilder sb = new StringBuilder( "{" );
+        for ( Map.Entry<String, Object> field : fields.entrySet() )
+        {
+            if ( sb.length() > 1 )
+            {
+                sb.append( ',' );
+            }
+
+            appendString( sb, field.getKey() );
+            sb.append( ':' );
+
+            Object value = field.getValue();
+            if ( value == null || value instanceof Number || value instanceof Boolean )
+            {
+                sb.append( value );
+            }
+            else
+            {
+                appendString( sb, String.valueOf( value ) );
+            }
+        }
+
+        return sb.append( '}' ).toString();
+    }
+
+    static void appendString( final StringBuilder sb, final String value )
+    {
+        sb.append( '"' );
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            char c = value.charAt( i );
+            switch ( c )
+            {
+                case '"':
+                    sb.append( "\\\"" );
+                    break;
+                case '\\':
+                    sb.append( "\\\\" );
+                    break;
+                case '\n':
+                    sb.append( "\\n" );
+                    break;
+                case '\r':
+                    sb.append( "\\r" );
+                    break;
+                case '\t':
+                    sb.append( "\\t" );
+                    break;
+                default:
+                    if ( c < 0x20 )
+                    {
+                        sb.append( String.format( "\\u%04x", (int) c ) );
+                    }
+                    else
+                    {
+                        sb.append( c );
+                    }
+            }
+        }
+        sb.append( '"' );
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RequestEvent{timestamp=" + timestamp + ", sampleRate=" + sampleRate + ", fields=" + fields + '}';
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sampled, batched, asynchronous delivery of {@link RequestEvent}s to an {@link EventSink}. Request threads only
+ * decide whether to sample and enqueue; a single daemon thread per exporter batches events and sends them. When the
+ * queue is full, new events are dropped (and counted) rather than blocking requests.
+ */
+public final class RequestEventExporter
+        implements Closeable
+{
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    public static final long DEFAULT_FLUSH_MILLIS = 1000;
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    private static final AtomicInteger COUNTER = new AtomicInteger( 0 );
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final EventSink sink;
+
+    private final int batchSize;
+
+    private final long flushMillis;
+
+    private final BlockingQueue<RequestEvent> queue;
+
+    private final Thread worker;
+
+    private final LongAdder sent = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    private volatile boolean closed;
+
+    public RequestEventExporter( final EventSink sink )
+    {
+        this( sink, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_MILLIS, DEFAULT_QUEUE_CAPACITY );
+    }
+
+    /**
+     * @param batchSize maximum events per batch
+     * @param flushMillis maximum time an event waits in the queue before its batch is sent
+     * @param queueCapacity maximum events waiting to be sent
+     */
+    public RequestEventExporter( final EventSink sink, final int batchSize, final long flushMillis,
+                                 final int queueCapacity )
+    {
+        this.sink = sink;
+        this.batchSize = Math.max( 1, batchSize );
+        this.flushMillis = Math.max( 1, flushMillis );
+        this.queue = new ArrayBlockingQueue<RequestEvent>( Math.max( 1, queueCapacity ) );
+
+        this.worker = new Thread( this::run, "jHTTPc events-" + COUNTER.getAndIncrement() );
+        this.worker.setDaemon( true );
+        this.worker.start();
+    }
+
+    /**
+     * Decide whether to record a request, given a sample rate of 1 in N. Rates below 2 keep every request.
+     */
+    public static boolean sample( final int sampleRate )
+    {
+        return sampleRate < 2 || ThreadLocalRandom.current().nextInt( sampleRate ) == 0;
+    }
+
+    /**
+     * Queue an event for delivery.
+     *
+     * @return false if the exporter is closed or its queue is full, in which case the event is dropped
+     */
+    public boolean offer( final RequestEvent event )
+    {
+        if ( closed || !queue.offer( event ) )
+        {
+            dropped.increment();
+            return false;
+        }
+
+        return true;
+    }
+
+    public EventSink getSink()
+    {
+        return sink;
+    }
+
+    public long getSentCount()
+    {
+        return sent.sum();
+    }
+
+    public long getDroppedCount()
+    {
+        return dropped.sum();
+    }
+
+    public long getFailedCount()
+    {
+        return failed.sum();
+    }
+
+    public int getQueuedCount()
+    {
+        return queue.size();
+    }
+
+    /**
+     * Stop accepting events, send whatever is queued, and close the sink.
+     */
+    @Override
+    public void close()
+            throws IOException
+    {
+        if ( closed )
+        {
+            return;
+        }
+
+        closed = true;
+        worker.interrupt();
+        try
+        {
+            worker.join( TimeUnit.SECONDS.toMillis( 10 ) );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            sink.close();
+        }
+    }
+
+    private void run()
+    {
+        List<RequestEvent> batch = new ArrayList<RequestEvent>( batchSize );
+        while ( !closed || !queue.isEmpty() )
+        {
+            try
+            {
+                RequestEvent first = closed ? queue.poll() : queue.take();
+                if ( first == null )
+                {
+                    break;
+                }
+
+                batch.add( first );
+
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( flushMillis );
+                while ( batch.size() < batchSize )
+                {
+                    long remaining = deadline - System.nanoTime();
+                    RequestEvent next = closed || remaining <= 0 ? queue.poll() : queue.poll( remaining,
+                                                                                              TimeUnit.NANOSECONDS );
+                    if ( next == null )
+                    {
+                        break;
+                    }
+
+                    batch.add( next );
+                }
+            }
+            catch ( InterruptedException e )
+            {
+                // closing; drain what's left on the next pass
+            }
+
+            flush( batch );
+        }
+    }
+
+    private void flush( final List<RequestEvent> batch )
+    {
+        if ( batch.isEmpty() )
+        {
+            return;
+        }
+
+        try
+        {
+            sink.send( batch );
+            sent.add( batch.size() );
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            failed.add( batch.size() );
+            logger.warn( "Failed to send " + batch.size() + " request events to " + sink + ": " + e.getMessage(), e );
+        }
+        finally
+        {
+            batch.clear();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RequestEventExporter{sink=" + sink + ", sent=" + getSentCount() + ", dropped=" + getDroppedCount()
+                + ", failed=" + getFailedCount() + ", queued=" + getQueuedCount() + '}';
+    }
+}
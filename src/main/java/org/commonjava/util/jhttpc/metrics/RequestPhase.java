@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.metrics;
+
+/**
+ * Phases of a request that {@link RequestTimings} tracks separately, in the order they happen. DNS, CONNECT and TLS are
+ * zero when the request reuses a pooled connection.
+ */
+public enum RequestPhase
+{
+    /**
+     * Waiting to lease a connection from the pool, including site quotas and the global connection budget.
+     */
+    LEASE( RequestEvent.POOL_WAIT_MS ),
+
+    /**
+     * Resolving the target (or proxy) host name.
+     */
+    DNS( "dns_ms" ),
+
+    /**
+     * Opening the TCP connection.
+     */
+    CONNECT( "connect_ms" ),
+
+    /**
+     * TLS handshake, including hostname verification.
+     */
+    TLS( "tls_ms" ),
+
+    /**
+     * Writing the request line, headers and body.
+     */
+    REQUEST( "request_ms" ),
+
+    /**
+     * From the request being sent until the response headers are read: mostly the server's think time.
+     */
+    TIME_TO_FIRST_BYTE( "ttfb_ms" ),
+
+    /**
+     * From the response headers until the body is fully read or the response is closed.
+     */
+    BODY( "body_ms" );
+
+    private final String eventField;
+
+    RequestPhase( final String eventField )
+    {
+        this.eventField = eventField;
+    }
+
+    /**
+     * @return the {@link RequestEvent} field this phase's duration is reported in, in milliseconds
+     */
+    public String getEventField()
+    {
+        return eventField;
+    }
+}
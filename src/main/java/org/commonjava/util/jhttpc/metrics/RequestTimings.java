@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.metrics;
+
+import org.apache.http.protocol.HttpContext;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-phase durations for one request made through a jHTTPc client, stored in the request's
+ * {@link org.apache.http.client.protocol.HttpClientContext} under {@link #CONTEXT_ATTRIBUTE}. Retries and redirects
+ * add to the same timings.
+ */
+public final class RequestTimings
+{
+    public static final String CONTEXT_ATTRIBUTE = "jhttpc.request-timings";
+
+    private static final RequestPhase[] PHASES = RequestPhase.values();
+
+    private final AtomicLongArray nanos = new AtomicLongArray( PHASES.length );
+
+    private volatile boolean newConnection;
+
+    /**
+     * @return the timings stored in the context, or null if there are none (or the context is null)
+     */
+    public static RequestTimings get( final HttpContext context )
+    {
+        if ( context == null )
+        {
+            return null;
+        }
+
+        Object timings = context.getAttribute( CONTEXT_ATTRIBUTE );
+        return timings instanceof RequestTimings ? (RequestTimings) timings : null;
+    }
+
+    public void add( final RequestPhase phase, final long elapsedNanos )
+    {
+        nanos.addAndGet( phase.ordinal(), Math.max( 0, elapsedNanos ) );
+    }
+
+    public long getNanos( final RequestPhase phase )
+    {
+        return nanos.get( phase.ordinal() );
+    }
+
+    public long getMillis( final RequestPhase phase )
+    {
+        return TimeUnit.NANOSECONDS.toMillis( getNanos( phase ) );
+    }
+
+    /**
+     * @return true if the request opened a new connection, rather than reusing a pooled one
+     */
+    public boolean isNewConnection()
+    {
+        return newConnection;
+    }
+
+    public void markNewConnection()
+    {
+        newConnection = true;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder( "RequestTimings{newConnection=" ).append( newConnection );
+        for ( RequestPhase phase : PHASES )
+        {
+            sb.append( ", " ).append( phase.name().toLowerCase() ).append( '=' ).append( getMillis( phase ) ).append(
+                    "ms" );
+        }
+
+        return sb.append( '}' ).toString();
+    }
+}
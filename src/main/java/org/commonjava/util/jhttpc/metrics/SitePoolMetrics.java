@@ -0,0 +1,305 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.metrics;
+
+import org.apache.http.pool.PoolStats;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Connection-pool metrics for one site: how long leases wait (in total, and for the global connection budget), how long
+ * connections are held, whether leases opened new connections or reused pooled ones, and live leased / available /
+ * pending gauges from the site's pool. It also keeps per-phase request timings (see {@link RequestPhase}) for
+ * requests made through the site's blocking clients.
+ * <p>
+ * The record* methods are called by the connection manager; users only need the getters.
+ */
+public final class SitePoolMetrics
+{
+    private final String siteId;
+
+    private final LatencyHistogram leaseWait = new LatencyHistogram();
+
+    private final LatencyHistogram budgetWait = new LatencyHistogram();
+
+    private final LatencyHistogram holdTime = new LatencyHistogram();
+
+    private final Map<RequestPhase, LatencyHistogram> phases =
+            new EnumMap<RequestPhase, LatencyHistogram>( RequestPhase.class );
+
+    private final LongAdder newConnections = new LongAdder();
+
+    private final LongAdder reusedConnections = new LongAdder();
+
+    private final LongAdder leaseTimeouts = new LongAdder();
+
+    private final LongAdder budgetTimeouts = new LongAdder();
+
+    private final LongAdder leaks = new LongAdder();
+
+    private final LongAdder reclaimed = new LongAdder();
+
+    private final LongAdder fullHandshakes = new LongAdder();
+
+    private final LongAdder resumedHandshakes = new LongAdder();
+
+    private final AtomicReference<Supplier<PoolStats>> poolStats = new AtomicReference<Supplier<PoolStats>>();
+
+    public SitePoolMetrics( final String siteId )
+    {
+        this.siteId = siteId;
+        for ( RequestPhase phase : RequestPhase.values() )
+        {
+            phases.put( phase, new LatencyHistogram() );
+        }
+    }
+
+    public String getSiteId()
+    {
+        return siteId;
+    }
+
+    /**
+     * @return time from requesting a connection until it's leased, including any wait for the site quota and the
+     * global connection budget
+     */
+    public LatencyHistogram getLeaseWait()
+    {
+        return leaseWait;
+    }
+
+    /**
+     * @return the part of each lease wait spent on the global connection budget. When this accounts for most of
+     * {@link #getLeaseWait()}, the global cap rather than the site's own pool is the bottleneck.
+     */
+    public LatencyHistogram getBudgetWait()
+    {
+        return budgetWait;
+    }
+
+    /**
+     * @return time from leasing a connection until it's released back to the pool
+     */
+    public LatencyHistogram getHoldTime()
+    {
+        return holdTime;
+    }
+
+    /**
+     * @return durations of the given phase across completed requests. Connection-setup phases only count requests that
+     * opened a new connection (and TLS only counts secure ones).
+     */
+    public LatencyHistogram getPhaseTime( final RequestPhase phase )
+    {
+        return phases.get( phase );
+    }
+
+    public long getNewConnectionCount()
+    {
+        return newConnections.sum();
+    }
+
+    public long getReusedConnectionCount()
+    {
+        return reusedConnections.sum();
+    }
+
+    /**
+     * @return the number of lease requests that timed out, for any reason (including the global budget)
+     */
+    public long getLeaseTimeoutCount()
+    {
+        return leaseTimeouts.sum();
+    }
+
+    /**
+     * @return the number of lease requests that timed out waiting for the global connection budget
+     */
+    public long getBudgetTimeoutCount()
+    {
+        return budgetTimeouts.sum();
+    }
+
+    /**
+     * Full and resumed handshakes are told apart by the session's creation time, since JSSE has no public resumption
+     * flag, so both counts are approximate: a session resumed within the same millisecond it was created counts as
+     * full, and so does every resumption with a TLS provider that stamps resumed sessions with a new creation time. The
+     * JDK's own provider keeps the original time, for TLS 1.3 tickets too.
+     *
+     * @return the number of TLS handshakes on new connections that negotiated a new session
+     */
+    public long getFullHandshakeCount()
+    {
+        return fullHandshakes.sum();
+    }
+
+    /**
+     * @return the number of TLS handshakes on new connections that resumed a cached session; approximate, see
+     * {@link #getFullHandshakeCount()}
+     */
+    public long getResumedHandshakeCount()
+    {
+        return resumedHandshakes.sum();
+    }
+
+    /**
+     * @return the number of leases found held past the leak-detection threshold
+     */
+    public long getLeakCount()
+    {
+        return leaks.sum();
+    }
+
+    /**
+     * @return the number of leaked connections forcibly returned to the pool
+     */
+    public long getReclaimedCount()
+    {
+        return reclaimed.sum();
+    }
+
+    /**
+     * @return the current statistics of the site's pool, or null if it has no live pool. When pools are shared between
+     * sites, these cover the whole shared pool.
+     */
+    public PoolStats getPoolStats()
+    {
+        Supplier<PoolStats> supplier = poolStats.get();
+        return supplier == null ? null : supplier.get();
+    }
+
+    public int getLeased()
+    {
+        PoolStats stats = getPoolStats();
+        return stats == null ? 0 : stats.getLeased();
+    }
+
+    public int getAvailable()
+    {
+        PoolStats stats = getPoolStats();
+        return stats == null ? 0 : stats.getAvailable();
+    }
+
+    public int getPending()
+    {
+        PoolStats stats = getPoolStats();
+        return stats == null ? 0 : stats.getPending();
+    }
+
+    public int getMax()
+    {
+        PoolStats stats = getPoolStats();
+        return stats == null ? 0 : stats.getMax();
+    }
+
+    public void bindPoolStats( final Supplier<PoolStats> poolStats )
+    {
+        this.poolStats.set( poolStats );
+    }
+
+    /**
+     * @return true if a live pool feeds the gauges
+     */
+    public boolean isBound()
+    {
+        return poolStats.get() != null;
+    }
+
+    /**
+     * Clear the pool gauges, unless another pool has been bound since.
+     */
+    public void unbindPoolStats( final Supplier<PoolStats> poolStats )
+    {
+        this.poolStats.compareAndSet( poolStats, null );
+    }
+
+    public void recordLease( final long waitNanos, final boolean reused )
+    {
+        leaseWait.record( waitNanos );
+        if ( reused )
+        {
+            reusedConnections.increment();
+        }
+    }
+
+    public void recordBudgetWait( final long waitNanos )
+    {
+        budgetWait.record( waitNanos );
+    }
+
+    public void recordNewConnection()
+    {
+        newConnections.increment();
+    }
+
+    public void recordHandshake( final boolean resumed )
+    {
+        ( resumed ? resumedHandshakes : fullHandshakes ).increment();
+    }
+
+    public void recordRelease( final long holdNanos )
+    {
+        holdTime.record( holdNanos );
+    }
+
+    public void recordTimings( final RequestTimings timings )
+    {
+        for ( RequestPhase phase : RequestPhase.values() )
+        {
+            long nanos = timings.getNanos( phase );
+            boolean setup = phase == RequestPhase.DNS || phase == RequestPhase.CONNECT || phase == RequestPhase.TLS;
+            if ( !setup || ( timings.isNewConnection() && nanos > 0 ) )
+            {
+                phases.get( phase ).record( nanos );
+            }
+        }
+    }
+
+    public void recordLeak()
+    {
+        leaks.increment();
+    }
+
+    public void recordReclaim()
+    {
+        reclaimed.increment();
+    }
+
+    public void recordLeaseTimeout( final boolean budget )
+    {
+        leaseTimeouts.increment();
+        if ( budget )
+        {
+            budgetTimeouts.increment();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SitePoolMetrics{siteId='" + siteId + "', leased=" + getLeased() + ", available=" + getAvailable()
+                + ", pending=" + getPending() + ", max=" + getMax() + ", newConnections=" + getNewConnectionCount()
+                + ", reusedConnections=" + getReusedConnectionCount() + ", leaseTimeouts=" + getLeaseTimeoutCount()
+                + ", budgetTimeouts=" + getBudgetTimeoutCount() + ", leaks=" + getLeakCount() + ", reclaimed="
+                + getReclaimedCount() + ", fullHandshakes=" + getFullHandshakeCount() + ", resumedHandshakes="
+                + getResumedHandshakeCount() + ", leaseWait=" + leaseWait + ", budgetWait="
+                + budgetWait + ", holdTime=" + holdTime + ", phases=" + phases + '}';
+    }
+}
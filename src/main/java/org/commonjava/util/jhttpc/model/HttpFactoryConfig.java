@@ -0,0 +1,285 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.model;
+
+import org.commonjava.util.jhttpc.metrics.EventSink;
+import org.commonjava.util.jhttpc.metrics.HoneycombEventSink;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Factory-wide settings for {@link org.commonjava.util.jhttpc.HttpFactory}, as opposed to the per-site settings in
+ * {@link SiteConfig}. Use {@link HttpFactoryConfigBuilder} to create one.
+ */
+public final class HttpFactoryConfig
+{
+
+    public static final int DEFAULT_TRACKER_EXPIRATION_SECONDS = 30;
+
+    public static final int DEFAULT_IDLE_SWEEP_SECONDS = 5;
+
+    public static final int DEFAULT_STATS_SNAPSHOT_SECONDS = 60;
+
+    public static final int DEFAULT_HOUSEKEEPING_THREADS = 2;
+
+    public static final int DEFAULT_LEAK_TRACE_SAMPLE_RATE = 10;
+
+    public static final int DEFAULT_PEM_CHECK_SECONDS = 30;
+
+    private final ScheduledExecutorService housekeepingExecutor;
+
+    private final Integer trackerExpirationSeconds;
+
+    private final Integer idleSweepSeconds;
+
+    private final Integer statsSnapshotSeconds;
+
+    private final boolean clientCachingEnabled;
+
+    private final boolean virtualThreadsEnabled;
+
+    private final boolean poolSharingEnabled;
+
+    private final Integer globalMaxConnections;
+
+    private final EventSink eventSink;
+
+    private final String honeycombUrl;
+
+    private final Integer leakDetectionSeconds;
+
+    private final Integer leakTraceSampleRate;
+
+    private final boolean leakReclaimEnabled;
+
+    private final boolean jmxEnabled;
+
+    private final String jmxName;
+
+    private final Integer maxLivePools;
+
+    private final Integer pemCheckSeconds;
+
+    HttpFactoryConfig( ScheduledExecutorService housekeepingExecutor, Integer trackerExpirationSeconds,
+                       Integer idleSweepSeconds, Integer statsSnapshotSeconds, boolean clientCachingEnabled,
+                       boolean virtualThreadsEnabled, boolean poolSharingEnabled,
+                       Integer globalMaxConnections, EventSink eventSink, String honeycombUrl,
+                       Integer leakDetectionSeconds, Integer leakTraceSampleRate, boolean leakReclaimEnabled,
+                       boolean jmxEnabled, String jmxName, Integer maxLivePools,
+                       Integer pemCheckSeconds )
+    {
+        this.housekeepingExecutor = housekeepingExecutor;
+        this.trackerExpirationSeconds = trackerExpirationSeconds;
+        this.idleSweepSeconds = idleSweepSeconds;
+        this.statsSnapshotSeconds = statsSnapshotSeconds;
+        this.clientCachingEnabled = clientCachingEnabled;
+        this.virtualThreadsEnabled = virtualThreadsEnabled;
+        this.poolSharingEnabled = poolSharingEnabled;
+        this.globalMaxConnections = globalMaxConnections;
+        this.eventSink = eventSink;
+        this.honeycombUrl = honeycombUrl;
+        this.leakDetectionSeconds = leakDetectionSeconds;
+        this.leakTraceSampleRate = leakTraceSampleRate;
+        this.leakReclaimEnabled = leakReclaimEnabled;
+        this.jmxEnabled = jmxEnabled;
+        this.jmxName = jmxName;
+        this.maxLivePools = maxLivePools;
+        this.pemCheckSeconds = pemCheckSeconds;
+    }
+
+    /**
+     * @return the executor used for connection-pool housekeeping, or null to use the process-wide shared executor
+     */
+    public ScheduledExecutorService getHousekeepingExecutor()
+    {
+        return housekeepingExecutor;
+    }
+
+    /**
+     * Connection pools that haven't been retrieved for this long are detached, and shut down once their last client is
+     * closed. Values less than one disable the expiration sweep.
+     */
+    public int getTrackerExpirationSeconds()
+    {
+        return trackerExpirationSeconds == null ? DEFAULT_TRACKER_EXPIRATION_SECONDS : trackerExpirationSeconds;
+    }
+
+    /**
+     * Interval between idle / expired connection sweeps. Values less than one disable the sweep.
+     */
+    public int getIdleSweepSeconds()
+    {
+        return idleSweepSeconds == null ? DEFAULT_IDLE_SWEEP_SECONDS : idleSweepSeconds;
+    }
+
+    /**
+     * Interval between connection-pool statistics snapshots. Values less than one disable the snapshots.
+     */
+    public int getStatsSnapshotSeconds()
+    {
+        return statsSnapshotSeconds == null ? DEFAULT_STATS_SNAPSHOT_SECONDS : statsSnapshotSeconds;
+    }
+
+    /**
+     * If enabled, {@link org.commonjava.util.jhttpc.HttpFactory#createClient(SiteConfig)} builds the underlying
+     * HttpClient once per site and shares it between the clients it returns, instead of building a new one per call.
+     * Clients created with default headers are never shared.
+     */
+    public boolean isClientCachingEnabled()
+    {
+        return clientCachingEnabled;
+    }
+
+    /**
+     * If enabled, and the runtime is Java 21 or later, requests run via
+     * {@link org.commonjava.util.jhttpc.HttpFactory#execute} use virtual threads instead of platform threads. Otherwise
+     * this setting is ignored.
+     */
+    public boolean isVirtualThreadsEnabled()
+    {
+        return virtualThreadsEnabled;
+    }
+
+    /**
+     * If enabled, sites that resolve to the same endpoint (scheme, host, port and proxy) with the same TLS material share
+     * one blocking connection pool, instead of getting a pool per site id. Each site can still lease at most
+     * {@link SiteConfig#getMaxConnections()} connections from the shared pool.
+     */
+    public boolean isPoolSharingEnabled()
+    {
+        return poolSharingEnabled;
+    }
+
+    /**
+     * Maximum number of connections leased at once across all site pools of the factory. Each active site is guaranteed
+     * a fair share of this, and busy sites may borrow unused capacity. Values less than one (the default) disable the
+     * global limit, leaving only the per-site limits.
+     */
+    public int getGlobalMaxConnections()
+    {
+        return globalMaxConnections == null ? 0 : globalMaxConnections;
+    }
+
+    /**
+     * Sink for the request events of every site with {@link SiteConfig#isMetricEnabled()} set, in place of the
+     * per-site Honeycomb datasets. The factory closes it on shutdown. If null (the default), events go to Honeycomb
+     * for sites that configure a dataset and write key, and are discarded otherwise.
+     */
+    public EventSink getEventSink()
+    {
+        return eventSink;
+    }
+
+    /**
+     * Base URL of the Honeycomb API (or a compatible service) that request events are sent to.
+     */
+    public String getHoneycombUrl()
+    {
+        return honeycombUrl == null ? HoneycombEventSink.DEFAULT_BASE_URL : honeycombUrl;
+    }
+
+    /**
+     * Connections leased for longer than this are reported as leaks (usually a response that was never closed). Values
+     * less than one (the default) disable leak detection.
+     */
+    public int getLeakDetectionSeconds()
+    {
+        return leakDetectionSeconds == null ? 0 : leakDetectionSeconds;
+    }
+
+    /**
+     * When leak detection is enabled, the stack trace of one in this many leases is captured, so leak reports can show
+     * where the connection was acquired. One captures every lease; values less than one capture none.
+     */
+    public int getLeakTraceSampleRate()
+    {
+        return leakTraceSampleRate == null ? DEFAULT_LEAK_TRACE_SAMPLE_RATE : leakTraceSampleRate;
+    }
+
+    /**
+     * If enabled, leaked connections are shut down and returned to the pool when they're detected, instead of only
+     * being reported.
+     */
+    public boolean isLeakReclaimEnabled()
+    {
+        return leakReclaimEnabled;
+    }
+
+    /**
+     * If enabled, the factory registers MBeans with the platform MBean server: a
+     * {@link org.commonjava.util.jhttpc.jmx.ConnectionManagerCacheMXBean} for the factory, and a
+     * {@link org.commonjava.util.jhttpc.jmx.SitePoolMXBean} for each live connection pool, which can be used to inspect,
+     * resize, evict or shut down pools at runtime.
+     */
+    public boolean isJmxEnabled()
+    {
+        return jmxEnabled;
+    }
+
+    /**
+     * Value of the "name" key in this factory's MBean names, to tell factories in the same JVM apart. If null (the
+     * default), a unique name is generated.
+     */
+    public String getJmxName()
+    {
+        return jmxName;
+    }
+
+    /**
+     * Maximum number of live connection pools (one per site, or per shared endpoint). When a new pool would exceed it,
+     * the least recently retrieved pools with no clients using them are shut down early, instead of waiting for the
+     * expiration sweep. Pools still in use are never evicted, so the limit can be exceeded while every pool is busy.
+     * Values less than one (the default) disable the limit.
+     */
+    public int getMaxLivePools()
+    {
+        return maxLivePools == null ? 0 : maxLivePools;
+    }
+
+    /**
+     * Interval between checks of the PEM files of live sites configured with
+     * {@link SiteConfigBuilder#withKeyCertPemFile(java.io.File)} or
+     * {@link SiteConfigBuilder#withServerCertPemFile(java.io.File)}. Changed files are reloaded into the site's pool.
+     * Values less than one disable the checks.
+     */
+    public int getPemCheckSeconds()
+    {
+        return pemCheckSeconds == null ? DEFAULT_PEM_CHECK_SECONDS : pemCheckSeconds;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "HttpFactoryConfig{" +
+                "trackerExpirationSeconds=" + getTrackerExpirationSeconds() +
+                ", idleSweepSeconds=" + getIdleSweepSeconds() +
+                ", statsSnapshotSeconds=" + getStatsSnapshotSeconds() +
+                ", clientCachingEnabled=" + clientCachingEnabled +
+                ", virtualThreadsEnabled=" + virtualThreadsEnabled +
+                ", poolSharingEnabled=" + poolSharingEnabled +
+                ", globalMaxConnections=" + getGlobalMaxConnections() +
+                ", eventSink=" + eventSink +
+                ", honeycombUrl=" + getHoneycombUrl() +
+                ", leakDetectionSeconds=" + getLeakDetectionSeconds() +
+                ", leakTraceSampleRate=" + getLeakTraceSampleRate() +
+                ", leakReclaimEnabled=" + leakReclaimEnabled +
+                ", jmxEnabled=" + jmxEnabled +
+                ", jmxName=" + jmxName +
+                ", maxLivePools=" + getMaxLivePools() +
+                ", pemCheckSeconds=" + getPemCheckSeconds() +
+                '}';
+    }
+}
@@ -0,0 +1,269 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.model;
+
+import org.commonjava.util.jhttpc.metrics.EventSink;
+import org.commonjava.util.jhttpc.metrics.HoneycombEventSink;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.commonjava.util.jhttpc.model.HttpFactoryConfig.DEFAULT_IDLE_SWEEP_SECONDS;
+import static org.commonjava.util.jhttpc.model.HttpFactoryConfig.DEFAULT_LEAK_TRACE_SAMPLE_RATE;
+import static org.commonjava.util.jhttpc.model.HttpFactoryConfig.DEFAULT_PEM_CHECK_SECONDS;
+import static org.commonjava.util.jhttpc.model.HttpFactoryConfig.DEFAULT_STATS_SNAPSHOT_SECONDS;
+import static org.commonjava.util.jhttpc.model.HttpFactoryConfig.DEFAULT_TRACKER_EXPIRATION_SECONDS;
+
+public class HttpFactoryConfigBuilder
+{
+
+    private ScheduledExecutorService housekeepingExecutor;
+
+    private Integer trackerExpirationSeconds;
+
+    private Integer idleSweepSeconds;
+
+    private Integer statsSnapshotSeconds;
+
+    private boolean clientCachingEnabled;
+
+    private boolean virtualThreadsEnabled;
+
+    private boolean poolSharingEnabled;
+
+    private Integer globalMaxConnections;
+
+    private EventSink eventSink;
+
+    private String honeycombUrl;
+
+    private Integer leakDetectionSeconds;
+
+    private Integer leakTraceSampleRate;
+
+    private boolean leakReclaimEnabled;
+
+    private boolean jmxEnabled;
+
+    private String jmxName;
+
+    private Integer maxLivePools;
+
+    private Integer pemCheckSeconds;
+
+    public HttpFactoryConfig build()
+    {
+        return new HttpFactoryConfig( housekeepingExecutor, trackerExpirationSeconds, idleSweepSeconds,
+                                      statsSnapshotSeconds, clientCachingEnabled, virtualThreadsEnabled,
+                                      poolSharingEnabled, globalMaxConnections, eventSink, honeycombUrl,
+                                      leakDetectionSeconds, leakTraceSampleRate, leakReclaimEnabled, jmxEnabled,
+                                      jmxName, maxLivePools, pemCheckSeconds );
+    }
+
+    public ScheduledExecutorService getHousekeepingExecutor()
+    {
+        return housekeepingExecutor;
+    }
+
+    /**
+     * Use the given executor for connection-pool housekeeping instead of the process-wide shared one. The executor
+     * isn't shut down by the factory; it's the caller's responsibility.
+     */
+    public HttpFactoryConfigBuilder withHousekeepingExecutor( final ScheduledExecutorService housekeepingExecutor )
+    {
+        this.housekeepingExecutor = housekeepingExecutor;
+        return this;
+    }
+
+    public int getTrackerExpirationSeconds()
+    {
+        return trackerExpirationSeconds == null ? DEFAULT_TRACKER_EXPIRATION_SECONDS : trackerExpirationSeconds;
+    }
+
+    public HttpFactoryConfigBuilder withTrackerExpirationSeconds( final Integer trackerExpirationSeconds )
+    {
+        this.trackerExpirationSeconds = trackerExpirationSeconds;
+        return this;
+    }
+
+    public int getIdleSweepSeconds()
+    {
+        return idleSweepSeconds == null ? DEFAULT_IDLE_SWEEP_SECONDS : idleSweepSeconds;
+    }
+
+    public HttpFactoryConfigBuilder withIdleSweepSeconds( final Integer idleSweepSeconds )
+    {
+        this.idleSweepSeconds = idleSweepSeconds;
+        return this;
+    }
+
+    public int getStatsSnapshotSeconds()
+    {
+        return statsSnapshotSeconds == null ? DEFAULT_STATS_SNAPSHOT_SECONDS : statsSnapshotSeconds;
+    }
+
+    public HttpFactoryConfigBuilder withStatsSnapshotSeconds( final Integer statsSnapshotSeconds )
+    {
+        this.statsSnapshotSeconds = statsSnapshotSeconds;
+        return this;
+    }
+
+    public boolean isClientCachingEnabled()
+    {
+        return clientCachingEnabled;
+    }
+
+    public HttpFactoryConfigBuilder withClientCaching( final boolean clientCachingEnabled )
+    {
+        this.clientCachingEnabled = clientCachingEnabled;
+        return this;
+    }
+
+    public boolean isVirtualThreadsEnabled()
+    {
+        return virtualThreadsEnabled;
+    }
+
+    public HttpFactoryConfigBuilder withVirtualThreads( final boolean virtualThreadsEnabled )
+    {
+        this.virtualThreadsEnabled = virtualThreadsEnabled;
+        return this;
+    }
+
+    public boolean isPoolSharingEnabled()
+    {
+        return poolSharingEnabled;
+    }
+
+    public HttpFactoryConfigBuilder withPoolSharing( final boolean poolSharingEnabled )
+    {
+        this.poolSharingEnabled = poolSharingEnabled;
+        return this;
+    }
+
+    public int getGlobalMaxConnections()
+    {
+        return globalMaxConnections == null ? 0 : globalMaxConnections;
+    }
+
+    public HttpFactoryConfigBuilder withGlobalMaxConnections( final Integer globalMaxConnections )
+    {
+        this.globalMaxConnections = globalMaxConnections;
+        return this;
+    }
+
+    public EventSink getEventSink()
+    {
+        return eventSink;
+    }
+
+    /**
+     * Send request events from all metric-enabled sites to the given sink, such as a
+     * {@link org.commonjava.util.jhttpc.metrics.FileEventSink}, instead of Honeycomb.
+     */
+    public HttpFactoryConfigBuilder withEventSink( final EventSink eventSink )
+    {
+        this.eventSink = eventSink;
+        return this;
+    }
+
+    public String getHoneycombUrl()
+    {
+        return honeycombUrl == null ? HoneycombEventSink.DEFAULT_BASE_URL : honeycombUrl;
+    }
+
+    public HttpFactoryConfigBuilder withHoneycombUrl( final String honeycombUrl )
+    {
+        this.honeycombUrl = honeycombUrl;
+        return this;
+    }
+
+    public int getLeakDetectionSeconds()
+    {
+        return leakDetectionSeconds == null ? 0 : leakDetectionSeconds;
+    }
+
+    public HttpFactoryConfigBuilder withLeakDetectionSeconds( final Integer leakDetectionSeconds )
+    {
+        this.leakDetectionSeconds = leakDetectionSeconds;
+        return this;
+    }
+
+    public int getLeakTraceSampleRate()
+    {
+        return leakTraceSampleRate == null ? DEFAULT_LEAK_TRACE_SAMPLE_RATE : leakTraceSampleRate;
+    }
+
+    public HttpFactoryConfigBuilder withLeakTraceSampleRate( final Integer leakTraceSampleRate )
+    {
+        this.leakTraceSampleRate = leakTraceSampleRate;
+        return this;
+    }
+
+    public boolean isLeakReclaimEnabled()
+    {
+        return leakReclaimEnabled;
+    }
+
+    public HttpFactoryConfigBuilder withLeakReclaim( final boolean leakReclaimEnabled )
+    {
+        this.leakReclaimEnabled = leakReclaimEnabled;
+        return this;
+    }
+
+    public boolean isJmxEnabled()
+    {
+        return jmxEnabled;
+    }
+
+    public HttpFactoryConfigBuilder withJmxEnabled( final boolean jmxEnabled )
+    {
+        this.jmxEnabled = jmxEnabled;
+        return this;
+    }
+
+    public String getJmxName()
+    {
+        return jmxName;
+    }
+
+    public HttpFactoryConfigBuilder withJmxName( final String jmxName )
+    {
+        this.jmxName = jmxName;
+        return this;
+    }
+
+    public int getMaxLivePools()
+    {
+        return maxLivePools == null ? 0 : maxLivePools;
+    }
+
+    public HttpFactoryConfigBuilder withMaxLivePools( final Integer maxLivePools )
+    {
+        this.maxLivePools = maxLivePools;
+        return this;
+    }
+
+    public int getPemCheckSeconds()
+    {
+        return pemCheckSeconds == null ? DEFAULT_PEM_CHECK_SECONDS : pemCheckSeconds;
+    }
+
+    public HttpFactoryConfigBuilder withPemCheckSeconds( final Integer pemCheckSeconds )
+    {
+        this.pemCheckSeconds = pemCheckSeconds;
+        return this;
+    }
+}
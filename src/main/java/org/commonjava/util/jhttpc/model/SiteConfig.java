@@ -20,6 +20,7 @@ import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.config.ConnectionConfig;
 import org.apache.http.config.SocketConfig;
 
+import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.HashMap;
@@ -40,6 +41,8 @@ public final class SiteConfig
 
     public static final int DEFAULT_CONNECTION_POOL_TIMEOUT_SECONDS = 60;
 
+    public static final int DEFAULT_IDLE_CONNECTION_TIMEOUT_SECONDS = 30;
+
     private final String id;
 
     private final String uri;
@@ -86,12 +89,29 @@ public final class SiteConfig
 
     private final Integer baseSampleRate;
 
+    private final Integer idleConnectionTimeoutSeconds;
+
+    private final SiteHttpVersion httpVersion;
+
+    private final Integer warmConnections;
+
+    private final Integer sslSessionCacheSize;
+
+    private final Integer sslSessionTimeoutSeconds;
+
+    private final File keyCertPemFile;
+
+    private final File serverCertPemFile;
+
     SiteConfig( String id, String uri, String user, String proxyHost, Integer proxyPort, String proxyUser,
                 SiteTrustType trustType, String keyCertPem, String serverCertPem, Integer requestTimeoutSeconds,
                 Integer connectionPoolTimeoutSeconds, Integer maxConnections, Integer maxPerRoute,
                 final ConnectionConfig connectionConfig, final SocketConfig socketConfig,
                 final RequestConfig requestConfig, HttpClientContext clientContextPrototype, boolean ignoreHostnameVerification, Map<String, Object> attributes,
-                Boolean metricEnabled, String honeycombDataset, String honeycombWriteKey, Integer baseSampleRate )
+                Boolean metricEnabled, String honeycombDataset, String honeycombWriteKey, Integer baseSampleRate,
+                Integer idleConnectionTimeoutSeconds, SiteHttpVersion httpVersion, Integer warmConnections,
+                Integer sslSessionCacheSize, Integer sslSessionTimeoutSeconds, File keyCertPemFile,
+                File serverCertPemFile )
     {
         this.id = id;
         this.uri = uri;
@@ -116,6 +136,13 @@ public final class SiteConfig
         this.honeycombDataset = honeycombDataset;
         this.honeycombWriteKey = honeycombWriteKey;
         this.baseSampleRate = baseSampleRate;
+        this.idleConnectionTimeoutSeconds = idleConnectionTimeoutSeconds;
+        this.httpVersion = httpVersion;
+        this.warmConnections = warmConnections;
+        this.sslSessionCacheSize = sslSessionCacheSize;
+        this.sslSessionTimeoutSeconds = sslSessionTimeoutSeconds;
+        this.keyCertPemFile = keyCertPemFile;
+        this.serverCertPemFile = serverCertPemFile;
 
     }
 
@@ -173,6 +200,24 @@ public final class SiteConfig
         return keyCertPem;
     }
 
+    /**
+     * @return the file {@link #getKeyCertPem()} was read from, or null if it was given directly. The PEM is reloaded
+     * into the site's live connection pool when the file changes.
+     */
+    public File getKeyCertPemFile()
+    {
+        return keyCertPemFile;
+    }
+
+    /**
+     * @return the file {@link #getServerCertPem()} was read from, or null if it was given directly. The PEM is reloaded
+     * into the site's live connection pool when the file changes.
+     */
+    public File getServerCertPemFile()
+    {
+        return serverCertPemFile;
+    }
+
     public String getUri()
     {
         return uri;
@@ -193,6 +238,54 @@ public final class SiteConfig
         return requestTimeoutSeconds == null ? DEFAULT_REQUEST_TIMEOUT_SECONDS : requestTimeoutSeconds;
     }
 
+    /**
+     * Pooled connections that have been idle longer than this will be closed by the background reaper. Values less than
+     * one disable idle eviction for this site (expired connections are still closed).
+     */
+    public int getIdleConnectionTimeoutSeconds()
+    {
+        return idleConnectionTimeoutSeconds == null ?
+                DEFAULT_IDLE_CONNECTION_TIMEOUT_SECONDS :
+                idleConnectionTimeoutSeconds;
+    }
+
+    /**
+     * Number of connections kept open to this site while its connection pool is live, so requests after a quiet
+     * period don't pay for a TCP connect and TLS handshake. The pool is topped back up in the background after idle
+     * connections are closed. Zero (the default) disables this.
+     */
+    public int getWarmConnections()
+    {
+        return warmConnections == null ? 0 : warmConnections;
+    }
+
+    /**
+     * Maximum number of TLS sessions cached for resumption by this site's SSLContext (zero means no limit). If null
+     * (the default), the JVM's default applies.
+     */
+    public Integer getSslSessionCacheSize()
+    {
+        return sslSessionCacheSize;
+    }
+
+    /**
+     * How long cached TLS sessions can be resumed for by this site's SSLContext, in seconds (zero means no limit). If
+     * null (the default), the JVM's default applies.
+     */
+    public Integer getSslSessionTimeoutSeconds()
+    {
+        return sslSessionTimeoutSeconds;
+    }
+
+    /**
+     * Protocol used by {@link org.commonjava.util.jhttpc.HttpFactory#execute} for this site. Clients returned from
+     * createClient() and createAsyncClient() always speak HTTP/1.1.
+     */
+    public SiteHttpVersion getHttpVersion()
+    {
+        return httpVersion == null ? SiteHttpVersion.HTTP_1_1 : httpVersion;
+    }
+
     public <T> T getAttribute( String key, Class<T> type )
     {
         Object value = getAttribute( key );
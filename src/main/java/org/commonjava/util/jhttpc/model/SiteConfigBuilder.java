@@ -15,17 +15,21 @@
  */
 package org.commonjava.util.jhttpc.model;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.config.ConnectionConfig;
 import org.apache.http.config.SocketConfig;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
 
 import static org.commonjava.util.jhttpc.model.SiteConfig.DEFAULT_CONNECTION_POOL_TIMEOUT_SECONDS;
+import static org.commonjava.util.jhttpc.model.SiteConfig.DEFAULT_IDLE_CONNECTION_TIMEOUT_SECONDS;
 import static org.commonjava.util.jhttpc.model.SiteConfig.DEFAULT_MAX_CONNECTIONS;
 import static org.commonjava.util.jhttpc.model.SiteConfig.DEFAULT_PROXY_PORT;
 import static org.commonjava.util.jhttpc.model.SiteConfig.DEFAULT_REQUEST_TIMEOUT_SECONDS;
@@ -82,6 +86,20 @@ public class SiteConfigBuilder
 
     private Integer baseSampleRate;
 
+    private Integer idleConnectionTimeoutSeconds;
+
+    private SiteHttpVersion httpVersion;
+
+    private Integer warmConnections;
+
+    private Integer sslSessionCacheSize;
+
+    private Integer sslSessionTimeoutSeconds;
+
+    private File keyCertPemFile;
+
+    private File serverCertPemFile;
+
     public Map<String, Object> getAttributes()
     {
         return attributes;
@@ -97,12 +115,54 @@ public class SiteConfigBuilder
         this.uri = uri;
     }
 
+    /**
+     * Start from a copy of the given site's settings, e.g. to change some of them and reconfigure its live pool. The
+     * attributes are copied into a new map.
+     */
+    public SiteConfigBuilder( SiteConfig config )
+    {
+        this.id = config.getId();
+        this.uri = config.getUri();
+        this.user = config.getUser();
+        this.proxyHost = config.getProxyHost();
+        this.proxyPort = config.getProxyPort();
+        this.proxyUser = config.getProxyUser();
+        this.trustType = config.getTrustType();
+        this.keyCertPem = config.getKeyCertPem();
+        this.serverCertPem = config.getServerCertPem();
+        this.attributes = config.getAttributes() == null ?
+                null :
+                new HashMap<String, Object>( config.getAttributes() );
+        this.requestTimeoutSeconds = config.getRequestTimeoutSeconds();
+        this.connectionPoolTimeoutSeconds = config.getConnectionPoolTimeoutSeconds();
+        this.maxConnections = config.getMaxConnections();
+        this.maxPerRoute = config.getMaxPerRoute();
+        this.connectionConfig = config.getConnectionConfig();
+        this.socketConfig = config.getSocketConfig();
+        this.requestConfig = config.getRequestConfig();
+        this.clientContextProtoype = config.getClientContextPrototype();
+        this.ignoreHostnameVerification = config.isIgnoreHostnameVerification();
+        this.metricEnabled = config.isMetricEnabled();
+        this.honeycombDataset = config.getHoneycombDataset();
+        this.honeycombWriteKey = config.getHoneycombWriteKey();
+        this.baseSampleRate = config.getBaseSampleRate();
+        this.idleConnectionTimeoutSeconds = config.getIdleConnectionTimeoutSeconds();
+        this.httpVersion = config.getHttpVersion();
+        this.warmConnections = config.getWarmConnections();
+        this.sslSessionCacheSize = config.getSslSessionCacheSize();
+        this.sslSessionTimeoutSeconds = config.getSslSessionTimeoutSeconds();
+        this.keyCertPemFile = config.getKeyCertPemFile();
+        this.serverCertPemFile = config.getServerCertPemFile();
+    }
+
     public SiteConfig build()
     {
         return new SiteConfig( id, uri, user, proxyHost, proxyPort, proxyUser, trustType, keyCertPem, serverCertPem,
                                requestTimeoutSeconds, connectionPoolTimeoutSeconds, maxConnections, maxPerRoute,
                                connectionConfig, socketConfig, requestConfig, clientContextProtoype,
-                               ignoreHostnameVerification, attributes, metricEnabled, honeycombDataset, honeycombWriteKey, baseSampleRate );
+                               ignoreHostnameVerification, attributes, metricEnabled, honeycombDataset, honeycombWriteKey, baseSampleRate,
+                               idleConnectionTimeoutSeconds, httpVersion, warmConnections, sslSessionCacheSize,
+                               sslSessionTimeoutSeconds, keyCertPemFile, serverCertPemFile );
     }
 
     public String getId()
@@ -176,6 +236,18 @@ public class SiteConfigBuilder
                 connectionPoolTimeoutSeconds;
     }
 
+    public int getIdleConnectionTimeoutSeconds()
+    {
+        return idleConnectionTimeoutSeconds == null ?
+                DEFAULT_IDLE_CONNECTION_TIMEOUT_SECONDS :
+                idleConnectionTimeoutSeconds;
+    }
+
+    public SiteHttpVersion getHttpVersion()
+    {
+        return httpVersion == null ? SiteHttpVersion.HTTP_1_1 : httpVersion;
+    }
+
     public synchronized Object setAttribute( String key, Object value )
     {
         if ( attributes == null )
@@ -245,6 +317,30 @@ public class SiteConfigBuilder
         return this;
     }
 
+    /**
+     * Read the client key/certificate PEM from the given file now, and remember the file so the PEM is reloaded into
+     * the site's live connection pool whenever the file changes.
+     */
+    public SiteConfigBuilder withKeyCertPemFile( File keyCertPemFile )
+            throws IOException
+    {
+        this.keyCertPem = FileUtils.readFileToString( keyCertPemFile, "UTF-8" );
+        this.keyCertPemFile = keyCertPemFile;
+        return this;
+    }
+
+    /**
+     * Read the server certificate PEM from the given file now, and remember the file so the PEM is reloaded into the
+     * site's live connection pool whenever the file changes.
+     */
+    public SiteConfigBuilder withServerCertPemFile( File serverCertPemFile )
+            throws IOException
+    {
+        this.serverCertPem = FileUtils.readFileToString( serverCertPemFile, "UTF-8" );
+        this.serverCertPemFile = serverCertPemFile;
+        return this;
+    }
+
     public SiteConfigBuilder withAttributes( Map<String, Object> attributes )
     {
         this.attributes = attributes;
@@ -263,6 +359,51 @@ public class SiteConfigBuilder
         return this;
     }
 
+    public SiteConfigBuilder withIdleConnectionTimeoutSeconds( Integer idleConnectionTimeoutSeconds )
+    {
+        this.idleConnectionTimeoutSeconds = idleConnectionTimeoutSeconds;
+        return this;
+    }
+
+    public SiteConfigBuilder withHttpVersion( SiteHttpVersion httpVersion )
+    {
+        this.httpVersion = httpVersion;
+        return this;
+    }
+
+    public int getWarmConnections()
+    {
+        return warmConnections == null ? 0 : warmConnections;
+    }
+
+    public SiteConfigBuilder withWarmConnections( Integer warmConnections )
+    {
+        this.warmConnections = warmConnections;
+        return this;
+    }
+
+    public Integer getSslSessionCacheSize()
+    {
+        return sslSessionCacheSize;
+    }
+
+    public SiteConfigBuilder withSslSessionCacheSize( Integer sslSessionCacheSize )
+    {
+        this.sslSessionCacheSize = sslSessionCacheSize;
+        return this;
+    }
+
+    public Integer getSslSessionTimeoutSeconds()
+    {
+        return sslSessionTimeoutSeconds;
+    }
+
+    public SiteConfigBuilder withSslSessionTimeoutSeconds( Integer sslSessionTimeoutSeconds )
+    {
+        this.sslSessionTimeoutSeconds = sslSessionTimeoutSeconds;
+        return this;
+    }
+
     public int getMaxConnections()
     {
         return maxConnections == null ? DEFAULT_MAX_CONNECTIONS : maxConnections;
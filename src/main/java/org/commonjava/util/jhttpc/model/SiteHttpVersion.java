@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.model;
+
+/**
+ * HTTP protocol version used for requests dispatched through {@link org.commonjava.util.jhttpc.HttpFactory#execute}.
+ * {@link #HTTP_2} multiplexes concurrent requests as streams over a small number of connections to the site, using
+ * ALPN to agree on the protocol over TLS. Its request and response bodies are buffered in memory, and the factory's
+ * {@link org.commonjava.util.jhttpc.auth.ClientAuthenticator} decorates each request through
+ * {@link org.commonjava.util.jhttpc.auth.ClientAuthenticator#decorateHttp2Request}.
+ */
+public enum SiteHttpVersion
+{
+    HTTP_1_1( "1.1", "http/1.1" ),
+
+    HTTP_2( "2", "2.0", "h2", "http/2" );
+
+    private String[] aliases;
+
+    SiteHttpVersion( String... aliases )
+    {
+        this.aliases = aliases;
+    }
+
+    public static SiteHttpVersion getVersion( String named )
+    {
+        for ( SiteHttpVersion version : values() )
+        {
+            if ( version.name().equalsIgnoreCase( named ) )
+            {
+                return version;
+            }
+
+            for ( String alias : version.aliases )
+            {
+                if ( alias.equalsIgnoreCase( named ) )
+                {
+                    return version;
+                }
+            }
+        }
+
+        return HTTP_1_1;
+    }
+}
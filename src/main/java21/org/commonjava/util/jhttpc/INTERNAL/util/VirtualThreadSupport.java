@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.INTERNAL.util;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Java 21 replacement for the baseline class of the same name, packaged under META-INF/versions/21.
+ */
+public final class VirtualThreadSupport
+{
+
+    private VirtualThreadSupport()
+    {
+    }
+
+    public static boolean isAvailable()
+    {
+        return true;
+    }
+
+    public static ThreadFactory newThreadFactory( final String namePrefix )
+    {
+        return Thread.ofVirtual().name( namePrefix, 0 ).factory();
+    }
+}
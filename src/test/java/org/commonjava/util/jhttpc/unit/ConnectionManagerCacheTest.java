@@ -0,0 +1,868 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.unit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.ssl.DefaultHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.commonjava.test.http.expect.ExpectationServer;
+import org.commonjava.util.jhttpc.INTERNAL.conn.CloseBlockingConnectionManager;
+import org.commonjava.util.jhttpc.INTERNAL.conn.ConnectionBudget;
+import org.commonjava.util.jhttpc.INTERNAL.conn.ConnectionManagerCache;
+import org.commonjava.util.jhttpc.INTERNAL.conn.ConnectionManagerTracker;
+import org.commonjava.util.jhttpc.INTERNAL.conn.SharedAsyncBackend;
+import org.commonjava.util.jhttpc.INTERNAL.conn.SiteConnectionConfig;
+import org.commonjava.util.jhttpc.INTERNAL.util.SharedExecutors;
+import org.commonjava.util.jhttpc.JHttpCException;
+import org.commonjava.util.jhttpc.metrics.ConnectionLeak;
+import org.commonjava.util.jhttpc.model.HttpFactoryConfig;
+import org.commonjava.util.jhttpc.model.HttpFactoryConfigBuilder;
+import org.commonjava.util.jhttpc.model.SiteConfig;
+import org.commonjava.util.jhttpc.model.SiteConfigBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ConnectionManagerCacheTest
+{
+    private static final int THREAD_COUNT = 20;
+
+    @Rule
+    public ExpectationServer server = new ExpectationServer();
+
+    private ConnectionManagerCache cache;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setup()
+    {
+        // housekeeping disabled; tests drive the sweeps directly.
+        cache = new ConnectionManagerCache( new HttpFactoryConfigBuilder().withIdleSweepSeconds( 0 )
+                                                                          .withStatsSnapshotSeconds( 0 )
+                                                                          .withTrackerExpirationSeconds( 0 )
+                                                                          .build() );
+        executor = Executors.newFixedThreadPool( THREAD_COUNT );
+    }
+
+    @After
+    public void teardown()
+    {
+        executor.shutdownNow();
+        cache.shutdownNow();
+    }
+
+    @Test
+    public void concurrentLookupsShareOneTracker()
+            throws Exception
+    {
+        final SiteConnectionConfig config =
+                new SiteConnectionConfig( new SiteConfigBuilder( "test", "http://localhost:8080/" ).build() );
+
+        final CountDownLatch start = new CountDownLatch( 1 );
+        Set<Future<ConnectionManagerTracker>> futures = new HashSet<Future<ConnectionManagerTracker>>();
+        for ( int i = 0; i < THREAD_COUNT; i++ )
+        {
+            futures.add( executor.submit( new Callable<ConnectionManagerTracker>()
+            {
+                @Override
+                public ConnectionManagerTracker call()
+                        throws Exception
+                {
+                    start.await();
+                    return cache.getTrackerFor( config );
+                }
+            } ) );
+        }
+
+        start.countDown();
+
+        ConnectionManagerTracker first = null;
+        for ( Future<ConnectionManagerTracker> future : futures )
+        {
+            ConnectionManagerTracker tracker = future.get( 10, TimeUnit.SECONDS );
+            if ( first == null )
+            {
+                first = tracker;
+            }
+
+            assertThat( tracker, sameInstance( first ) );
+        }
+
+        assertThat( first.getConnectionManager(), notNullValue() );
+        assertThat( first.isActive(), equalTo( true ) );
+    }
+
+    @Test
+    public void closedTrackerIsReplaced()
+            throws Exception
+    {
+        SiteConfig site = new SiteConfigBuilder( "test", "http://localhost:8080/" ).build();
+        SiteConnectionConfig config = new SiteConnectionConfig( site );
+
+        ConnectionManagerTracker tracker = cache.getTrackerFor( config );
+        tracker.release();
+
+        assertThat( tracker.detach(), equalTo( true ) );
+        assertThat( tracker.isClosed(), equalTo( true ) );
+
+        ConnectionManagerTracker replacement = cache.getTrackerFor( new SiteConnectionConfig( site ) );
+        assertThat( replacement, not( sameInstance( tracker ) ) );
+        assertThat( replacement.isClosed(), equalTo( false ) );
+        assertThat( replacement.isActive(), equalTo( true ) );
+    }
+
+    @Test
+    public void trackerInUseIsLeftLiveByDetach()
+            throws Exception
+    {
+        SiteConfig site = new SiteConfigBuilder( "test", "http://localhost:8080/" ).build();
+        ConnectionManagerTracker tracker = cache.getTrackerFor( new SiteConnectionConfig( site ) );
+
+        assertThat( tracker.detach(), equalTo( false ) );
+        assertThat( tracker.isDetached(), equalTo( false ) );
+
+        // not half-detached: releasing it leaves it in the cache, for the next sweep to detach
+        tracker.release();
+        assertThat( tracker.isClosed(), equalTo( false ) );
+        assertThat( cache.getTrackerFor( new SiteConnectionConfig( site ) ), sameInstance( tracker ) );
+
+        tracker.release();
+        assertThat( tracker.detach(), equalTo( true ) );
+        assertThat( tracker.isClosed(), equalTo( true ) );
+    }
+
+    @Test
+    public void trackerExpiresAfterConfiguredExpiration()
+            throws Exception
+    {
+        cache.shutdownNow();
+        cache = new ConnectionManagerCache( new HttpFactoryConfigBuilder().withIdleSweepSeconds( 0 )
+                                                                          .withStatsSnapshotSeconds( 0 )
+                                                                          .withTrackerExpirationSeconds( 1 )
+                                                                          .build() );
+
+        ConnectionManagerTracker tracker = trackerFor( "expiring" );
+        tracker.release();
+
+        // swept every second, and expired once unused for a second: well before the old fixed 30 seconds
+        long deadline = System.currentTimeMillis() + 10000;
+        while ( !tracker.isClosed() && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 100 );
+        }
+
+        assertThat( tracker.isClosed(), equalTo( true ) );
+        assertThat( cache.getTrackers().isEmpty(), equalTo( true ) );
+    }
+
+    @Test
+    public void housekeepingKeepsRunningAfterSweepFails()
+            throws Exception
+    {
+        cache.shutdownNow();
+        final AtomicInteger reloads = new AtomicInteger();
+        cache = new ConnectionManagerCache( new HttpFactoryConfigBuilder().withIdleSweepSeconds( 0 )
+                                                                          .withStatsSnapshotSeconds( 0 )
+                                                                          .withTrackerExpirationSeconds( 0 )
+                                                                          .withPemCheckSeconds( 1 )
+                                                                          .build(), ( site ) -> {
+            reloads.incrementAndGet();
+            throw new IllegalStateException( "Reload failed" );
+        } );
+
+        File pemFile = File.createTempFile( "server-cert", ".pem" );
+        pemFile.deleteOnExit();
+        FileUtils.write( pemFile, "first", "UTF-8" );
+
+        SiteConfig site = new SiteConfigBuilder( "pem", "https://host-pem/" ).withServerCertPemFile( pemFile ).build();
+        ConnectionManagerTracker tracker = cache.getTrackerFor( new SiteConnectionConfig( site ) );
+
+        // each change makes the scheduled PEM check throw; a task that let it escape would never run again
+        FileUtils.write( pemFile, "second", "UTF-8" );
+        awaitCount( reloads, 1 );
+
+        FileUtils.write( pemFile, "third", "UTF-8" );
+        awaitCount( reloads, 2 );
+
+        tracker.release();
+    }
+
+    private void awaitCount( final AtomicInteger count, final int expected )
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while ( count.get() < expected && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 100 );
+        }
+
+        assertThat( count.get(), equalTo( expected ) );
+    }
+
+    @Test
+    public void cachesShareDefaultHousekeepingExecutorAndCancelOnlyTheirOwnTasks()
+            throws Exception
+    {
+        ScheduledThreadPoolExecutor shared = (ScheduledThreadPoolExecutor) SharedExecutors.getHousekeepingExecutor();
+
+        // an unusual period tells this test's tasks apart from those of caches left behind by other tests
+        ConnectionManagerCache first = new ConnectionManagerCache( hourlyHousekeeping() );
+        Set<Future<?>> firstTasks = hourlyTasks( shared );
+
+        ConnectionManagerCache second = new ConnectionManagerCache( hourlyHousekeeping() );
+        Set<Future<?>> secondTasks = hourlyTasks( shared );
+        secondTasks.removeAll( firstTasks );
+
+        try
+        {
+            assertThat( firstTasks.isEmpty(), equalTo( false ) );
+            assertThat( secondTasks.size(), equalTo( firstTasks.size() ) );
+
+            first.shutdownNow();
+            assertThat( shared.isShutdown(), equalTo( false ) );
+            firstTasks.forEach( ( task ) -> assertThat( task.isCancelled(), equalTo( true ) ) );
+            secondTasks.forEach( ( task ) -> assertThat( task.isCancelled(), equalTo( false ) ) );
+        }
+        finally
+        {
+            first.shutdownNow();
+            second.shutdownNow();
+        }
+
+        secondTasks.forEach( ( task ) -> assertThat( task.isCancelled(), equalTo( true ) ) );
+    }
+
+    private HttpFactoryConfig hourlyHousekeeping()
+    {
+        return new HttpFactoryConfigBuilder().withIdleSweepSeconds( 3600 )
+                                             .withStatsSnapshotSeconds( 3600 )
+                                             .withTrackerExpirationSeconds( 3600 )
+                                             .build();
+    }
+
+    private Set<Future<?>> hourlyTasks( final ScheduledThreadPoolExecutor executor )
+    {
+        Set<Future<?>> tasks = new HashSet<Future<?>>();
+        for ( Runnable task : executor.getQueue() )
+        {
+            if ( ( (ScheduledFuture<?>) task ).getDelay( TimeUnit.SECONDS ) > 3500 )
+            {
+                tasks.add( (Future<?>) task );
+            }
+        }
+
+        return tasks;
+    }
+
+    @Test
+    public void idleConnectionsAreReaped()
+            throws Exception
+    {
+        String path = "/path/to/test";
+        server.expect( server.formatUrl( path ), 200, "This is a test." );
+
+        SiteConfig site = new SiteConfigBuilder( "test", server.formatUrl() ).withIdleConnectionTimeoutSeconds( 1 )
+                                                                             .build();
+
+        ConnectionManagerTracker tracker = cache.getTrackerFor( new SiteConnectionConfig( site ) );
+        CloseableHttpClient client =
+                HttpClients.custom().setConnectionManager( tracker.getConnectionManager() ).build();
+
+        CloseableHttpResponse response = client.execute( new HttpGet( server.formatUrl( path ) ) );
+        IOUtils.toString( response.getEntity().getContent() );
+        response.close();
+
+        assertThat( tracker.getConnectionManager().getTotalStats().getAvailable(), equalTo( 1 ) );
+
+        Thread.sleep( 1500 );
+
+        assertThat( cache.closeIdleConnections(), equalTo( 1 ) );
+        assertThat( cache.getLastReapedConnectionCount(), equalTo( 1 ) );
+        assertThat( tracker.getConnectionManager().getTotalStats().getAvailable(), equalTo( 0 ) );
+
+        tracker.release();
+    }
+
+    @Test
+    public void warmConnectionsAreRestoredAfterIdleEviction()
+            throws Exception
+    {
+        SiteConfig site = new SiteConfigBuilder( "warm", server.formatUrl() ).withWarmConnections( 2 ).build();
+
+        ConnectionManagerTracker tracker = cache.getTrackerFor( new SiteConnectionConfig( site ) );
+        CloseBlockingConnectionManager manager = tracker.getConnectionManager();
+
+        assertThat( tracker.isKeptWarm(), equalTo( true ) );
+        assertThat( tracker.keepWarm(), equalTo( 2 ) );
+        assertThat( manager.getTotalStats().getAvailable(), equalTo( 2 ) );
+        assertThat( tracker.keepWarm(), equalTo( 0 ) );
+
+        Thread.sleep( 50 );
+        manager.evictConnections( 1, TimeUnit.MILLISECONDS );
+        assertThat( manager.getTotalStats().getAvailable(), equalTo( 0 ) );
+
+        assertThat( tracker.keepWarm(), equalTo( 2 ) );
+        assertThat( manager.getTotalStats().getAvailable(), equalTo( 2 ) );
+
+        tracker.release();
+    }
+
+    @Test
+    public void leastRecentlyUsedIdlePoolsAreEvictedOverLimit()
+            throws Exception
+    {
+        cache.shutdownNow();
+        cache = new ConnectionManagerCache( new HttpFactoryConfigBuilder().withIdleSweepSeconds( 0 )
+                                                                          .withStatsSnapshotSeconds( 0 )
+                                                                          .withTrackerExpirationSeconds( 0 )
+                                                                          .withMaxLivePools( 2 )
+                                                                          .build() );
+
+        ConnectionManagerTracker a = trackerFor( "a" );
+        Thread.sleep( 5 );
+        ConnectionManagerTracker b = trackerFor( "b" );
+        a.getConnectionManager();
+        b.getConnectionManager();
+        assertThat( cache.getMetrics().getSiteMetrics( "a" ), notNullValue() );
+        a.release();
+        b.release();
+
+        // a was retrieved first, so it goes
+        ConnectionManagerTracker c = trackerFor( "c" );
+        assertThat( a.isClosed(), equalTo( true ) );
+        assertThat( b.isClosed(), equalTo( false ) );
+        assertThat( cache.getTrackers().size(), equalTo( 2 ) );
+
+        ConnectionManagerTracker d = trackerFor( "d" );
+        assertThat( b.isClosed(), equalTo( true ) );
+
+        // evicted pools take their metrics with them
+        assertThat( cache.getMetrics().getSiteMetrics( "a" ), nullValue() );
+        assertThat( cache.getMetrics().getSiteMetrics( "b" ), nullValue() );
+        c.getConnectionManager();
+
+        // c and d are still in use, so the limit is exceeded rather than closing them
+        ConnectionManagerTracker e = trackerFor( "e" );
+        assertThat( c.isClosed(), equalTo( false ) );
+        assertThat( d.isClosed(), equalTo( false ) );
+        assertThat( cache.getTrackers().size(), equalTo( 3 ) );
+        assertThat( cache.getEvictedPoolCount(), equalTo( 2L ) );
+
+        assertThat( a.estimateMemoryBytes(), equalTo( 0L ) );
+        assertThat( c.estimateMemoryBytes() > 0, equalTo( true ) );
+        assertThat( cache.getMetrics().estimateMemoryBytes() > 0, equalTo( true ) );
+        assertThat( cache.estimateMemoryBytes(), equalTo(
+                c.estimateMemoryBytes() + d.estimateMemoryBytes() + e.estimateMemoryBytes()
+                        + cache.getMetrics().estimateMemoryBytes() ) );
+
+        c.release();
+        d.release();
+        e.release();
+    }
+
+    private ConnectionManagerTracker trackerFor( final String id )
+            throws Exception
+    {
+        SiteConfig site = new SiteConfigBuilder( id, "http://host-" + id + "/" ).build();
+        return cache.getTrackerFor( new SiteConnectionConfig( site ) );
+    }
+
+    @Test
+    public void sitesOnSameEndpointShareOnePoolWithinTheirQuotas()
+            throws Exception
+    {
+        SiteConfig siteA = new SiteConfigBuilder( "a", "http://localhost:8080/a" ).withMaxConnections( 1 ).build();
+        SiteConfig siteB = new SiteConfigBuilder( "b", "http://localhost:8080/b" ).withMaxConnections( 2 ).build();
+
+        ConnectionManagerTracker tracker =
+                cache.getTrackerFor( new SiteConnectionConfig( siteA ).withSharedPool( "tls" ) );
+        ConnectionManagerTracker other =
+                cache.getTrackerFor( new SiteConnectionConfig( siteB ).withSharedPool( "tls" ) );
+        assertThat( other, sameInstance( tracker ) );
+
+        ConnectionManagerTracker separate =
+                cache.getTrackerFor( new SiteConnectionConfig( siteB ).withSharedPool( "other-tls" ) );
+        assertThat( separate, not( sameInstance( tracker ) ) );
+        separate.release();
+
+        CloseBlockingConnectionManager managerA = tracker.getConnectionManager( siteA );
+        CloseBlockingConnectionManager managerB = tracker.getConnectionManager( siteB );
+        HttpRoute route = new HttpRoute( new HttpHost( "localhost", 8080 ) );
+
+        HttpClientConnection leased = managerA.requestConnection( route, null ).get( 1, TimeUnit.SECONDS );
+        assertThat( managerA.getAvailableQuota(), equalTo( 0 ) );
+
+        try
+        {
+            managerA.requestConnection( route, null ).get( 100, TimeUnit.MILLISECONDS );
+            fail( "Site quota should have been exhausted" );
+        }
+        catch ( ConnectionPoolTimeoutException e )
+        {
+            // expected
+        }
+
+        HttpClientConnection leasedB = managerB.requestConnection( route, null ).get( 1, TimeUnit.SECONDS );
+        assertThat( tracker.getConnectionManager().getTotalStats().getLeased(), equalTo( 2 ) );
+        assertThat( tracker.getConnectionManager().getTotalStats().getMax(), equalTo( 3 ) );
+
+        managerA.releaseConnection( leased, null, 0, TimeUnit.MILLISECONDS );
+        managerB.releaseConnection( leasedB, null, 0, TimeUnit.MILLISECONDS );
+        assertThat( managerA.getAvailableQuota(), equalTo( 1 ) );
+
+        tracker.release();
+        other.release();
+    }
+
+    @Test
+    public void sharedPoolKeepsPerSiteStateAndForgetsUnusedSites()
+            throws Exception
+    {
+        SiteConfig siteA = new SiteConfigBuilder( "a", "http://localhost:8080/a" ).withMaxConnections( 1 ).build();
+        SiteConfig siteB = new SiteConfigBuilder( "b", "http://localhost:8080/b" ).withMaxConnections( 2 ).build();
+
+        ConnectionManagerTracker tracker =
+                cache.getTrackerFor( new SiteConnectionConfig( siteA ).withSharedPool( "tls" ) );
+        ConnectionManagerTracker other =
+                cache.getTrackerFor( new SiteConnectionConfig( siteB ).withSharedPool( "tls" ) );
+        assertThat( other, sameInstance( tracker ) );
+
+        // each site runs its requests within its own limit, not that of the site that created the pool
+        ExecutorService execA = tracker.getRequestExecutor( siteA );
+        ExecutorService execB = tracker.getRequestExecutor( siteB );
+        assertThat( execB, not( sameInstance( execA ) ) );
+        assertThat( ( (ThreadPoolExecutor) execB ).getMaximumPoolSize(), equalTo( 2 ) );
+
+        tracker.getConnectionManager( siteA );
+        tracker.getConnectionManager( siteB );
+        assertThat( tracker.getConnectionManager().getTotalStats().getMax(), equalTo( 3 ) );
+
+        // site b goes away; the site that created the pool stays
+        assertThat( tracker.expireSitesOlderThan( System.currentTimeMillis() + 1 ), equalTo( 1 ) );
+        assertThat( tracker.getQuotaSiteIds(), equalTo( Collections.singleton( "a" ) ) );
+        assertThat( tracker.getConnectionManager().getTotalStats().getMax(), equalTo( 1 ) );
+        assertThat( execB.isShutdown(), equalTo( true ) );
+
+        tracker.release();
+        other.release();
+    }
+
+    @Test
+    public void sitesThroughTheSameProxyAsDifferentUsersDontSharePools()
+            throws Exception
+    {
+        SiteConfig alice = new SiteConfigBuilder( "alice", "http://localhost:8080/a" ).withProxyHost( "proxy" )
+                                                                                      .withProxyPort( 3128 )
+                                                                                      .withProxyUser( "alice" )
+                                                                                      .build();
+        SiteConfig bob = new SiteConfigBuilder( "bob", "http://localhost:8080/b" ).withProxyHost( "proxy" )
+                                                                                  .withProxyPort( 3128 )
+                                                                                  .withProxyUser( "bob" )
+                                                                                  .build();
+
+        ConnectionManagerTracker aliceTracker =
+                cache.getTrackerFor( new SiteConnectionConfig( alice ).withSharedPool( "tls" ) );
+        ConnectionManagerTracker bobTracker =
+                cache.getTrackerFor( new SiteConnectionConfig( bob ).withSharedPool( "tls" ) );
+        assertThat( bobTracker, not( sameInstance( aliceTracker ) ) );
+
+        aliceTracker.release();
+        bobTracker.release();
+    }
+
+    @Test
+    public void globalBudgetFavorsSitesBelowTheirFairShare()
+            throws Exception
+    {
+        cache.shutdownNow();
+        cache = new ConnectionManagerCache( new HttpFactoryConfigBuilder().withIdleSweepSeconds( 0 )
+                                                                          .withStatsSnapshotSeconds( 0 )
+                                                                          .withTrackerExpirationSeconds( 0 )
+                                                                          .withGlobalMaxConnections( 2 )
+                                                                          .build() );
+
+        ConnectionManagerTracker trackerA =
+                cache.getTrackerFor( new SiteConnectionConfig( new SiteConfigBuilder( "a", "http://host-a/" ).build() ) );
+        ConnectionManagerTracker trackerB =
+                cache.getTrackerFor( new SiteConnectionConfig( new SiteConfigBuilder( "b", "http://host-b/" ).build() ) );
+
+        final CloseBlockingConnectionManager managerA = trackerA.getConnectionManager();
+        final CloseBlockingConnectionManager managerB = trackerB.getConnectionManager();
+        final HttpRoute routeA = new HttpRoute( new HttpHost( "host-a", 80 ) );
+        final HttpRoute routeB = new HttpRoute( new HttpHost( "host-b", 80 ) );
+
+        // with no other site active, A may borrow the whole budget
+        HttpClientConnection a1 = managerA.requestConnection( routeA, null ).get( 1, TimeUnit.SECONDS );
+        HttpClientConnection a2 = managerA.requestConnection( routeA, null ).get( 1, TimeUnit.SECONDS );
+
+        try
+        {
+            managerB.requestConnection( routeB, null ).get( 100, TimeUnit.MILLISECONDS );
+            fail( "Global budget should have been exhausted" );
+        }
+        catch ( ConnectionPoolTimeoutException e )
+        {
+            // expected
+        }
+
+        assertThat( managerB.getMetrics().getBudgetTimeoutCount(), equalTo( 1L ) );
+
+        Future<HttpClientConnection> waitingB =
+                executor.submit( () -> managerB.requestConnection( routeB, null ).get( 5, TimeUnit.SECONDS ) );
+        Future<HttpClientConnection> waitingA =
+                executor.submit( () -> managerA.requestConnection( routeA, null ).get( 5, TimeUnit.SECONDS ) );
+
+        ConnectionBudget budget = cache.getConnectionBudget();
+        while ( budget.getWaiting() < 2 )
+        {
+            Thread.sleep( 10 );
+        }
+
+        // A is at its fair share (1 of 2) after this, so the freed permit must go to B
+        managerA.releaseConnection( a1, null, 0, TimeUnit.MILLISECONDS );
+        HttpClientConnection b1 = waitingB.get( 5, TimeUnit.SECONDS );
+        Thread.sleep( 100 );
+        assertThat( waitingA.isDone(), equalTo( false ) );
+
+        managerB.releaseConnection( b1, null, 0, TimeUnit.MILLISECONDS );
+        HttpClientConnection a3 = waitingA.get( 5, TimeUnit.SECONDS );
+
+        assertThat( budget.getLeased(), equalTo( 2 ) );
+        assertThat( budget.getWaitCount() > 0, equalTo( true ) );
+
+        managerA.releaseConnection( a2, null, 0, TimeUnit.MILLISECONDS );
+        managerA.releaseConnection( a3, null, 0, TimeUnit.MILLISECONDS );
+        assertThat( budget.getLeased(), equalTo( 0 ) );
+
+        trackerA.release();
+        trackerB.release();
+    }
+
+    @Test
+    public void idleConnectionsOfAllSitesStayWithinGlobalBudget()
+            throws Exception
+    {
+        cache.shutdownNow();
+        cache = new ConnectionManagerCache( new HttpFactoryConfigBuilder().withIdleSweepSeconds( 0 )
+                                                                          .withStatsSnapshotSeconds( 0 )
+                                                                          .withTrackerExpirationSeconds( 0 )
+                                                                          .withGlobalMaxConnections( 2 )
+                                                                          .build() );
+
+        ConnectionBudget budget = cache.getConnectionBudget();
+        List<ConnectionManagerTracker> trackers = new ArrayList<ConnectionManagerTracker>();
+        for ( int i = 0; i < 4; i++ )
+        {
+            SiteConfig site = new SiteConfigBuilder( "idle-" + i, server.formatUrl() ).build();
+            ConnectionManagerTracker tracker = cache.getTrackerFor( new SiteConnectionConfig( site ) );
+            trackers.add( tracker );
+
+            // each site leaves one connection idle in its pool
+            assertThat( tracker.prewarm( site, 1 ), equalTo( 1 ) );
+            assertThat( tracker.getIdleConnectionCount(), equalTo( 1 ) );
+
+            int open = 0;
+            for ( ConnectionManagerTracker t : trackers )
+            {
+                open += t.getIdleConnectionCount();
+            }
+
+            assertThat( open <= budget.getCapacity(), equalTo( true ) );
+        }
+
+        assertThat( budget.getLeased(), equalTo( 0 ) );
+        assertThat( budget.getTrimmedCount() >= 2, equalTo( true ) );
+
+        trackers.forEach( ConnectionManagerTracker::release );
+    }
+
+    @Test
+    public void gracefulShutdownFinishesWhenLastLeaseIsReleased()
+            throws Exception
+    {
+        ConnectionManagerTracker tracker = trackerFor( "a" );
+        final CloseBlockingConnectionManager manager = tracker.getConnectionManager();
+        final HttpRoute route = new HttpRoute( new HttpHost( "host-a", 80 ) );
+
+        HttpClientConnection conn = manager.requestConnection( route, null ).get( 1, TimeUnit.SECONDS );
+
+        Future<Boolean> shutdown = executor.submit( () -> cache.shutdownGracefully( 10000 ) );
+        while ( !tracker.isDraining() )
+        {
+            Thread.sleep( 10 );
+        }
+
+        try
+        {
+            manager.requestConnection( route, null ).get( 1, TimeUnit.SECONDS );
+            fail( "New leases should be refused while draining" );
+        }
+        catch ( ExecutionException e )
+        {
+            // expected
+        }
+
+        try
+        {
+            trackerFor( "b" );
+            fail( "New pools should be refused after shutdown" );
+        }
+        catch ( JHttpCException e )
+        {
+            // expected
+        }
+
+        // the tracker still has a user, but only the leased connection holds up the shutdown
+        Thread.sleep( 200 );
+        assertThat( shutdown.isDone(), equalTo( false ) );
+        assertThat( tracker.getLeasedCounts().get( "a" ), equalTo( 1 ) );
+
+        manager.releaseConnection( conn, null, 0, TimeUnit.MILLISECONDS );
+        assertThat( shutdown.get( 1, TimeUnit.SECONDS ), equalTo( true ) );
+        assertThat( tracker.isClosed(), equalTo( true ) );
+    }
+
+    @Test
+    public void shutdownNowRefusesNewPools()
+            throws Exception
+    {
+        ConnectionManagerTracker tracker = trackerFor( "a" );
+        tracker.getConnectionManager();
+
+        assertThat( cache.shutdownNow(), equalTo( true ) );
+        assertThat( tracker.isClosed(), equalTo( true ) );
+        assertThat( cache.isClosed(), equalTo( true ) );
+
+        try
+        {
+            trackerFor( "a" );
+            fail( "Pools should be refused after shutdownNow" );
+        }
+        catch ( JHttpCException e )
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void changedPemFilesAreQueuedForReloadOncePerVersion()
+            throws Exception
+    {
+        cache.shutdownNow();
+        final List<String> reloads = Collections.synchronizedList( new ArrayList<String>() );
+        cache = new ConnectionManagerCache( new HttpFactoryConfigBuilder().withIdleSweepSeconds( 0 )
+                                                                          .withStatsSnapshotSeconds( 0 )
+                                                                          .withTrackerExpirationSeconds( 0 )
+                                                                          .withPemCheckSeconds( 0 )
+                                                                          .build(),
+                                            ( site ) -> reloads.add( site.getId() ) );
+
+        File pemFile = File.createTempFile( "server-cert", ".pem" );
+        pemFile.deleteOnExit();
+        FileUtils.write( pemFile, "first", "UTF-8" );
+
+        SiteConfig site = new SiteConfigBuilder( "pem", "https://host-pem/" ).withServerCertPemFile( pemFile ).build();
+        ConnectionManagerTracker tracker = cache.getTrackerFor( new SiteConnectionConfig( site ) );
+        assertThat( cache.checkPemFiles(), equalTo( 0 ) );
+
+        // the reloader never swaps the new material in, as if each reload were still pending or had failed
+        FileUtils.write( pemFile, "second", "UTF-8" );
+        assertThat( cache.checkPemFiles(), equalTo( 1 ) );
+        assertThat( cache.checkPemFiles(), equalTo( 0 ) );
+
+        FileUtils.write( pemFile, "third", "UTF-8" );
+        assertThat( cache.checkPemFiles(), equalTo( 1 ) );
+        assertThat( reloads.size(), equalTo( 2 ) );
+
+        tracker.release();
+    }
+
+    @Test
+    public void swappedTlsRebindsAsyncRequests()
+            throws Exception
+    {
+        SiteConfig site = new SiteConfigBuilder( "swap", "https://host-swap/" ).build();
+        ConnectionManagerTracker tracker = cache.getTrackerFor( new SiteConnectionConfig( site ) );
+        SharedAsyncBackend.TlsBinding before = tracker.setAsyncTls( SharedAsyncBackend.bindTls( null, null ) );
+
+        assertThat( tracker.swapTls( site, SSLConnectionSocketFactory.getSocketFactory(), null,
+                                     new DefaultHostnameVerifier() ), equalTo( true ) );
+
+        // a new user token, so async requests stop reusing connections made with the old material
+        assertThat( tracker.getAsyncTls().getUserToken(), not( equalTo( before.getUserToken() ) ) );
+
+        tracker.release();
+    }
+
+    @Test
+    public void leakedConnectionIsReportedAndReclaimed()
+            throws Exception
+    {
+        cache.shutdownNow();
+        ScheduledExecutorService housekeeping = Executors.newSingleThreadScheduledExecutor();
+        cache = new ConnectionManagerCache( new HttpFactoryConfigBuilder().withIdleSweepSeconds( 0 )
+                                                                          .withStatsSnapshotSeconds( 0 )
+                                                                          .withTrackerExpirationSeconds( 0 )
+                                                                          .withLeakDetectionSeconds( 1 )
+                                                                          .withLeakTraceSampleRate( 1 )
+                                                                          .withLeakReclaim( true )
+                                                                          .withHousekeepingExecutor( housekeeping )
+                                                                          .build() );
+
+        // sweep by hand only, so the scheduled leak detector can't reclaim the leak before we look for it
+        housekeeping.shutdownNow();
+
+        SiteConfig site = new SiteConfigBuilder( "leaky", "http://localhost:8080/" ).withMaxConnections( 1 ).build();
+        ConnectionManagerTracker tracker = cache.getTrackerFor( new SiteConnectionConfig( site ) );
+        CloseBlockingConnectionManager manager = tracker.getConnectionManager();
+        HttpRoute route = new HttpRoute( new HttpHost( "localhost", 8080 ) );
+
+        HttpClientConnection leaked = manager.requestConnection( route, null ).get( 1, TimeUnit.SECONDS );
+        assertThat( cache.detectLeaks().isEmpty(), equalTo( true ) );
+
+        Thread.sleep( 1100 );
+
+        List<ConnectionLeak> leaks = cache.detectLeaks();
+        assertThat( leaks.size(), equalTo( 1 ) );
+        assertThat( cache.getConnectionLeaks(), equalTo( leaks ) );
+
+        ConnectionLeak leak = leaks.get( 0 );
+        assertThat( leak.getSiteId(), equalTo( "leaky" ) );
+        assertThat( leak.getAllocationTrace(), notNullValue() );
+        assertThat( leak.isReclaimed(), equalTo( true ) );
+        assertThat( manager.getMetrics().getLeakCount(), equalTo( 1L ) );
+        assertThat( manager.getMetrics().getReclaimedCount(), equalTo( 1L ) );
+        assertThat( manager.getLeasedCount(), equalTo( 0 ) );
+        assertThat( manager.getTotalStats().getLeased(), equalTo( 0 ) );
+
+        // a late release by the leaking code mustn't give back the quota twice
+        manager.releaseConnection( leaked, null, 0, TimeUnit.MILLISECONDS );
+        HttpClientConnection next = manager.requestConnection( route, null ).get( 1, TimeUnit.SECONDS );
+        try
+        {
+            manager.requestConnection( route, null ).get( 100, TimeUnit.MILLISECONDS );
+            fail( "Pool should be exhausted after the leaked connection was reclaimed" );
+        }
+        catch ( ConnectionPoolTimeoutException e )
+        {
+            // expected
+        }
+
+        manager.releaseConnection( next, null, 0, TimeUnit.MILLISECONDS );
+        assertThat( cache.detectLeaks().isEmpty(), equalTo( true ) );
+
+        tracker.release();
+    }
+
+    @Test
+    public void poolsAreManageableViaJmx()
+            throws Exception
+    {
+        cache.shutdownNow();
+        cache = new ConnectionManagerCache( new HttpFactoryConfigBuilder().withIdleSweepSeconds( 0 )
+                                                                          .withStatsSnapshotSeconds( 0 )
+                                                                          .withTrackerExpirationSeconds( 0 )
+                                                                          .withJmxEnabled( true )
+                                                                          .withJmxName( "jmx-test" )
+                                                                          .build() );
+
+        String path = "/path/to/test";
+        server.expect( server.formatUrl( path ), 200, "This is a test." );
+
+        SiteConfig site = new SiteConfigBuilder( "jmx", server.formatUrl() ).build();
+        ConnectionManagerTracker tracker = cache.getTrackerFor( new SiteConnectionConfig( site ) );
+
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName cacheName = new ObjectName( "org.commonjava.util.jhttpc:type=ConnectionManagerCache,name=\"jmx-test\"" );
+        ObjectName poolName = new ObjectName(
+                "org.commonjava.util.jhttpc:type=SitePool,name=\"jmx-test\",pool=\"jmx\"" );
+
+        assertThat( mbeanServer.getAttribute( cacheName, "TrackerCount" ), equalTo( (Object) 1 ) );
+        assertThat( mbeanServer.getAttribute( poolName, "UserCount" ), equalTo( (Object) 1 ) );
+
+        CloseableHttpClient client =
+                HttpClients.custom().setConnectionManager( tracker.getConnectionManager() ).build();
+        CloseableHttpResponse response = client.execute( new HttpGet( server.formatUrl( path ) ) );
+        IOUtils.toString( response.getEntity().getContent() );
+        response.close();
+
+        CompositeData[] routes = (CompositeData[]) mbeanServer.getAttribute( poolName, "RouteStats" );
+        assertThat( routes.length, equalTo( 1 ) );
+        assertThat( routes[0].get( "available" ), equalTo( (Object) 1 ) );
+
+        mbeanServer.invoke( poolName, "resize", new Object[] { 5, 3 }, new String[] { "int", "int" } );
+        assertThat( mbeanServer.getAttribute( poolName, "MaxTotal" ), equalTo( (Object) 5 ) );
+        assertThat( mbeanServer.getAttribute( poolName, "DefaultMaxPerRoute" ), equalTo( (Object) 3 ) );
+
+        // the resize is recorded as a reconfiguration of the site, so later reconfigure passes don't undo it
+        assertThat( tracker.getSiteConfig().getMaxConnections(), equalTo( 5 ) );
+        assertThat( tracker.getReconfiguredSite( "jmx" ).getMaxPerRoute(), equalTo( 3 ) );
+
+        assertThat( mbeanServer.invoke( poolName, "evictIdleConnections", new Object[] { 0 },
+                                        new String[] { "int" } ), equalTo( (Object) 1 ) );
+
+        tracker.release();
+        assertThat( mbeanServer.invoke( poolName, "detach", new Object[0], new String[0] ),
+                    equalTo( (Object) true ) );
+        assertThat( tracker.isClosed(), equalTo( true ) );
+        assertThat( mbeanServer.isRegistered( poolName ), equalTo( false ) );
+
+        cache.shutdownNow();
+        assertThat( mbeanServer.isRegistered( cacheName ), equalTo( false ) );
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.unit;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.commonjava.test.http.expect.ExpectationServer;
+import org.commonjava.util.jhttpc.HttpFactory;
+import org.commonjava.util.jhttpc.INTERNAL.jfr.JfrEvents;
+import org.commonjava.util.jhttpc.auth.MemoryPasswordManager;
+import org.commonjava.util.jhttpc.model.SiteConfig;
+import org.commonjava.util.jhttpc.model.SiteConfigBuilder;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Flight Recorder assertions live apart from {@link HttpFactoryTest}, since this class only loads on JVMs with JFR.
+ */
+public class FlightRecorderEventsTest
+{
+    @Rule
+    public ExpectationServer server = new ExpectationServer();
+
+    private HttpFactory factory;
+
+    @Before
+    public void setup()
+    {
+        Assume.assumeTrue( JfrEvents.isAvailable() );
+        factory = new HttpFactory( new MemoryPasswordManager() );
+    }
+
+    @Test
+    public void flightRecorderEventsAreEmitted()
+            throws Exception
+    {
+        String path = "/path/to/test";
+        String content = "This is a test.";
+
+        server.expect( server.formatUrl( path ), 200, content );
+
+        SiteConfig config = new SiteConfigBuilder( "jfr", server.formatUrl() ).build();
+
+        File dump = File.createTempFile( "jhttpc-", ".jfr" );
+        Recording recording = new Recording();
+        recording.enable( "org.commonjava.jhttpc.Request" );
+        recording.enable( "org.commonjava.jhttpc.ConnectionLease" );
+        recording.enable( "org.commonjava.jhttpc.ConnectionRelease" );
+        recording.enable( "org.commonjava.jhttpc.PoolCreation" );
+        recording.start();
+
+        CloseableHttpClient client = factory.createClient( config );
+        try
+        {
+            CloseableHttpResponse response = client.execute( new HttpGet( server.formatUrl( path ) ) );
+            assertThat( IOUtils.toString( response.getEntity().getContent() ), equalTo( content ) );
+            response.close();
+        }
+        finally
+        {
+            IOUtils.closeQuietly( client );
+            factory.shutdownNow();
+
+            recording.stop();
+            recording.dump( dump.toPath() );
+            recording.close();
+        }
+
+        Map<String, RecordedEvent> events = new HashMap<>();
+        for ( RecordedEvent event : RecordingFile.readAllEvents( dump.toPath() ) )
+        {
+            if ( "jfr".equals( event.getValue( "siteId" ) ) )
+            {
+                events.put( event.getEventType().getName(), event );
+            }
+        }
+        FileUtils.deleteQuietly( dump );
+
+        RecordedEvent request = events.get( "org.commonjava.jhttpc.Request" );
+        assertThat( request, notNullValue() );
+        assertThat( request.getInt( "status" ), equalTo( 200 ) );
+        assertThat( request.getString( "path" ), equalTo( path ) );
+
+        RecordedEvent lease = events.get( "org.commonjava.jhttpc.ConnectionLease" );
+        assertThat( lease, notNullValue() );
+        assertThat( lease.getBoolean( "acquired" ), equalTo( true ) );
+
+        assertThat( events.get( "org.commonjava.jhttpc.ConnectionRelease" ), notNullValue() );
+        assertThat( events.get( "org.commonjava.jhttpc.PoolCreation" ), notNullValue() );
+    }
+}
@@ -0,0 +1,344 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.jhttpc.unit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
+import org.apache.hc.core5.http.nio.AsyncRequestConsumer;
+import org.apache.hc.core5.http.nio.AsyncServerRequestHandler;
+import org.apache.hc.core5.http.nio.entity.DiscardingEntityConsumer;
+import org.apache.hc.core5.http.nio.support.BasicRequestConsumer;
+import org.apache.hc.core5.http.nio.support.BasicResponseProducer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http.protocol.HttpCoreContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2ServerBootstrap;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ssl.DefaultHostnameVerifier;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.commonjava.util.jhttpc.HttpFactory;
+import org.commonjava.util.jhttpc.INTERNAL.conn.ConnectionManagerCache;
+import org.commonjava.util.jhttpc.INTERNAL.conn.ConnectionManagerTracker;
+import org.commonjava.util.jhttpc.INTERNAL.conn.Http2SiteClient;
+import org.commonjava.util.jhttpc.INTERNAL.conn.SiteConnectionConfig;
+import org.commonjava.util.jhttpc.JHttpCException;
+import org.commonjava.util.jhttpc.auth.ClientAuthenticator;
+import org.commonjava.util.jhttpc.auth.MemoryPasswordManager;
+import org.commonjava.util.jhttpc.auth.OAuth20BearerTokenAuthenticator;
+import org.commonjava.util.jhttpc.model.HttpFactoryConfigBuilder;
+import org.commonjava.util.jhttpc.model.SiteConfig;
+import org.commonjava.util.jhttpc.model.SiteConfigBuilder;
+import org.commonjava.util.jhttpc.model.SiteHttpVersion;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class Http2ExecuteTest
+{
+    private final Set<SocketAddress> clientConnections = ConcurrentHashMap.newKeySet();
+
+    private HttpAsyncServer server;
+
+    private int port;
+
+    private HttpFactory factory;
+
+    @Before
+    public void setup()
+            throws Exception
+    {
+        server = H2ServerBootstrap.bootstrap()
+                                  .setVersionPolicy( HttpVersionPolicy.FORCE_HTTP_2 )
+                                  .register( "*", new EchoVersionHandler() )
+                                  .create();
+        server.start();
+        InetSocketAddress address = (InetSocketAddress) server.listen( new InetSocketAddress( "localhost", 0 ),
+                                                                       URIScheme.HTTP ).get().getAddress();
+        port = address.getPort();
+
+        factory = new HttpFactory( new MemoryPasswordManager() );
+    }
+
+    @After
+    public void teardown()
+    {
+        factory.shutdownNow();
+        server.close( CloseMode.GRACEFUL );
+    }
+
+    @Test
+    public void concurrentRequestsAreMultiplexedOverOneConnection()
+            throws Exception
+    {
+        String base = "http://localhost:" + port;
+        SiteConfig config = new SiteConfigBuilder( "h2", base ).withHttpVersion( SiteHttpVersion.HTTP_2 )
+                                                               .withMaxConnections( 2 )
+                                                               .build();
+
+        ResponseHandler<String> handler = response -> IOUtils.toString( response.getEntity().getContent() );
+
+        List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+        for ( int i = 0; i < 20; i++ )
+        {
+            futures.add( factory.execute( config, new HttpGet( base + "/path/" + i ), handler ) );
+        }
+
+        for ( int i = 0; i < futures.size(); i++ )
+        {
+            assertThat( futures.get( i ).get( 10, TimeUnit.SECONDS ), equalTo( "HTTP/2.0 /path/" + i ) );
+        }
+
+        assertThat( clientConnections.size(), equalTo( 1 ) );
+    }
+
+    @Test
+    public void bearerTokenIsSentOverHttp2()
+            throws Exception
+    {
+        factory.shutdownNow();
+        factory = new HttpFactory( new OAuth20BearerTokenAuthenticator( "my-token" ) );
+
+        String base = "http://localhost:" + port;
+        SiteConfig config = new SiteConfigBuilder( "h2-bearer", base ).withHttpVersion( SiteHttpVersion.HTTP_2 )
+                                                                      .build();
+
+        ResponseHandler<String> handler = response -> IOUtils.toString( response.getEntity().getContent() );
+        HttpGet request = new HttpGet( base + "/secured" );
+        assertThat( factory.execute( config, request, handler ).get( 10, TimeUnit.SECONDS ),
+                    equalTo( "HTTP/2.0 /secured Bearer my-token" ) );
+
+        // the header goes on a copy, not the caller's request
+        assertThat( request.containsHeader( "Authorization" ), equalTo( false ) );
+    }
+
+    @Test
+    public void authenticatorDecoratingOnlyTheClientBuilderIsRefusedForHttp2()
+            throws Exception
+    {
+        factory.shutdownNow();
+        factory = new HttpFactory( new ClientAuthenticator()
+        {
+            @Override
+            public HttpClientBuilder decorateClientBuilder( final HttpClientBuilder builder )
+            {
+                return builder.setUserAgent( "builder-only" );
+            }
+        } );
+
+        String base = "http://localhost:" + port;
+        SiteConfig config = new SiteConfigBuilder( "h2-builder", base ).withHttpVersion( SiteHttpVersion.HTTP_2 )
+                                                                       .build();
+
+        ResponseHandler<String> handler = response -> IOUtils.toString( response.getEntity().getContent() );
+        try
+        {
+            factory.execute( config, new HttpGet( base + "/secured" ), handler ).get( 10, TimeUnit.SECONDS );
+            fail( "HTTP/2 request should be refused for an authenticator that only decorates the client builder" );
+        }
+        catch ( ExecutionException e )
+        {
+            assertThat( e.getCause() instanceof JHttpCException, equalTo( true ) );
+        }
+    }
+
+    @Test
+    public void reloadedTlsReplacesBackendAfterRequestsInFlight()
+            throws Exception
+    {
+        String base = "http://localhost:" + port;
+        SiteConfig config = new SiteConfigBuilder( "h2-reload", base ).withHttpVersion( SiteHttpVersion.HTTP_2 )
+                                                                      .build();
+
+        ResponseHandler<String> handler = response -> IOUtils.toString( response.getEntity().getContent() );
+        assertThat( factory.execute( config, new HttpGet( base + "/first" ), handler ).get( 10, TimeUnit.SECONDS ),
+                    equalTo( "HTTP/2.0 /first" ) );
+        int backendThreads = backendThreads( "h2-reload" );
+        assertThat( backendThreads > 0, equalTo( true ) );
+
+        CompletableFuture<String> inFlight = factory.execute( config, new HttpGet( base + "/slow" ), handler );
+        Thread.sleep( 100 );
+        assertThat( factory.reloadTls( config ).get( 5, TimeUnit.SECONDS ), equalTo( true ) );
+
+        // new requests go through a new backend, and so a new connection
+        assertThat( factory.execute( config, new HttpGet( base + "/second" ), handler ).get( 10, TimeUnit.SECONDS ),
+                    equalTo( "HTTP/2.0 /second" ) );
+        assertThat( clientConnections.size(), equalTo( 2 ) );
+
+        // the old backend isn't closed under the request it's still serving, but is once that completes
+        assertThat( inFlight.get( 10, TimeUnit.SECONDS ), equalTo( "HTTP/2.0 /slow" ) );
+        long deadline = System.currentTimeMillis() + 10000;
+        while ( backendThreads( "h2-reload" ) > backendThreads && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 50 );
+        }
+
+        assertThat( backendThreads( "h2-reload" ), equalTo( backendThreads ) );
+    }
+
+    @Test
+    public void sharedPoolKeepsSiteWithHttp2RequestsInFlightAcrossExpiry()
+            throws Exception
+    {
+        ConnectionManagerCache cache = new ConnectionManagerCache(
+                new HttpFactoryConfigBuilder().withIdleSweepSeconds( 0 )
+                                              .withStatsSnapshotSeconds( 0 )
+                                              .withTrackerExpirationSeconds( 0 )
+                                              .build() );
+        try
+        {
+            String base = "http://localhost:" + port;
+            SiteConfig owner = new SiteConfigBuilder( "h2-owner", base ).withHttpVersion( SiteHttpVersion.HTTP_2 )
+                                                                        .build();
+            SiteConfig site = new SiteConfigBuilder( "h2-shared", base ).withHttpVersion( SiteHttpVersion.HTTP_2 )
+                                                                         .build();
+
+            ConnectionManagerTracker tracker =
+                    cache.getTrackerFor( new SiteConnectionConfig( owner ).withSharedPool( "h2" ) );
+            ConnectionManagerTracker other =
+                    cache.getTrackerFor( new SiteConnectionConfig( site ).withSharedPool( "h2" ) );
+            assertThat( other, sameInstance( tracker ) );
+            tracker.getConnectionManager( site );
+
+            Http2SiteClient client = tracker.setSharedHttp2Client( "h2-shared", Http2SiteClient.build(
+                    site, null, new DefaultHostnameVerifier() ) );
+            ExecutorService exec = tracker.getRequestExecutor( site );
+
+            ResponseHandler<String> handler = response -> IOUtils.toString( response.getEntity().getContent() );
+            CompletableFuture<String> inFlight = new CompletableFuture<String>();
+            assertThat( client.execute( new HttpGet( base + "/slow" ), null, handler, exec, inFlight ),
+                        notNullValue() );
+
+            // the site holds no HTTP/1 leases and is past its expiration, but its request in flight keeps it
+            assertThat( tracker.expireSitesOlderThan( System.currentTimeMillis() + 1 ), equalTo( 0 ) );
+            assertThat( inFlight.get( 10, TimeUnit.SECONDS ), equalTo( "HTTP/2.0 /slow" ) );
+
+            assertThat( tracker.expireSitesOlderThan( System.currentTimeMillis() + 1 ), equalTo( 1 ) );
+            assertThat( tracker.getQuotaSiteIds().contains( "h2-shared" ), equalTo( false ) );
+
+            // the forgotten site's backend is retired, so it refuses new requests and closes along with its executor
+            assertThat( client.execute( new HttpGet( base + "/late" ), null, handler, exec,
+                                        new CompletableFuture<String>() ), nullValue() );
+            long deadline = System.currentTimeMillis() + 10000;
+            while ( !( client.isClosed() && exec.isShutdown() ) && System.currentTimeMillis() < deadline )
+            {
+                Thread.sleep( 50 );
+            }
+
+            assertThat( client.isClosed(), equalTo( true ) );
+            assertThat( exec.isShutdown(), equalTo( true ) );
+
+            tracker.release();
+            other.release();
+        }
+        finally
+        {
+            cache.shutdownNow();
+        }
+    }
+
+    private int backendThreads( final String siteId )
+    {
+        int count = 0;
+        for ( Thread thread : Thread.getAllStackTraces().keySet() )
+        {
+            if ( thread.isAlive() && thread.getName().startsWith( "jHTTPc h2-" + siteId + "-" ) )
+            {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private final class EchoVersionHandler
+            implements AsyncServerRequestHandler<Message<HttpRequest, Void>>
+    {
+        @Override
+        public AsyncRequestConsumer<Message<HttpRequest, Void>> prepare( final HttpRequest request,
+                                                                         final EntityDetails entityDetails,
+                                                                         final HttpContext context )
+        {
+            return new BasicRequestConsumer<Void>( new DiscardingEntityConsumer<Void>() );
+        }
+
+        @Override
+        public void handle( final Message<HttpRequest, Void> message, final ResponseTrigger responseTrigger,
+                            final HttpContext context )
+                throws IOException, HttpException
+        {
+            clientConnections.add( HttpCoreContext.adapt( context ).getEndpointDetails().getRemoteAddress() );
+
+            HttpRequest request = message.getHead();
+            String echo = request.getVersion() + " " + request.getPath();
+            Header authorization = request.getFirstHeader( "Authorization" );
+            if ( authorization != null )
+            {
+                echo += " " + authorization.getValue();
+            }
+
+            if ( !request.getPath().startsWith( "/slow" ) )
+            {
+                responseTrigger.submitResponse( new BasicResponseProducer( 200, echo, ContentType.TEXT_PLAIN ),
+                                                context );
+                return;
+            }
+
+            final String slowEcho = echo;
+            Thread responder = new Thread( () -> {
+                try
+                {
+                    Thread.sleep( 1000 );
+                    responseTrigger.submitResponse(
+                            new BasicResponseProducer( 200, slowEcho, ContentType.TEXT_PLAIN ), context );
+                }
+                catch ( InterruptedException | IOException | HttpException e )
+                {
+                    // the client sees the stream reset
+                }
+            } );
+            responder.setDaemon( true );
+            responder.start();
+        }
+    }
+}
@@ -15,31 +15,85 @@
  */
 package org.commonjava.util.jhttpc.unit;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.commonjava.test.http.expect.ExpectationHandler;
 import org.commonjava.test.http.expect.ExpectationServer;
 import org.commonjava.util.jhttpc.HttpFactory;
+import org.commonjava.util.jhttpc.INTERNAL.conn.ConnectionManagerTracker;
+import org.commonjava.util.jhttpc.INTERNAL.conn.SharedAsyncBackend;
+import org.commonjava.util.jhttpc.INTERNAL.conn.ThreadPerTaskExecutor;
+import org.commonjava.util.jhttpc.INTERNAL.util.PemTrustBundleCache;
+import org.commonjava.util.jhttpc.INTERNAL.util.SSLUtils;
+import org.commonjava.util.jhttpc.INTERNAL.util.SslContextCache;
+import org.commonjava.util.jhttpc.INTERNAL.util.VirtualThreadSupport;
 import org.commonjava.util.jhttpc.auth.MemoryPasswordManager;
 import org.commonjava.util.jhttpc.auth.PasswordManager;
 import org.commonjava.util.jhttpc.auth.PasswordType;
+import org.commonjava.util.jhttpc.metrics.FileEventSink;
+import org.commonjava.util.jhttpc.metrics.RequestPhase;
+import org.commonjava.util.jhttpc.metrics.RequestTimings;
+import org.commonjava.util.jhttpc.metrics.SitePoolMetrics;
+import org.commonjava.util.jhttpc.model.HttpFactoryConfigBuilder;
 import org.commonjava.util.jhttpc.model.SiteConfig;
 import org.commonjava.util.jhttpc.model.SiteConfigBuilder;
+import org.commonjava.util.jhttpc.model.SiteTrustType;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
 import javax.crypto.Cipher;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 /**
  * Created by jdcasey on 10/28/15.
@@ -97,6 +151,934 @@ public class HttpFactoryTest
         }
     }
 
+    @Test
+    public void cachedClientsShareOnePoolAcrossCloses()
+            throws Exception
+    {
+        String path = "/path/to/test";
+        String content = "This is a test.";
+
+        server.expect( server.formatUrl( path ), 200, content );
+
+        HttpFactory factory = new HttpFactory( new MemoryPasswordManager(),
+                                               new HttpFactoryConfigBuilder().withClientCaching( true ).build() );
+        SiteConfig config = new SiteConfigBuilder( "test", server.formatUrl() ).build();
+
+        CloseableHttpClient first = factory.createClient( config );
+        CloseableHttpClient second = factory.createClient( config );
+        try
+        {
+            CloseableHttpResponse response = first.execute( new HttpGet( server.formatUrl( path ) ) );
+            assertThat( IOUtils.toString( response.getEntity().getContent() ), equalTo( content ) );
+            response.close();
+
+            first.close();
+
+            response = second.execute( new HttpGet( server.formatUrl( path ) ) );
+            assertThat( IOUtils.toString( response.getEntity().getContent() ), equalTo( content ) );
+            response.close();
+        }
+        finally
+        {
+            IOUtils.closeQuietly( first );
+            IOUtils.closeQuietly( second );
+            factory.shutdownNow();
+        }
+    }
+
+    @Test
+    public void poolMetricsAreRecordedPerSite()
+            throws Exception
+    {
+        String path = "/path/to/test";
+        String content = "This is a test.";
+
+        server.expect( server.formatUrl( path ), 200, content );
+
+        SiteConfig config = new SiteConfigBuilder( "metrics", server.formatUrl() ).build();
+
+        CloseableHttpClient client = factory.createClient( config );
+        try
+        {
+            for ( int i = 0; i < 3; i++ )
+            {
+                CloseableHttpResponse response = client.execute( new HttpGet( server.formatUrl( path ) ) );
+                assertThat( IOUtils.toString( response.getEntity().getContent() ), equalTo( content ) );
+                response.close();
+            }
+
+            SitePoolMetrics metrics = factory.getMetrics().getSiteMetrics( "metrics" );
+            assertThat( metrics, notNullValue() );
+            assertThat( metrics.getLeaseWait().getCount(), equalTo( 3L ) );
+            assertThat( metrics.getHoldTime().getCount(), equalTo( 3L ) );
+            assertThat( metrics.getNewConnectionCount(), equalTo( 1L ) );
+            assertThat( metrics.getReusedConnectionCount(), equalTo( 2L ) );
+            assertThat( metrics.getLeased(), equalTo( 0 ) );
+            assertThat( metrics.getAvailable(), equalTo( 1 ) );
+            assertThat( metrics.getMax(), equalTo( config.getMaxConnections() ) );
+        }
+        finally
+        {
+            IOUtils.closeQuietly( client );
+            factory.shutdownNow();
+        }
+
+        assertThat( factory.getMetrics().getSiteMetrics( "metrics" ).getPoolStats(), nullValue() );
+    }
+
+    @Test
+    public void reconfiguredTimeoutsApplyToReusedContext()
+            throws Exception
+    {
+        final String path = "/path/to/slow";
+        server.expect( "GET", server.formatUrl( path ), new ExpectationHandler()
+        {
+            @Override
+            public void handle( HttpServletRequest request, HttpServletResponse response )
+                    throws ServletException, IOException
+            {
+                try
+                {
+                    Thread.sleep( 1500 );
+                }
+                catch ( InterruptedException e )
+                {
+                    return;
+                }
+
+                response.setStatus( 200 );
+                response.getWriter().write( "Slow response." );
+            }
+        } );
+
+        SiteConfig config = new SiteConfigBuilder( "reused-context", server.formatUrl() ).withRequestTimeoutSeconds( 1 )
+                                                                                         .build();
+
+        CloseableHttpClient client = factory.createClient( config );
+        HttpClientContext context = HttpClientContext.create();
+        try
+        {
+            try
+            {
+                client.execute( new HttpGet( server.formatUrl( path ) ), context );
+                fail( "Request should have timed out" );
+            }
+            catch ( SocketTimeoutException e )
+            {
+                // expected
+            }
+
+            SiteConfig updated = new SiteConfigBuilder( config ).withRequestTimeoutSeconds( 5 ).build();
+            assertThat( factory.reconfigure( updated ), equalTo( true ) );
+
+            // the context still holds the old timeouts from the first request, and must not keep them
+            CloseableHttpResponse response = client.execute( new HttpGet( server.formatUrl( path ) ), context );
+            assertThat( IOUtils.toString( response.getEntity().getContent() ), equalTo( "Slow response." ) );
+            response.close();
+        }
+        finally
+        {
+            IOUtils.closeQuietly( client );
+            factory.shutdownNow();
+        }
+    }
+
+    @Test
+    public void reconfigureResizesLivePoolAndKeepsConnections()
+            throws Exception
+    {
+        final String path = "/path/to/slow";
+        server.expect( "GET", server.formatUrl( path ), new ExpectationHandler()
+        {
+            @Override
+            public void handle( HttpServletRequest request, HttpServletResponse response )
+                    throws ServletException, IOException
+            {
+                try
+                {
+                    Thread.sleep( 1500 );
+                }
+                catch ( InterruptedException e )
+                {
+                    return;
+                }
+
+                response.setStatus( 200 );
+                response.getWriter().write( "Slow response." );
+            }
+        } );
+
+        SiteConfig config = new SiteConfigBuilder( "reconfigured", server.formatUrl() ).withMaxConnections( 1 )
+                                                                                      .withRequestTimeoutSeconds( 1 )
+                                                                                      .build();
+
+        assertThat( factory.reconfigure( config ), equalTo( false ) );
+
+        CloseableHttpClient client = factory.createClient( config );
+        try
+        {
+            try
+            {
+                client.execute( new HttpGet( server.formatUrl( path ) ) );
+                fail( "Request should have timed out" );
+            }
+            catch ( SocketTimeoutException e )
+            {
+                // expected
+            }
+
+            SitePoolMetrics metrics = factory.getMetrics().getSiteMetrics( "reconfigured" );
+            assertThat( metrics.getMax(), equalTo( 1 ) );
+
+            SiteConfig updated =
+                    new SiteConfigBuilder( "reconfigured", server.formatUrl() ).withMaxConnections( 3 )
+                                                                               .withRequestTimeoutSeconds( 5 )
+                                                                               .build();
+            assertThat( factory.reconfigure( updated ), equalTo( true ) );
+            assertThat( metrics.getMax(), equalTo( 3 ) );
+
+            // the same client picks up the new timeout
+            CloseableHttpResponse response = client.execute( new HttpGet( server.formatUrl( path ) ) );
+            assertThat( IOUtils.toString( response.getEntity().getContent() ), equalTo( "Slow response." ) );
+            response.close();
+
+            long created = metrics.getNewConnectionCount();
+            response = client.execute( new HttpGet( server.formatUrl( path ) ) );
+            IOUtils.toString( response.getEntity().getContent() );
+            response.close();
+
+            assertThat( metrics.getNewConnectionCount(), equalTo( created ) );
+        }
+        finally
+        {
+            IOUtils.closeQuietly( client );
+            factory.shutdownNow();
+        }
+    }
+
+    @Test
+    public void prewarmedConnectionsAreReusedByRequests()
+            throws Exception
+    {
+        String path = "/path/to/test";
+        String content = "This is a test.";
+
+        server.expect( server.formatUrl( path ), 200, content );
+
+        SiteConfig config = new SiteConfigBuilder( "prewarmed", server.formatUrl() ).withMaxConnections( 2 ).build();
+
+        try
+        {
+            assertThat( factory.prewarm( config, 5 ).get( 10, TimeUnit.SECONDS ), equalTo( 2 ) );
+            assertThat( factory.prewarm( config, 2 ).get( 10, TimeUnit.SECONDS ), equalTo( 0 ) );
+
+            SitePoolMetrics metrics = factory.getMetrics().getSiteMetrics( "prewarmed" );
+            assertThat( metrics.getNewConnectionCount(), equalTo( 2L ) );
+            assertThat( metrics.getAvailable(), equalTo( 2 ) );
+
+            CloseableHttpClient client = factory.createClient( config );
+            try
+            {
+                CloseableHttpResponse response = client.execute( new HttpGet( server.formatUrl( path ) ) );
+                assertThat( IOUtils.toString( response.getEntity().getContent() ), equalTo( content ) );
+                response.close();
+            }
+            finally
+            {
+                IOUtils.closeQuietly( client );
+            }
+
+            assertThat( metrics.getNewConnectionCount(), equalTo( 2L ) );
+            assertThat( metrics.getReusedConnectionCount() > 0, equalTo( true ) );
+        }
+        finally
+        {
+            factory.shutdownNow();
+        }
+    }
+
+    @Test
+    public void sslContextIsSharedBetweenSitesWithSameTlsMaterial()
+            throws Exception
+    {
+        SslContextCache.clear();
+        long hits = SslContextCache.getHitCount();
+
+        // distinct SiteConfig instances with the same TLS settings
+        SiteConfig first = new SiteConfigBuilder( "tls-a", "https://localhost:8443/" )
+                .withIgnoreHostnameVerification( true )
+                .build();
+        SiteConfig second = new SiteConfigBuilder( "tls-b", "https://localhost:8443/" )
+                .withIgnoreHostnameVerification( true )
+                .build();
+        SiteConfig selfSigned = new SiteConfigBuilder( "tls-c", "https://localhost:8443/" )
+                .withIgnoreHostnameVerification( true )
+                .withTrustType( SiteTrustType.TRUST_SELF_SIGNED )
+                .build();
+
+        try
+        {
+            IOUtils.closeQuietly( factory.createClient( first ) );
+            assertThat( SslContextCache.size(), equalTo( 1 ) );
+
+            IOUtils.closeQuietly( factory.createClient( second ) );
+            assertThat( SslContextCache.size(), equalTo( 1 ) );
+            assertThat( SslContextCache.getHitCount(), equalTo( hits + 1 ) );
+
+            IOUtils.closeQuietly( factory.createClient( selfSigned ) );
+            assertThat( SslContextCache.size(), equalTo( 2 ) );
+        }
+        finally
+        {
+            factory.shutdownNow();
+        }
+    }
+
+    @Test
+    public void resumedTlsHandshakesAreCountedSeparately()
+            throws Exception
+    {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance( "RSA" );
+        generator.initialize( 2048 );
+        KeyPair keyPair = generator.generateKeyPair();
+
+        X500Name name = new X500Name( "CN=localhost" );
+        long now = System.currentTimeMillis();
+        X509Certificate cert = new JcaX509CertificateConverter().getCertificate(
+                new JcaX509v3CertificateBuilder( name, BigInteger.valueOf( now ), new Date( now - 60000 ),
+                                                 new Date( now + 3600000 ), name, keyPair.getPublic() ).build(
+                        new JcaContentSignerBuilder( "SHA256withRSA" ).build( keyPair.getPrivate() ) ) );
+
+        KeyStore keyStore = KeyStore.getInstance( KeyStore.getDefaultType() );
+        keyStore.load( null, null );
+        keyStore.setKeyEntry( "server", keyPair.getPrivate(), "password".toCharArray(),
+                              new Certificate[] { cert } );
+
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance( KeyManagerFactory.getDefaultAlgorithm() );
+        kmf.init( keyStore, "password".toCharArray() );
+        SSLContext serverContext = SSLContext.getInstance( "TLS" );
+        serverContext.init( kmf.getKeyManagers(), null, null );
+
+        final SSLServerSocket serverSocket =
+                (SSLServerSocket) serverContext.getServerSocketFactory().createServerSocket( 0 );
+        Thread serverThread = new Thread( () -> {
+            // one response per connection, so each request needs a new connection and handshake
+            while ( !serverSocket.isClosed() )
+            {
+                try (Socket socket = serverSocket.accept())
+                {
+                    BufferedReader reader =
+                            new BufferedReader( new InputStreamReader( socket.getInputStream(), "UTF-8" ) );
+                    String line;
+                    while ( ( line = reader.readLine() ) != null && !line.isEmpty() )
+                    {
+                    }
+
+                    OutputStream out = socket.getOutputStream();
+                    out.write( "HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: close\r\n\r\nok".getBytes(
+                            "UTF-8" ) );
+                    out.flush();
+                }
+                catch ( IOException e )
+                {
+                    // closed
+                }
+            }
+        } );
+        serverThread.setDaemon( true );
+        serverThread.start();
+
+        StringWriter pem = new StringWriter();
+        try (JcaPEMWriter writer = new JcaPEMWriter( pem ))
+        {
+            writer.writeObject( cert );
+        }
+
+        String url = "https://localhost:" + serverSocket.getLocalPort() + "/";
+        SiteConfig config = new SiteConfigBuilder( "tls-resume", url ).withServerCertPem( pem.toString() )
+                                                                      .withSslSessionCacheSize( 10 )
+                                                                      .withSslSessionTimeoutSeconds( 60 )
+                                                                      .build();
+
+        CloseableHttpClient client = factory.createClient( config );
+        try
+        {
+            for ( int i = 0; i < 3; i++ )
+            {
+                CloseableHttpResponse response = client.execute( new HttpGet( url ) );
+                assertThat( IOUtils.toString( response.getEntity().getContent() ), equalTo( "ok" ) );
+                response.close();
+                Thread.sleep( 5 );
+            }
+
+            SitePoolMetrics metrics = factory.getMetrics().getSiteMetrics( "tls-resume" );
+            assertThat( metrics.getFullHandshakeCount(), equalTo( 1L ) );
+            assertThat( metrics.getResumedHandshakeCount(), equalTo( 2L ) );
+        }
+        finally
+        {
+            IOUtils.closeQuietly( client );
+            serverSocket.close();
+            factory.shutdownNow();
+        }
+    }
+
+    @Test
+    public void changedPemFilesAreReloadedIntoLivePool()
+            throws Exception
+    {
+        String path = "/path/to/test";
+        String content = "This is a test.";
+        server.expect( server.formatUrl( path ), 200, content );
+
+        File pemFile = File.createTempFile( "server-cert", ".pem" );
+        pemFile.deleteOnExit();
+        FileUtils.write( pemFile, selfSignedCertPem(), "UTF-8" );
+
+        SslContextCache.clear();
+        factory.shutdownNow();
+        factory = new HttpFactory( passwordManager, new HttpFactoryConfigBuilder().withPemCheckSeconds( 1 ).build() );
+
+        SiteConfig config =
+                new SiteConfigBuilder( "pem-reload", server.formatUrl() ).withServerCertPemFile( pemFile ).build();
+
+        CloseableHttpClient client = factory.createClient( config );
+        try
+        {
+            CloseableHttpResponse response = client.execute( new HttpGet( server.formatUrl( path ) ) );
+            assertThat( IOUtils.toString( response.getEntity().getContent() ), equalTo( content ) );
+            response.close();
+            assertThat( SslContextCache.size(), equalTo( 1 ) );
+
+            // the watcher builds a context for the new certificate and swaps it into the live pool
+            FileUtils.write( pemFile, selfSignedCertPem(), "UTF-8" );
+            long deadline = System.currentTimeMillis() + 5000;
+            while ( SslContextCache.size() < 2 && System.currentTimeMillis() < deadline )
+            {
+                Thread.sleep( 100 );
+            }
+            assertThat( SslContextCache.size(), equalTo( 2 ) );
+
+            response = client.execute( new HttpGet( server.formatUrl( path ) ) );
+            assertThat( IOUtils.toString( response.getEntity().getContent() ), equalTo( content ) );
+            response.close();
+
+            SiteConfig reloaded =
+                    new SiteConfigBuilder( config ).withServerCertPem( selfSignedCertPem() ).build();
+            assertThat( factory.reloadTls( reloaded ).get( 5, TimeUnit.SECONDS ), equalTo( true ) );
+
+            SiteConfig unknown = new SiteConfigBuilder( "no-pool", server.formatUrl() ).build();
+            assertThat( factory.reloadTls( unknown ).get( 5, TimeUnit.SECONDS ), equalTo( false ) );
+        }
+        finally
+        {
+            IOUtils.closeQuietly( client );
+            factory.shutdownNow();
+        }
+    }
+
+    @Test
+    public void pemTrustBundleIsDecodedOncePerContent()
+            throws Exception
+    {
+        String bundle = selfSignedCertPem() + selfSignedCertPem() + selfSignedCertPem();
+
+        PemTrustBundleCache.clear();
+        long misses = PemTrustBundleCache.getMissCount();
+        long hits = PemTrustBundleCache.getHitCount();
+
+        KeyStore first = SSLUtils.decodePEMTrustStore( bundle, "host-a" );
+        KeyStore second = SSLUtils.decodePEMTrustStore( bundle, "host-b" );
+
+        assertThat( PemTrustBundleCache.getMissCount(), equalTo( misses + 1 ) );
+        assertThat( PemTrustBundleCache.getHitCount(), equalTo( hits + 1 ) );
+        assertThat( PemTrustBundleCache.size(), equalTo( 1 ) );
+
+        // each caller gets its own store, with its own alias prefix, holding the same decoded certificates
+        for ( String alias : new String[] { "host-a", "host-a1", "host-a2", "localhost" } )
+        {
+            assertThat( alias, first.isCertificateEntry( alias ), equalTo( true ) );
+        }
+        assertThat( second.isCertificateEntry( "host-a" ), equalTo( false ) );
+        assertThat( second.getCertificate( "host-b2" ) == first.getCertificate( "host-a2" ), equalTo( true ) );
+    }
+
+    private String selfSignedCertPem()
+            throws Exception
+    {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance( "RSA" );
+        generator.initialize( 2048 );
+        KeyPair keyPair = generator.generateKeyPair();
+
+        X500Name name = new X500Name( "CN=localhost" );
+        long now = System.nanoTime();
+        X509Certificate cert = new JcaX509CertificateConverter().getCertificate(
+                new JcaX509v3CertificateBuilder( name, BigInteger.valueOf( now ),
+                                                 new Date( System.currentTimeMillis() - 60000 ),
+                                                 new Date( System.currentTimeMillis() + 3600000 ), name,
+                                                 keyPair.getPublic() ).build(
+                        new JcaContentSignerBuilder( "SHA256withRSA" ).build( keyPair.getPrivate() ) ) );
+
+        StringWriter pem = new StringWriter();
+        try (JcaPEMWriter writer = new JcaPEMWriter( pem ))
+        {
+            writer.writeObject( cert );
+        }
+
+        return pem.toString();
+    }
+
+    @Test
+    public void requestPhaseTimingsAreRecordedInContextAndMetrics()
+            throws Exception
+    {
+        String path = "/path/to/test";
+        String content = "This is a test.";
+
+        server.expect( server.formatUrl( path ), 200, content );
+
+        SiteConfig config = new SiteConfigBuilder( "timings", server.formatUrl() ).build();
+
+        CloseableHttpClient client = factory.createClient( config );
+        try
+        {
+            HttpClientContext first = HttpClientContext.create();
+            CloseableHttpResponse response = client.execute( new HttpGet( server.formatUrl( path ) ), first );
+            assertThat( IOUtils.toString( response.getEntity().getContent() ), equalTo( content ) );
+            response.close();
+
+            RequestTimings timings = RequestTimings.get( first );
+            assertThat( timings, notNullValue() );
+            assertThat( timings.isNewConnection(), equalTo( true ) );
+            assertThat( timings.getNanos( RequestPhase.DNS ) > 0, equalTo( true ) );
+            assertThat( timings.getNanos( RequestPhase.CONNECT ) > 0, equalTo( true ) );
+            assertThat( timings.getNanos( RequestPhase.TLS ), equalTo( 0L ) );
+            assertThat( timings.getNanos( RequestPhase.TIME_TO_FIRST_BYTE ) > 0, equalTo( true ) );
+
+            HttpClientContext second = HttpClientContext.create();
+            response = client.execute( new HttpGet( server.formatUrl( path ) ), second );
+            assertThat( IOUtils.toString( response.getEntity().getContent() ), equalTo( content ) );
+            response.close();
+
+            timings = RequestTimings.get( second );
+            assertThat( timings.isNewConnection(), equalTo( false ) );
+            assertThat( timings.getNanos( RequestPhase.CONNECT ), equalTo( 0L ) );
+
+            SitePoolMetrics metrics = factory.getMetrics().getSiteMetrics( "timings" );
+            assertThat( metrics.getPhaseTime( RequestPhase.TIME_TO_FIRST_BYTE ).getCount(), equalTo( 2L ) );
+            assertThat( metrics.getPhaseTime( RequestPhase.BODY ).getCount(), equalTo( 2L ) );
+            assertThat( metrics.getPhaseTime( RequestPhase.CONNECT ).getCount(), equalTo( 1L ) );
+            assertThat( metrics.getPhaseTime( RequestPhase.TLS ).getCount(), equalTo( 0L ) );
+        }
+        finally
+        {
+            IOUtils.closeQuietly( client );
+            factory.shutdownNow();
+        }
+    }
+
+    @Test
+    public void requestEventsAreExportedForMetricEnabledSites()
+            throws Exception
+    {
+        String path = "/path/to/test";
+        String content = "This is a test.";
+
+        server.expect( server.formatUrl( path ), 200, content );
+
+        File events = File.createTempFile( "request-events.", ".json" );
+        events.deleteOnExit();
+
+        HttpFactory factory = new HttpFactory( new MemoryPasswordManager(), new HttpFactoryConfigBuilder().withEventSink(
+                new FileEventSink( events ) ).build() );
+        SiteConfig config = new SiteConfigBuilder( "events", server.formatUrl() ).withMetricEnabled( true ).build();
+
+        CloseableHttpClient client = factory.createClient( config );
+        try
+        {
+            for ( int i = 0; i < 2; i++ )
+            {
+                CloseableHttpResponse response = client.execute( new HttpGet( server.formatUrl( path ) + "?q=" + i ) );
+                assertThat( IOUtils.toString( response.getEntity().getContent() ), equalTo( content ) );
+                response.close();
+            }
+        }
+        finally
+        {
+            IOUtils.closeQuietly( client );
+            factory.shutdownNow();
+        }
+
+        List<String> lines = FileUtils.readLines( events );
+        assertThat( lines.size(), equalTo( 2 ) );
+        for ( String line : lines )
+        {
+            assertThat( line, containsString( "\"samplerate\":1," ) );
+            assertThat( line, containsString( "\"site_id\":\"events\"" ) );
+            assertThat( line, containsString( "\"method\":\"GET\"" ) );
+            assertThat( line, containsString( "\"path\":\"" + path + "\"" ) );
+            assertThat( line, containsString( "\"status\":200" ) );
+            assertThat( line, containsString( "\"response_bytes\":" + content.length() ) );
+            assertThat( line, containsString( "\"pool_wait_ms\":" ) );
+            assertThat( line, containsString( "\"ttfb_ms\":" ) );
+        }
+    }
+
+    @Test
+    public void simpleAsyncGet()
+            throws Exception
+    {
+        String path = "/path/to/test";
+        String content = "This is a test.";
+
+        server.expect( server.formatUrl( path ), 200, content );
+
+        SiteConfig config = new SiteConfigBuilder( "test", server.formatUrl() ).build();
+
+        CloseableHttpAsyncClient client = null;
+        try
+        {
+            client = factory.createAsyncClient( config );
+            HttpResponse response = client.execute( new HttpGet( server.formatUrl( path ) ), null ).get();
+
+            assertThat( response.getStatusLine().getStatusCode(), equalTo( 200 ) );
+            assertThat( IOUtils.toString( response.getEntity().getContent() ), equalTo( content ) );
+        }
+        finally
+        {
+            IOUtils.closeQuietly( client );
+            factory.shutdownNow();
+        }
+    }
+
+    @Test
+    public void asyncClientsOfAllSitesShareOneReactor()
+            throws Exception
+    {
+        String path = "/path/to/test";
+        String content = "This is a test.";
+
+        server.expect( server.formatUrl( path ), 200, content );
+
+        int before = countThreads( "jHTTPc async-" );
+        List<CloseableHttpAsyncClient> clients = new ArrayList<CloseableHttpAsyncClient>();
+        try
+        {
+            for ( int i = 0; i < 5; i++ )
+            {
+                SiteConfig config = new SiteConfigBuilder( "async-" + i, server.formatUrl() ).build();
+                CloseableHttpAsyncClient client = factory.createAsyncClient( config );
+                clients.add( client );
+
+                HttpResponse response = client.execute( new HttpGet( server.formatUrl( path ) ), null ).get();
+                assertThat( IOUtils.toString( response.getEntity().getContent() ), equalTo( content ) );
+            }
+
+            // one reactor thread plus its dispatchers, however many sites
+            assertThat( countThreads( "jHTTPc async-" ) - before <= SharedAsyncBackend.IO_THREADS + 1,
+                        equalTo( true ) );
+        }
+        finally
+        {
+            clients.forEach( IOUtils::closeQuietly );
+            factory.shutdownNow();
+        }
+    }
+
+    private int countThreads( final String prefix )
+    {
+        int count = 0;
+        for ( Thread t : Thread.getAllStackTraces().keySet() )
+        {
+            if ( t.isAlive() && t.getName().startsWith( prefix ) )
+            {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    @Test
+    public void executeReturnsFutureOfHandlerResult()
+            throws Exception
+    {
+        String path = "/path/to/test";
+        String content = "This is a test.";
+
+        server.expect( server.formatUrl( path ), 200, content );
+
+        SiteConfig config = new SiteConfigBuilder( "test", server.formatUrl() ).build();
+        try
+        {
+            CompletableFuture<String> future =
+                    factory.execute( config, new HttpGet( server.formatUrl( path ) ), new ResponseHandler<String>()
+                    {
+                        @Override
+                        public String handleResponse( HttpResponse response )
+                                throws ClientProtocolException, IOException
+                        {
+                            return IOUtils.toString( response.getEntity().getContent() );
+                        }
+                    } );
+
+            assertThat( future.get( 10, TimeUnit.SECONDS ), equalTo( content ) );
+        }
+        finally
+        {
+            factory.shutdownNow();
+        }
+    }
+
+    @Test
+    public void executeRejectsRequestsBeyondQueueCapacity()
+            throws Exception
+    {
+        final String path = "/path/to/blocked";
+        final CountDownLatch started = new CountDownLatch( 1 );
+        final CountDownLatch unblock = new CountDownLatch( 1 );
+        server.expect( "GET", server.formatUrl( path ), new ExpectationHandler()
+        {
+            @Override
+            public void handle( HttpServletRequest request, HttpServletResponse response )
+                    throws ServletException, IOException
+            {
+                started.countDown();
+                try
+                {
+                    unblock.await( 10, TimeUnit.SECONDS );
+                }
+                catch ( InterruptedException e )
+                {
+                    return;
+                }
+
+                response.setStatus( 200 );
+            }
+        } );
+
+        SiteConfig config = new SiteConfigBuilder( "queue", server.formatUrl() ).withMaxConnections( 1 ).build();
+        ResponseHandler<Integer> handler = ( response ) -> response.getStatusLine().getStatusCode();
+        try
+        {
+            CompletableFuture<Integer> running =
+                    factory.execute( config, new HttpGet( server.formatUrl( path ) ), handler );
+            assertThat( started.await( 10, TimeUnit.SECONDS ), equalTo( true ) );
+
+            List<CompletableFuture<Integer>> queued = new ArrayList<CompletableFuture<Integer>>();
+            for ( int i = 0; i < ConnectionManagerTracker.QUEUED_REQUESTS_PER_CONNECTION; i++ )
+            {
+                queued.add( factory.execute( config, new HttpGet( server.formatUrl( path ) ), handler ) );
+            }
+
+            CompletableFuture<Integer> rejected =
+                    factory.execute( config, new HttpGet( server.formatUrl( path ) ), handler );
+
+            assertThat( rejected.isCompletedExceptionally(), equalTo( true ) );
+            assertThat( queued.stream().anyMatch( CompletableFuture::isDone ), equalTo( false ) );
+
+            unblock.countDown();
+            assertThat( running.get( 10, TimeUnit.SECONDS ), equalTo( 200 ) );
+        }
+        finally
+        {
+            unblock.countDown();
+            factory.shutdownNow();
+        }
+    }
+
+    @Test
+    public void threadPerTaskExecutorBoundsRunningAndWaitingTasks()
+            throws Exception
+    {
+        ThreadPerTaskExecutor exec = new ThreadPerTaskExecutor( Thread::new, 2 );
+        final CountDownLatch started = new CountDownLatch( 2 );
+        final CountDownLatch unblock = new CountDownLatch( 1 );
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        Runnable task = () -> {
+            maxActive.accumulateAndGet( active.incrementAndGet(), Math::max );
+            started.countDown();
+            try
+            {
+                unblock.await( 10, TimeUnit.SECONDS );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+            finally
+            {
+                active.decrementAndGet();
+            }
+        };
+
+        int admitted = 2 * ( 1 + ConnectionManagerTracker.QUEUED_REQUESTS_PER_CONNECTION );
+        for ( int i = 0; i < admitted; i++ )
+        {
+            exec.execute( task );
+        }
+
+        try
+        {
+            exec.execute( task );
+            fail( "Expected the task beyond the admission limit to be rejected" );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            // expected
+        }
+
+        assertThat( started.await( 10, TimeUnit.SECONDS ), equalTo( true ) );
+        unblock.countDown();
+        exec.shutdown();
+        assertThat( exec.awaitTermination( 10, TimeUnit.SECONDS ), equalTo( true ) );
+        assertThat( maxActive.get(), equalTo( 2 ) );
+    }
+
+    @Test
+    public void threadPerTaskExecutorTerminatesAfterThreadFailsToStart()
+            throws Exception
+    {
+        ThreadPerTaskExecutor exec = new ThreadPerTaskExecutor( ( runnable ) -> new Thread( runnable )
+        {
+            @Override
+            public void start()
+            {
+                throw new IllegalStateException( "Cannot start thread" );
+            }
+        }, 1 );
+
+        try
+        {
+            exec.execute( () -> {
+            } );
+            fail( "Expected the thread start failure to be thrown" );
+        }
+        catch ( IllegalStateException e )
+        {
+            // expected
+        }
+
+        exec.shutdown();
+        assertThat( exec.isTerminated(), equalTo( true ) );
+        assertThat( exec.awaitTermination( 1, TimeUnit.SECONDS ), equalTo( true ) );
+    }
+
+    @Test
+    public void executeRunsEachRequestOnItsOwnVirtualThread()
+            throws Exception
+    {
+        Assume.assumeTrue( VirtualThreadSupport.isAvailable() );
+
+        final String path = "/path/to/virtual";
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        server.expect( "GET", server.formatUrl( path ), new ExpectationHandler()
+        {
+            @Override
+            public void handle( HttpServletRequest request, HttpServletResponse response )
+                    throws ServletException, IOException
+            {
+                maxActive.accumulateAndGet( active.incrementAndGet(), Math::max );
+                try
+                {
+                    Thread.sleep( 100 );
+                }
+                catch ( InterruptedException e )
+                {
+                    return;
+                }
+                finally
+                {
+                    active.decrementAndGet();
+                }
+
+                response.setStatus( 200 );
+            }
+        } );
+
+        HttpFactory factory = new HttpFactory( new MemoryPasswordManager(),
+                                               new HttpFactoryConfigBuilder().withVirtualThreads( true ).build() );
+
+        SiteConfig config = new SiteConfigBuilder( "virtual", server.formatUrl() ).withMaxConnections( 2 ).build();
+        final Method isVirtual = Thread.class.getMethod( "isVirtual" );
+        ResponseHandler<Boolean> handler = ( response ) -> {
+            try
+            {
+                return response.getStatusLine().getStatusCode() == 200
+                        && (Boolean) isVirtual.invoke( Thread.currentThread() );
+            }
+            catch ( ReflectiveOperationException e )
+            {
+                throw new IOException( e );
+            }
+        };
+
+        try
+        {
+            List<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>();
+            for ( int i = 0; i < 6; i++ )
+            {
+                futures.add( factory.execute( config, new HttpGet( server.formatUrl( path ) ), handler ) );
+            }
+
+            for ( CompletableFuture<Boolean> future : futures )
+            {
+                assertThat( future.get( 10, TimeUnit.SECONDS ), equalTo( true ) );
+            }
+
+            assertThat( maxActive.get() <= 2, equalTo( true ) );
+        }
+        finally
+        {
+            factory.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shutdownNowCancelsPendingFutures()
+            throws Exception
+    {
+        final String path = "/path/to/slow";
+        final CountDownLatch started = new CountDownLatch( 1 );
+        server.expect( "GET", server.formatUrl( path ), new ExpectationHandler()
+        {
+            @Override
+            public void handle( HttpServletRequest request, HttpServletResponse response )
+                    throws ServletException, IOException
+            {
+                started.countDown();
+                try
+                {
+                    Thread.sleep( 5000 );
+                }
+                catch ( InterruptedException e )
+                {
+                    return;
+                }
+
+                response.setStatus( 200 );
+            }
+        } );
+
+        SiteConfig config = new SiteConfigBuilder( "test", server.formatUrl() ).build();
+        CompletableFuture<Integer> future =
+                factory.execute( config, new HttpGet( server.formatUrl( path ) ), new ResponseHandler<Integer>()
+                {
+                    @Override
+                    public Integer handleResponse( HttpResponse response )
+                    {
+                        return response.getStatusLine().getStatusCode();
+                    }
+                } );
+
+        assertThat( started.await( 10, TimeUnit.SECONDS ), equalTo( true ) );
+        factory.shutdownNow();
+
+        assertThat( future.isCancelled(), equalTo( true ) );
+    }
+
     @Test
     @Ignore( "This is a diagnostic test for the environment, mainly for use with the docker-driven test below")
     public void checkKeyStrength()
@@ -23,6 +23,7 @@ import org.apache.http.impl.client.CloseableHttpClient;
 import org.commonjava.test.http.expect.ExpectationHandler;
 import org.commonjava.test.http.expect.ExpectationServer;
 import org.commonjava.util.jhttpc.HttpFactory;
+import org.commonjava.util.jhttpc.INTERNAL.conn.TrackedHttpClient;
 import org.commonjava.util.jhttpc.auth.MemoryPasswordManager;
 import org.commonjava.util.jhttpc.model.SiteConfig;
 import org.commonjava.util.jhttpc.model.SiteConfigBuilder;
@@ -203,4 +204,59 @@ public class ResourceCleanupLoadTest
         assertThat( "Connection pool timed out!", timedOut.get(), equalTo( false ) );
     }
 
+    @Test
+    public void sharedClientTracksOnlyOutstandingExchanges()
+            throws Exception
+    {
+        final String path = name.getMethodName() + "/path/to/test";
+        final String content = "This is a test.";
+        final SiteConfig config =
+                new SiteConfigBuilder( "test", server.formatUrl() ).withMaxConnections( THREAD_COUNT + 1 ).build();
+
+        server.expect( "GET", server.formatUrl( path ), 200, content );
+
+        final TrackedHttpClient client = (TrackedHttpClient) factory.createClient( config );
+        final CountDownLatch latch = new CountDownLatch( THREAD_COUNT );
+        final AtomicInteger failures = new AtomicInteger( 0 );
+        for ( int i = 0; i < THREAD_COUNT; i++ )
+        {
+            executor.execute( () -> {
+                try
+                {
+                    for ( int j = 0; j < 5; j++ )
+                    {
+                        CloseableHttpResponse response = client.execute( new HttpGet( server.formatUrl( path ) ) );
+                        if ( j % 2 == 0 )
+                        {
+                            IOUtils.toString( response.getEntity().getContent() );
+                        }
+                        else
+                        {
+                            response.close();
+                        }
+                    }
+                }
+                catch ( Exception e )
+                {
+                    e.printStackTrace();
+                    failures.incrementAndGet();
+                }
+                finally
+                {
+                    latch.countDown();
+                }
+            } );
+        }
+
+        latch.await();
+        assertThat( failures.get(), equalTo( 0 ) );
+        assertThat( client.getInFlightCount(), equalTo( 0 ) );
+
+        CloseableHttpResponse leaked = client.execute( new HttpGet( server.formatUrl( path ) ) );
+        assertThat( leaked.getStatusLine().getStatusCode(), equalTo( 200 ) );
+        assertThat( client.getInFlightCount(), equalTo( 1 ) );
+
+        client.close();
+        assertThat( client.getInFlightCount(), equalTo( 0 ) );
+    }
 }